@@ -0,0 +1,118 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import gate.AnnotationSet;
+import gate.FeatureMap;
+import gate.util.InvalidOffsetException;
+
+import java.util.Arrays;
+
+/**
+ * Collects annotations so they can be added to a GATE AnnotationSet in one
+ * batch, sorted by offset.
+ * <p>
+ * Graphs return their nodes in no particular order, so adding annotations as
+ * the nodes are visited makes GATE insert nodes all over its offset index. The
+ * batch keeps the offsets in primitive arrays, sorts them by (start, end) and
+ * then adds the annotations in that order. Annotations with the same offsets
+ * keep the order they were added in, and consecutive annotations with the
+ * same offsets share the same Long objects.
+ */
+public class AnnotationBatch
+{
+   private long[] start;
+   private long[] end;
+   private String[] type;
+   private FeatureMap[] features;
+   private int size = 0;
+
+   public AnnotationBatch()
+   {
+      this(256);
+   }
+
+   public AnnotationBatch(int capacity)
+   {
+      capacity = Math.max(16, capacity);
+      start = new long[capacity];
+      end = new long[capacity];
+      type = new String[capacity];
+      features = new FeatureMap[capacity];
+   }
+
+   public void add(long start, long end, String type, FeatureMap features)
+   {
+      if (size == this.start.length)
+      {
+         int capacity = size * 2;
+         this.start = Arrays.copyOf(this.start, capacity);
+         this.end = Arrays.copyOf(this.end, capacity);
+         this.type = Arrays.copyOf(this.type, capacity);
+         this.features = Arrays.copyOf(this.features, capacity);
+      }
+      this.start[size] = start;
+      this.end[size] = end;
+      this.type[size] = type;
+      this.features[size] = features;
+      ++size;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public void clear()
+   {
+      Arrays.fill(type, 0, size, null);
+      Arrays.fill(features, 0, size, null);
+      size = 0;
+   }
+
+   /**
+    * Adds all the annotations in the batch to the AnnotationSet in offset
+    * order and clears the batch.
+    */
+   public void addTo(AnnotationSet annotations) throws InvalidOffsetException
+   {
+      int[] order = sort();
+      Long startOffset = null;
+      Long endOffset = null;
+      for (int i = 0; i < size; ++i)
+      {
+         int a = order[i];
+         if (startOffset == null || startOffset.longValue() != start[a])
+         {
+            startOffset = Long.valueOf(start[a]);
+         }
+         if (endOffset == null || endOffset.longValue() != end[a])
+         {
+            endOffset = end[a] == start[a] ? startOffset : Long.valueOf(end[a]);
+         }
+         annotations.add(startOffset, endOffset, type[a], features[a]);
+      }
+      clear();
+   }
+
+   /** Returns the indices of the annotations sorted by start and then end offset. */
+   protected int[] sort()
+   {
+      return OffsetSort.sort(start, end, size);
+   }
+}
@@ -0,0 +1,132 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects which GrAF annotations are turned into GATE annotations, by label and
+ * by annotation space.
+ * <p>
+ * An annotation is accepted if its label is in the include list (or the include
+ * list is empty), its label is not in the exclude list, and its annotation
+ * space is in the list of spaces (or that list is empty). The filter only
+ * applies to annotations. The nodes they are attached to are always kept so
+ * the spans of the accepted nodes can still be computed.
+ * <p>
+ * A filter can also restrict annotations to a [start, end) window of the text.
+ * Annotations are accepted if their span overlaps the window. An empty span is
+ * accepted if it starts inside the window.
+ */
+public class AnnotationFilter
+{
+   /** A filter that accepts every annotation. */
+   public static final AnnotationFilter ALL = new AnnotationFilter(null, null, null);
+
+   private final Set<String> include;
+   private final Set<String> exclude;
+   private final Set<String> spaces;
+   private final long windowStart;
+   private final long windowEnd;
+
+   /**
+    * @param include labels to load, all labels if null or empty
+    * @param exclude labels that are never loaded, may be null
+    * @param spaces annotation spaces to load, all spaces if null or empty
+    */
+   public AnnotationFilter(Collection<String> include, Collection<String> exclude, Collection<String> spaces)
+   {
+      this(include, exclude, spaces, 0, Long.MAX_VALUE);
+   }
+
+   /**
+    * @param windowStart the first offset of the window
+    * @param windowEnd the offset just past the end of the window
+    */
+   public AnnotationFilter(Collection<String> include, Collection<String> exclude, Collection<String> spaces,
+                           long windowStart, long windowEnd)
+   {
+      this.include = toSet(include);
+      this.exclude = toSet(exclude);
+      this.spaces = toSet(spaces);
+      this.windowStart = windowStart;
+      this.windowEnd = windowEnd;
+   }
+
+   /** Returns true if the filter does not reject anything. */
+   public boolean acceptsAll()
+   {
+      return include.isEmpty() && exclude.isEmpty() && spaces.isEmpty() && !hasWindow();
+   }
+
+   /** Returns true if the filter only accepts part of the text. */
+   public boolean hasWindow()
+   {
+      return windowStart > 0 || windowEnd < Long.MAX_VALUE;
+   }
+
+   public long getWindowStart()
+   {
+      return windowStart;
+   }
+
+   public long getWindowEnd()
+   {
+      return windowEnd;
+   }
+
+   /** Returns true if the span overlaps the window. */
+   public boolean overlaps(long start, long end)
+   {
+      if (start == end)
+      {
+         return start >= windowStart && start < windowEnd;
+      }
+      return start < windowEnd && end > windowStart;
+   }
+
+   /**
+    * @param label the annotation label
+    * @param space the name of the annotation space, or null if the annotation
+    *              does not have one
+    */
+   public boolean accept(String label, String space)
+   {
+      if (!include.isEmpty() && !include.contains(label))
+      {
+         return false;
+      }
+      if (exclude.contains(label))
+      {
+         return false;
+      }
+      return spaces.isEmpty() || (space != null && spaces.contains(space));
+   }
+
+   private static Set<String> toSet(Collection<String> values)
+   {
+      if (values == null || values.isEmpty())
+      {
+         return Collections.emptySet();
+      }
+      return new HashSet<String>(values);
+   }
+}
@@ -0,0 +1,140 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes compressed corpus files.
+ * <p>
+ * A compressed file has the name of the plain file plus the suffix of the
+ * compression, e.g. doc-seg.xml.gz. The loaders call {@link #resolve(File)} so
+ * that the compressed file is used when the plain file does not exist. Streams
+ * are decompressed as they are read, so the whole file is never held in memory.
+ * Both sides of the inflater are buffered, since GZIPInputStream reads the
+ * underlying stream in small pieces.
+ * <p>
+ * Only gzip is supported. It is the only format the JDK can read and write
+ * without additional libraries.
+ */
+public final class Compression
+{
+   /** Files are written without compression. */
+   public static final String NONE = "none";
+   /** Files are written with gzip and get the {@link #GZIP_SUFFIX}. */
+   public static final String GZIP = "gzip";
+   public static final String GZIP_SUFFIX = ".gz";
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private Compression()
+   {
+   }
+
+   /**
+    * Returns the file if it exists, otherwise the compressed version if that
+    * exists. If neither exists the file is returned unchanged so error messages
+    * name the file that was expected.
+    */
+   public static File resolve(File file)
+   {
+      if (file.exists())
+      {
+         return file;
+      }
+      File compressed = new File(file.getPath() + GZIP_SUFFIX);
+      if (compressed.exists())
+      {
+         return compressed;
+      }
+      return file;
+   }
+
+   public static boolean isCompressed(File file)
+   {
+      return file.getName().endsWith(GZIP_SUFFIX);
+   }
+
+   /** Opens a buffered stream that decompresses the file if it is compressed. */
+   public static InputStream open(File file) throws IOException
+   {
+      InputStream stream = new FileInputStream(file);
+      if (isCompressed(file))
+      {
+         try
+         {
+            stream = new GZIPInputStream(new BufferedInputStream(stream, BUFFER_SIZE), BUFFER_SIZE);
+         }
+         catch (IOException e)
+         {
+            stream.close();
+            throw e;
+         }
+      }
+      return new BufferedInputStream(stream, BUFFER_SIZE);
+   }
+
+   /** Returns true if the compression parameter is none, gzip or not set. */
+   public static boolean isSupported(String compression)
+   {
+      return compression == null || NONE.equalsIgnoreCase(compression) || GZIP.equalsIgnoreCase(compression);
+   }
+
+   /** Returns true if the compression parameter selects gzip. */
+   public static boolean isGzip(String compression)
+   {
+      return GZIP.equalsIgnoreCase(compression);
+   }
+
+   /** Returns the name the file should be written to with the compression. */
+   public static File getOutputFile(File file, String compression)
+   {
+      if (isGzip(compression) && !isCompressed(file))
+      {
+         return new File(file.getPath() + GZIP_SUFFIX);
+      }
+      return file;
+   }
+
+   /**
+    * Wraps a stream so the data written to it is compressed. Closing the
+    * returned stream closes the given stream.
+    */
+   public static OutputStream compress(OutputStream stream, String compression) throws IOException
+   {
+      if (isGzip(compression))
+      {
+         return new GZIPOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE), BUFFER_SIZE);
+      }
+      return stream;
+   }
+
+   /** Creates the file, compressing what is written to it if requested. */
+   public static OutputStream create(File file, String compression) throws IOException
+   {
+      return compress(new FileOutputStream(file), compression);
+   }
+}
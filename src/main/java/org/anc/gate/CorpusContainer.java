@@ -0,0 +1,429 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A read-only view of a corpus packed into a single file by
+ * {@link CorpusPacker}.
+ * <p>
+ * The container holds the headers, text and standoff files of a corpus
+ * directory. Entries are named by their path relative to the directory that
+ * contains the container file, with '/' as the separator, so a container
+ * placed in the root of a corpus stands in for the files below it. Loaders
+ * look up the same File objects they would otherwise open, and the container
+ * answers for those below its directory without touching the file system.
+ * <p>
+ * The layout is a directory index followed by the entry data:
+ * <pre>
+ * int magic, int version, int count
+ * count * (int name length, UTF-8 name, long offset, long length)
+ * entry data
+ * </pre>
+ * The file is memory mapped when it is opened and the index is read into an
+ * {@link IdTable}, so finding an entry is a hash lookup and reading it is a
+ * slice of the mapped buffer. Containers larger than 2GB can not be mapped in
+ * one piece, so their entries are mapped one at a time as they are used.
+ * <p>
+ * Open containers are cached by URL and shared between threads. Compressed
+ * entries (see {@link Compression}) are inflated as they are read.
+ */
+public class CorpusContainer
+{
+   /** "GrPK" in ASCII. */
+   static final int MAGIC = 0x4772504B;
+   static final int VERSION = 1;
+   /** The suffix used by the packer for new containers. */
+   public static final String SUFFIX = ".gpk";
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final ConcurrentMap<String, CorpusContainer> cache = new ConcurrentHashMap<String, CorpusContainer>();
+
+   private final File file;
+   private final String root;
+   private final long modified;
+   private final RandomAccessFile input;
+   private final FileChannel channel;
+   /** The whole container, or null if it is too large to map at once. */
+   private final ByteBuffer mapped;
+   private final IdTable index;
+   private final List<String> names;
+   private final long[] offset;
+   private final long[] length;
+
+   public CorpusContainer(File file) throws IOException
+   {
+      this.file = file;
+      this.root = file.getAbsoluteFile().getParent() + File.separator;
+      this.modified = file.lastModified();
+      this.input = new RandomAccessFile(file, "r");
+      try
+      {
+         channel = input.getChannel();
+         long size = channel.size();
+         mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+         ByteBuffer buffer = mapped;
+         if (buffer == null)
+         {
+            // The index is at the start so only the first part is needed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Integer.MAX_VALUE);
+         }
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+         {
+            throw new IOException(file.getPath() + " is not a corpus container.");
+         }
+         int count = buffer.getInt();
+         index = new IdTable(count);
+         names = new ArrayList<String>(count);
+         offset = new long[count];
+         length = new long[count];
+         byte[] bytes = new byte[256];
+         for (int i = 0; i < count; ++i)
+         {
+            int n = buffer.getInt();
+            if (n > bytes.length)
+            {
+               bytes = new byte[n * 2];
+            }
+            buffer.get(bytes, 0, n);
+            String name = new String(bytes, 0, n, UTF8);
+            names.add(name);
+            index.put(name, i);
+            offset[i] = buffer.getLong();
+            length[i] = buffer.getLong();
+         }
+      }
+      catch (IOException e)
+      {
+         input.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Returns the container for the URL, opening it the first time it is
+    * requested or when the file has been replaced.
+    */
+   public static CorpusContainer get(URL url) throws IOException
+   {
+      File file = FileUtils.toFile(url);
+      if (file == null)
+      {
+         throw new IOException("Corpus containers must be local files: " + url);
+      }
+      String key = file.getAbsolutePath();
+      CorpusContainer container = cache.get(key);
+      if (container != null && container.modified == file.lastModified())
+      {
+         return container;
+      }
+      synchronized (cache)
+      {
+         container = cache.get(key);
+         if (container == null || container.modified != file.lastModified())
+         {
+            if (container != null)
+            {
+               container.close();
+            }
+            container = new CorpusContainer(file);
+            cache.put(key, container);
+         }
+      }
+      return container;
+   }
+
+   /** Closes and forgets all cached containers. */
+   public static void clear()
+   {
+      synchronized (cache)
+      {
+         for (CorpusContainer container : cache.values())
+         {
+            container.close();
+         }
+         cache.clear();
+      }
+   }
+
+   public File getFile()
+   {
+      return file;
+   }
+
+   /** The names of the entries in the order they were packed. */
+   public List<String> getNames()
+   {
+      return Collections.unmodifiableList(names);
+   }
+
+   /** Returns the entry name for the file or null if it is not below the container's directory. */
+   public String getName(File file)
+   {
+      String path = file.getAbsolutePath();
+      if (!path.startsWith(root))
+      {
+         return null;
+      }
+      path = path.substring(root.length());
+      if (File.separatorChar != '/')
+      {
+         path = path.replace(File.separatorChar, '/');
+      }
+      return path;
+   }
+
+   public boolean contains(File file)
+   {
+      String name = getName(file);
+      return name != null && index.get(name) != IdTable.MISSING;
+   }
+
+   /** Returns the length of the entry for the file or -1 if there is none. */
+   public long length(File file)
+   {
+      int i = indexOf(file);
+      return i == IdTable.MISSING ? -1 : length[i];
+   }
+
+   /**
+    * Returns the bytes of the entry for the file as a read-only buffer, or
+    * null if there is no such entry. Compressed entries are returned as they
+    * are stored.
+    */
+   public ByteBuffer getBuffer(File file) throws IOException
+   {
+      int i = indexOf(file);
+      if (i == IdTable.MISSING)
+      {
+         return null;
+      }
+      if (length[i] > Integer.MAX_VALUE)
+      {
+         throw new IOException(file.getPath() + " is too large to be mapped.");
+      }
+      if (mapped == null)
+      {
+         return channel.map(FileChannel.MapMode.READ_ONLY, offset[i], length[i]);
+      }
+      ByteBuffer buffer = mapped.duplicate();
+      buffer.position((int) offset[i]);
+      buffer.limit((int) (offset[i] + length[i]));
+      return buffer.slice();
+   }
+
+   /**
+    * Opens a stream over the entry for the file. Compressed entries are
+    * inflated as they are read.
+    */
+   public InputStream open(File file) throws IOException
+   {
+      ByteBuffer buffer = getBuffer(file);
+      if (buffer == null)
+      {
+         throw new IOException(file.getPath() + " is not in " + this.file.getPath());
+      }
+      InputStream stream = new BufferInputStream(buffer);
+      if (Compression.isCompressed(file))
+      {
+         stream = new GZIPInputStream(stream, 64 * 1024);
+      }
+      return stream;
+   }
+
+   /**
+    * Copies the entry for the file to a temporary file, inflating it if it is
+    * compressed, for code that can only read files from disk. The caller
+    * should delete the copy when it is done with it.
+    */
+   public File extract(File file) throws IOException
+   {
+      String suffix = file.getName();
+      if (Compression.isCompressed(file))
+      {
+         suffix = suffix.substring(0, suffix.length() - Compression.GZIP_SUFFIX.length());
+      }
+      File temp = File.createTempFile("graf", "-" + suffix);
+      boolean done = false;
+      InputStream in = open(file);
+      try
+      {
+         OutputStream out = new FileOutputStream(temp);
+         try
+         {
+            byte[] buffer = new byte[64 * 1024];
+            int n = in.read(buffer);
+            while (n >= 0)
+            {
+               out.write(buffer, 0, n);
+               n = in.read(buffer);
+            }
+         }
+         finally
+         {
+            out.close();
+         }
+         done = true;
+      }
+      finally
+      {
+         in.close();
+         if (!done)
+         {
+            temp.delete();
+         }
+      }
+      return temp;
+   }
+
+   public void close()
+   {
+      try
+      {
+         input.close();
+      }
+      catch (IOException e)
+      {
+         // Nothing useful can be done, the mapped buffers remain valid.
+      }
+   }
+
+   private int indexOf(File file)
+   {
+      String name = getName(file);
+      return name == null ? IdTable.MISSING : index.get(name);
+   }
+
+   // The static methods below take a container that may be null, so loaders
+   // can call them whether or not a container has been configured.
+
+   /**
+    * Returns the file, or its compressed version, that exists in the container
+    * or on disk. See {@link Compression#resolve(File)}.
+    */
+   public static File resolve(CorpusContainer container, File file)
+   {
+      if (container != null)
+      {
+         if (container.contains(file))
+         {
+            return file;
+         }
+         File compressed = new File(file.getPath() + Compression.GZIP_SUFFIX);
+         if (container.contains(compressed))
+         {
+            return compressed;
+         }
+      }
+      return Compression.resolve(file);
+   }
+
+   public static boolean exists(CorpusContainer container, File file)
+   {
+      return (container != null && container.contains(file)) || file.exists();
+   }
+
+   public static long length(CorpusContainer container, File file)
+   {
+      if (container != null && container.contains(file))
+      {
+         return container.length(file);
+      }
+      return file.length();
+   }
+
+   /** Returns true if the file is read from the container rather than the disk. */
+   public static boolean isPacked(CorpusContainer container, File file)
+   {
+      return container != null && container.contains(file);
+   }
+
+   /** Opens the file from the container if it is there, otherwise from disk. */
+   public static InputStream open(CorpusContainer container, File file) throws IOException
+   {
+      if (container != null && container.contains(file))
+      {
+         return container.open(file);
+      }
+      return Compression.open(file);
+   }
+
+   /** An InputStream over a ByteBuffer, so mapped entries are read without copying them first. */
+   private static class BufferInputStream extends InputStream
+   {
+      private final ByteBuffer buffer;
+
+      BufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read()
+      {
+         return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int off, int len)
+      {
+         if (len == 0)
+         {
+            return 0;
+         }
+         if (!buffer.hasRemaining())
+         {
+            return -1;
+         }
+         int n = Math.min(len, buffer.remaining());
+         buffer.get(bytes, off, n);
+         return n;
+      }
+
+      @Override
+      public int available()
+      {
+         return buffer.remaining();
+      }
+
+      @Override
+      public long skip(long n)
+      {
+         int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+         buffer.position(buffer.position() + skipped);
+         return skipped;
+      }
+   }
+}
@@ -0,0 +1,394 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A list of the files in a corpus with their sizes and modification times, so
+ * loaders can find out which standoff files exist without asking the file
+ * system for every document.
+ * <p>
+ * A manifest is either built by scanning a corpus directory or read from an
+ * index file written by {@link #write(File)}. As with {@link CorpusContainer},
+ * files are named by their path relative to the corpus directory, which for an
+ * index file is the directory that contains it. The index can be built with
+ * <code>java org.anc.gate.CorpusManifest corpus-directory [name]</code>.
+ * <p>
+ * The manifest is a snapshot. Files added to the corpus after it was built
+ * are not seen until it is built again, and the sizes and modification times
+ * it lists may be out of date, so a {@link StandoffCache} checks its sidecars
+ * against the file system instead.
+ */
+public class CorpusManifest
+{
+   /** "GrMF" in ASCII. */
+   private static final int MAGIC = 0x47724D46;
+   private static final int VERSION = 1;
+   /** The default name of the index file. */
+   public static final String DEFAULT_NAME = "corpus.manifest";
+
+   private static final ConcurrentMap<String, CorpusManifest> cache = new ConcurrentHashMap<String, CorpusManifest>();
+
+   private final String root;
+   private final IdTable index;
+   private final List<String> names;
+   private final long[] size;
+   private final long[] modified;
+   /** The modification time of the index file, or 0 if the directory was scanned. */
+   private final long indexModified;
+   /** Layer types keyed by the path of the document without its extension. */
+   private final Map<String, List<String>> layers = new HashMap<String, List<String>>();
+
+   private CorpusManifest(File root, List<String> names, long[] size, long[] modified, long indexModified)
+   {
+      this.root = root.getAbsolutePath() + File.separator;
+      this.indexModified = indexModified;
+      this.names = names;
+      this.size = size;
+      this.modified = modified;
+      this.index = new IdTable(names.size());
+      for (int i = 0; i < names.size(); ++i)
+      {
+         String name = names.get(i);
+         index.put(name, i);
+      }
+      // Layers are matched to documents once every name is in the index.
+      for (String name : names)
+      {
+         addLayer(name);
+      }
+   }
+
+   /** Lists the files below a corpus directory. */
+   public static CorpusManifest scan(File directory)
+   {
+      List<String> names = new ArrayList<String>();
+      List<File> files = new ArrayList<File>();
+      collect(directory, "", names, files);
+      long[] size = new long[files.size()];
+      long[] modified = new long[files.size()];
+      for (int i = 0; i < files.size(); ++i)
+      {
+         size[i] = files.get(i).length();
+         modified[i] = files.get(i).lastModified();
+      }
+      return new CorpusManifest(directory, names, size, modified, 0);
+   }
+
+   /** Reads an index file written by {@link #write(File)}. */
+   public static CorpusManifest read(File file) throws IOException
+   {
+      long indexModified = file.lastModified();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+      try
+      {
+         if (in.readInt() != MAGIC || in.readInt() != VERSION)
+         {
+            throw new IOException(file.getPath() + " is not a corpus manifest.");
+         }
+         int count = in.readInt();
+         List<String> names = new ArrayList<String>(count);
+         long[] size = new long[count];
+         long[] modified = new long[count];
+         for (int i = 0; i < count; ++i)
+         {
+            names.add(in.readUTF());
+            size[i] = in.readLong();
+            modified[i] = in.readLong();
+         }
+         return new CorpusManifest(file.getAbsoluteFile().getParentFile(), names, size, modified, indexModified);
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Returns the manifest for the URL. A directory is scanned, anything else is
+    * read as an index file. Manifests are cached until {@link #clear()} is
+    * called, except that an index file is read again once it has been
+    * modified.
+    */
+   public static CorpusManifest get(URL url) throws IOException
+   {
+      File file = FileUtils.toFile(url);
+      if (file == null)
+      {
+         throw new IOException("Corpus manifests must be local files: " + url);
+      }
+      String key = file.getAbsolutePath();
+      CorpusManifest manifest = cache.get(key);
+      if (manifest != null && manifest.isCurrent(file))
+      {
+         return manifest;
+      }
+      synchronized (cache)
+      {
+         manifest = cache.get(key);
+         if (manifest == null || !manifest.isCurrent(file))
+         {
+            manifest = file.isDirectory() ? scan(file) : read(file);
+            cache.put(key, manifest);
+         }
+      }
+      return manifest;
+   }
+
+   public static void clear()
+   {
+      cache.clear();
+   }
+
+   /**
+    * Writes the manifest to an index file. The file should be placed in the
+    * corpus directory since names are relative to it.
+    */
+   public void write(File file) throws IOException
+   {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      try
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(names.size());
+         for (int i = 0; i < names.size(); ++i)
+         {
+            out.writeUTF(names.get(i));
+            out.writeLong(size[i]);
+            out.writeLong(modified[i]);
+         }
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+
+   public static void main(String[] args) throws IOException
+   {
+      if (args.length < 1 || args.length > 2)
+      {
+         System.out.println("Usage: java " + CorpusManifest.class.getName() + " corpus-directory [name]");
+         return;
+      }
+      File directory = new File(args[0]);
+      if (!directory.isDirectory())
+      {
+         System.out.println(directory.getPath() + " is not a directory.");
+         return;
+      }
+      File file = new File(directory, args.length > 1 ? args[1] : DEFAULT_NAME);
+      CorpusManifest manifest = scan(directory);
+      manifest.write(file);
+      System.out.println("Wrote " + manifest.size() + " files to " + file.getPath());
+   }
+
+   /** The number of files in the manifest. */
+   public int size()
+   {
+      return names.size();
+   }
+
+   /**
+    * Returns true if the file is below the corpus directory, so the manifest
+    * says whether it exists.
+    */
+   public boolean covers(File file)
+   {
+      return getName(file) != null;
+   }
+
+   /** Returns true if the file is in the manifest. */
+   public boolean contains(File file)
+   {
+      return indexOf(file) != IdTable.MISSING;
+   }
+
+   /** Returns the size of the file when the manifest was built, or -1 if it is not listed. */
+   public long length(File file)
+   {
+      int i = indexOf(file);
+      return i == IdTable.MISSING ? -1 : size[i];
+   }
+
+   /** Returns the modification time of the file when the manifest was built, or 0 if it is not listed. */
+   public long lastModified(File file)
+   {
+      int i = indexOf(file);
+      return i == IdTable.MISSING ? 0 : modified[i];
+   }
+
+   /**
+    * Returns the file if it is listed, otherwise its compressed version if
+    * that is listed, otherwise null.
+    */
+   public File resolve(File file)
+   {
+      if (contains(file))
+      {
+         return file;
+      }
+      File compressed = new File(file.getPath() + Compression.GZIP_SUFFIX);
+      if (contains(compressed))
+      {
+         return compressed;
+      }
+      return null;
+   }
+
+   /**
+    * Returns the types of the standoff files listed for a document, i.e. the
+    * <i>type</i> of each <i>basename-type.xml</i> next to the document. The
+    * document may be given as its text, header or any other file named
+    * <i>basename.ext</i>.
+    */
+   public List<String> getLayers(File document)
+   {
+      String name = getName(document);
+      if (name == null)
+      {
+         return Collections.emptyList();
+      }
+      int dot = name.lastIndexOf('.');
+      if (dot > name.lastIndexOf('/'))
+      {
+         name = name.substring(0, dot);
+      }
+      List<String> types = layers.get(name);
+      if (types == null)
+      {
+         return Collections.emptyList();
+      }
+      return Collections.unmodifiableList(types);
+   }
+
+   /** Returns false if the manifest was read from an index file that has since been modified. */
+   private boolean isCurrent(File file)
+   {
+      return indexModified == 0 || indexModified == file.lastModified();
+   }
+
+   private String getName(File file)
+   {
+      String path = file.getAbsolutePath();
+      if (!path.startsWith(root))
+      {
+         return null;
+      }
+      path = path.substring(root.length());
+      if (File.separatorChar != '/')
+      {
+         path = path.replace(File.separatorChar, '/');
+      }
+      return path;
+   }
+
+   private int indexOf(File file)
+   {
+      String name = getName(file);
+      return name == null ? IdTable.MISSING : index.get(name);
+   }
+
+   /**
+    * Records basename-type.xml and basename-type.xml.gz as a layer of
+    * basename. Both parts may contain dashes, so the longest basename with a
+    * header or text file is used, or the name is split at the last dash if
+    * there is none.
+    */
+   private void addLayer(String name)
+   {
+      if (name.endsWith(Compression.GZIP_SUFFIX))
+      {
+         name = name.substring(0, name.length() - Compression.GZIP_SUFFIX.length());
+      }
+      if (!name.endsWith(".xml"))
+      {
+         return;
+      }
+      name = name.substring(0, name.length() - 4);
+      int slash = name.lastIndexOf('/');
+      int dash = name.lastIndexOf('-');
+      if (dash <= slash + 1)
+      {
+         return;
+      }
+      for (int i = dash; i > slash + 1; i = name.lastIndexOf('-', i - 1))
+      {
+         String document = name.substring(0, i);
+         if (index.get(document + ".hdr") != IdTable.MISSING || index.get(document + ".txt") != IdTable.MISSING)
+         {
+            dash = i;
+            break;
+         }
+      }
+      String document = name.substring(0, dash);
+      String type = name.substring(dash + 1);
+      List<String> types = layers.get(document);
+      if (types == null)
+      {
+         types = new ArrayList<String>(4);
+         layers.put(document, types);
+      }
+      if (!types.contains(type))
+      {
+         types.add(type);
+      }
+   }
+
+   private static void collect(File directory, String prefix, List<String> names, List<File> files)
+   {
+      File[] children = directory.listFiles();
+      if (children == null)
+      {
+         return;
+      }
+      Arrays.sort(children);
+      for (File child : children)
+      {
+         String name = prefix + child.getName();
+         if (child.isDirectory())
+         {
+            collect(child, name + "/", names, files);
+         }
+         else
+         {
+            names.add(name);
+            files.add(child);
+         }
+      }
+   }
+}
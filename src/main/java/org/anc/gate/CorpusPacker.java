@@ -0,0 +1,205 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs the headers, text and standoff files of a corpus directory into a
+ * single {@link CorpusContainer}.
+ * <p>
+ * Usage: <code>java org.anc.gate.CorpusPacker corpus-directory [name]</code>
+ * <p>
+ * The container is written to the corpus directory itself, since entry names
+ * are relative to the directory that holds the container. The default name is
+ * corpus.gpk. Files ending in .hdr, .txt and .xml are packed, along with their
+ * compressed .gz versions. The container is written to a temporary file first
+ * and renamed when it is complete.
+ */
+public class CorpusPacker
+{
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String[] SUFFIXES = { ".hdr", ".txt", ".xml" };
+
+   private final File directory;
+
+   public CorpusPacker(File directory)
+   {
+      this.directory = directory;
+   }
+
+   public static void main(String[] args) throws IOException
+   {
+      if (args.length < 1 || args.length > 2)
+      {
+         System.out.println("Usage: java " + CorpusPacker.class.getName() + " corpus-directory [name]");
+         return;
+      }
+      File directory = new File(args[0]);
+      if (!directory.isDirectory())
+      {
+         System.out.println(directory.getPath() + " is not a directory.");
+         return;
+      }
+      String name = args.length > 1 ? args[1] : "corpus" + CorpusContainer.SUFFIX;
+      long start = System.nanoTime();
+      CorpusPacker packer = new CorpusPacker(directory);
+      File container = new File(directory, name);
+      int count = packer.pack(container);
+      System.out.println("Packed " + count + " files into " + container.getPath() + " ("
+              + container.length() + " bytes) in " + (System.nanoTime() - start) / 1000000 + " ms");
+   }
+
+   /**
+    * Writes the container and returns the number of files packed.
+    */
+   public int pack(File container) throws IOException
+   {
+      File parent = container.getAbsoluteFile().getParentFile();
+      if (!parent.equals(directory.getAbsoluteFile()))
+      {
+         throw new IOException("The container must be written to " + directory.getPath());
+      }
+      List<String> names = new ArrayList<String>();
+      List<File> files = new ArrayList<File>();
+      collect(directory, "", container.getName(), names, files);
+
+      // The index is written first, so the data offsets are computed up front.
+      long offset = 12;
+      byte[][] encoded = new byte[names.size()][];
+      for (int i = 0; i < names.size(); ++i)
+      {
+         encoded[i] = names.get(i).getBytes(UTF8);
+         offset += 4 + encoded[i].length + 16;
+      }
+
+      File temp = File.createTempFile(container.getName(), ".tmp", parent);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+      try
+      {
+         out.writeInt(CorpusContainer.MAGIC);
+         out.writeInt(CorpusContainer.VERSION);
+         out.writeInt(names.size());
+         for (int i = 0; i < names.size(); ++i)
+         {
+            long length = files.get(i).length();
+            out.writeInt(encoded[i].length);
+            out.write(encoded[i]);
+            out.writeLong(offset);
+            out.writeLong(length);
+            offset += length;
+         }
+         byte[] buffer = new byte[64 * 1024];
+         for (File file : files)
+         {
+            copy(file, out, buffer);
+         }
+      }
+      catch (IOException e)
+      {
+         out.close();
+         temp.delete();
+         throw e;
+      }
+      out.close();
+      if (container.exists() && !container.delete())
+      {
+         temp.delete();
+         throw new IOException("Unable to replace " + container.getPath());
+      }
+      if (!temp.renameTo(container))
+      {
+         temp.delete();
+         throw new IOException("Unable to create " + container.getPath());
+      }
+      return names.size();
+   }
+
+   /** Adds the corpus files below the directory in a stable order. */
+   private static void collect(File directory, String prefix, String exclude, List<String> names, List<File> files)
+   {
+      File[] children = directory.listFiles();
+      if (children == null)
+      {
+         return;
+      }
+      Arrays.sort(children);
+      for (File child : children)
+      {
+         String name = prefix + child.getName();
+         if (child.isDirectory())
+         {
+            collect(child, name + "/", null, names, files);
+         }
+         else if (!child.getName().equals(exclude) && isCorpusFile(child.getName()))
+         {
+            names.add(name);
+            files.add(child);
+         }
+      }
+   }
+
+   private static boolean isCorpusFile(String name)
+   {
+      if (name.endsWith(Compression.GZIP_SUFFIX))
+      {
+         name = name.substring(0, name.length() - Compression.GZIP_SUFFIX.length());
+      }
+      for (String suffix : SUFFIXES)
+      {
+         if (name.endsWith(suffix))
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /** Copies exactly the number of bytes recorded in the index. */
+   private static void copy(File file, DataOutputStream out, byte[] buffer) throws IOException
+   {
+      long remaining = file.length();
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         while (remaining > 0)
+         {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0)
+            {
+               throw new IOException(file.getPath() + " changed while it was being packed.");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+         }
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+}
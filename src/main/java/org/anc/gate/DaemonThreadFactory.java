@@ -0,0 +1,37 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the background executors used by the loaders, the
+ * prefetcher and the write behind queue. The threads are daemons so an idle
+ * pool does not keep GATE from exiting.
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+   private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+   public Thread newThread(Runnable runnable)
+   {
+      Thread thread = delegate.newThread(runnable);
+      thread.setDaemon(true);
+      return thread;
+   }
+}
@@ -0,0 +1,120 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.xces.graf.api.IEdge;
+import org.xces.graf.api.INode;
+
+/**
+ * How the out edges of a node are stored in the graf:edge feature.
+ * <p>
+ * By default the ids of the child nodes are joined into a single string,
+ * each followed by a space ("n1 n2 n3 "). With the array encoding the feature
+ * value is a String[] of the child ids, which saves building and splitting the
+ * string on layers with many edges. The same array is shared by all the
+ * annotations on a node and must not be modified.
+ * <p>
+ * {@link #decode(Object)} accepts both forms so the save PRs work with
+ * documents loaded either way.
+ */
+public final class EdgeEncoding
+{
+   /** Child ids joined into one space separated string. */
+   public static final String STRING = "string";
+   /** Child ids stored as a String[]. */
+   public static final String ARRAY = "array";
+
+   private EdgeEncoding()
+   {
+   }
+
+   /** Returns true if the encoding parameter selects the array encoding. */
+   public static boolean isArray(String encoding)
+   {
+      return ARRAY.equalsIgnoreCase(encoding);
+   }
+
+   /** Returns the graf:edge value for the child ids. */
+   public static Object encode(String[] ids, boolean array)
+   {
+      if (array)
+      {
+         return ids;
+      }
+      StringBuilder buffer = new StringBuilder();
+      for (String id : ids)
+      {
+         buffer.append(id).append(' ');
+      }
+      return buffer.toString();
+   }
+
+   /**
+    * Returns the graf:edge value for the out edges of the node or null if the
+    * node does not have any.
+    */
+   public static Object encode(INode node, boolean array)
+   {
+      List<IEdge> edges = node.getOutEdges();
+      if (edges.size() == 0)
+      {
+         return null;
+      }
+      String[] ids = new String[edges.size()];
+      int i = 0;
+      for (IEdge e : edges)
+      {
+         ids[i++] = e.getTo().getId();
+      }
+      return encode(ids, array);
+   }
+
+   /** Returns the child ids from a graf:edge value in either encoding. */
+   public static String[] decode(Object value)
+   {
+      if (value == null)
+      {
+         return new String[0];
+      }
+      if (value instanceof String[])
+      {
+         return (String[]) value;
+      }
+      if (value instanceof Collection)
+      {
+         Collection<?> collection = (Collection<?>) value;
+         String[] ids = new String[collection.size()];
+         int i = 0;
+         for (Object id : collection)
+         {
+            ids[i++] = id.toString();
+         }
+         return ids;
+      }
+      StringTokenizer tokenizer = new StringTokenizer(value.toString());
+      String[] ids = new String[tokenizer.countTokens()];
+      for (int i = 0; i < ids.length; ++i)
+      {
+         ids[i] = tokenizer.nextToken();
+      }
+      return ids;
+   }
+}
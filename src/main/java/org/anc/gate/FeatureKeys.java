@@ -0,0 +1,103 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A process wide symbol table for the keys used when nested feature structures
+ * are flattened into a GATE FeatureMap.
+ * <p>
+ * The feature <i>f</i> inside the feature structure of feature <i>base</i> is
+ * stored with the key <code>base/f</code>. Rather than concatenating a new
+ * string for every feature of every annotation, each (base, name) pair is mapped
+ * to a single canonical key. Once a key has been seen, looking it up again does
+ * not allocate anything and all the FeatureMaps share the same key string.
+ * <p>
+ * The number of distinct feature paths in a corpus is small so entries are
+ * never evicted. Call {@link #clear()} to release them.
+ */
+public final class FeatureKeys
+{
+   /** Keys for top level features, i.e. features without a base. */
+   private static final ConcurrentMap<String, String> roots = new ConcurrentHashMap<String, String>();
+   /** Child keys indexed by their base key and then by feature name. */
+   private static final ConcurrentMap<String, ConcurrentMap<String, String>> children =
+           new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+   private FeatureKeys()
+   {
+   }
+
+   /** Returns the canonical key for a top level feature. */
+   public static String get(String name)
+   {
+      return canonical(roots, name, name);
+   }
+
+   /**
+    * Returns the canonical key for the feature <code>name</code> nested in
+    * <code>base</code>, or for a top level feature if <code>base</code> is null.
+    * A feature without a name has no key of its own, so <code>base</code> is
+    * returned when <code>name</code> is null.
+    */
+   public static String get(String base, String name)
+   {
+      if (name == null)
+      {
+         return base;
+      }
+      if (base == null)
+      {
+         return get(name);
+      }
+      ConcurrentMap<String, String> names = children.get(base);
+      if (names == null)
+      {
+         names = new ConcurrentHashMap<String, String>();
+         ConcurrentMap<String, String> existing = children.putIfAbsent(base, names);
+         if (existing != null)
+         {
+            names = existing;
+         }
+      }
+      String key = names.get(name);
+      if (key == null)
+      {
+         key = canonical(names, name, base + "/" + name);
+      }
+      return key;
+   }
+
+   public static void clear()
+   {
+      roots.clear();
+      children.clear();
+   }
+
+   private static String canonical(ConcurrentMap<String, String> map, String name, String key)
+   {
+      if (name == null)
+      {
+         return key;
+      }
+      String existing = map.putIfAbsent(name, key);
+      return existing == null ? key : existing;
+   }
+}
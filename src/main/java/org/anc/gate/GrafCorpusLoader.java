@@ -0,0 +1,378 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import gate.util.Out;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates GrafDocuments and adds them to a corpus, reading and parsing the
+ * files on a thread pool.
+ * <p>
+ * Opening a GrafDocument reads the header, decodes the text and parses the
+ * standoff files, and GATE does this for one document at a time. The loader
+ * does this work for up to <code>queueSize</code> documents ahead on
+ * <code>threads</code> threads. The Factory is not thread safe, so the
+ * documents themselves are created on the calling thread, from the prepared
+ * text and layers, and added to the corpus in the order they were given. The
+ * queue bounds the number of prepared documents held in memory that have not
+ * been added yet.
+ * <p>
+ * The documents per second and bytes per second (the text and standoff files
+ * read while creating the documents) are printed every
+ * <code>reportInterval</code> documents and when loading ends.
+ */
+public class GrafCorpusLoader
+{
+   public static final String DOCUMENT_CLASS = GrafDocument.class.getName();
+
+   private final int threads;
+   private final int queueSize;
+   private final FeatureMap parameters = Factory.newFeatureMap();
+   private boolean failFast = true;
+   private int reportInterval = 100;
+
+   private ExecutorService executor;
+   private int documentCount;
+   private long byteCount;
+   private long startTime;
+
+   /**
+    * @param threads the number of documents created at the same time, or zero
+    *           for one per processor
+    * @param queueSize the number of documents that may be waiting to be added
+    *           to the corpus, including the ones being created
+    */
+   public GrafCorpusLoader(int threads, int queueSize)
+   {
+      this.threads = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+      this.queueSize = Math.max(queueSize, this.threads);
+   }
+
+   /**
+    * Sets an init parameter (e.g. resourceHeader or loadStandoff) that is
+    * passed to every GrafDocument.
+    */
+   public void setParameter(String name, Object value)
+   {
+      parameters.put(name, value);
+   }
+
+   /**
+    * If true (the default) loading stops at the first document that can not be
+    * created, otherwise the document is reported and skipped.
+    */
+   public void setFailFast(boolean failFast)
+   {
+      this.failFast = failFast;
+   }
+
+   /** Report progress every <i>n</i> documents, or never if <i>n</i> is zero. */
+   public void setReportInterval(int reportInterval)
+   {
+      this.reportInterval = reportInterval;
+   }
+
+   /**
+    * Adds a document for every header file (*.hdr) below the directory to the
+    * corpus, in the order of their paths.
+    *
+    * @return the number of documents added
+    */
+   public int load(File directory, Corpus corpus) throws ResourceInstantiationException
+   {
+      List<URL> headers = new ArrayList<URL>();
+      try
+      {
+         collect(directory, headers);
+      }
+      catch (MalformedURLException e)
+      {
+         throw new ResourceInstantiationException(e);
+      }
+      return load(headers, corpus);
+   }
+
+   /**
+    * Creates a document for each header and adds them to the corpus in the
+    * same order.
+    *
+    * @return the number of documents added
+    */
+   public int load(List<URL> headers, Corpus corpus) throws ResourceInstantiationException
+   {
+      if (executor == null)
+      {
+         executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+      }
+      documentCount = 0;
+      byteCount = 0;
+      startTime = System.nanoTime();
+      int added = 0;
+      int next = 0;
+      LinkedList<Future<GrafDocument.Prepared>> queue = new LinkedList<Future<GrafDocument.Prepared>>();
+      try
+      {
+         while (next < headers.size() || !queue.isEmpty())
+         {
+            while (next < headers.size() && queue.size() < queueSize)
+            {
+               queue.add(executor.submit(new LoadTask(headers.get(next++))));
+            }
+            URL header = headers.get(next - queue.size());
+            GrafDocument.Prepared work = take(queue.removeFirst());
+            if (work == null)
+            {
+               continue;
+            }
+            Document document = create(header, work);
+            if (document == null)
+            {
+               continue;
+            }
+            corpus.add(document);
+            ++added;
+            ++documentCount;
+            byteCount += work.bytes;
+            if (reportInterval > 0 && documentCount % reportInterval == 0)
+            {
+               report();
+            }
+         }
+      }
+      finally
+      {
+         // Only has an effect if we are leaving early because of an exception.
+         // The pool threads never create documents, so there is nothing to
+         // delete.
+         for (Future<GrafDocument.Prepared> future : queue)
+         {
+            future.cancel(true);
+         }
+      }
+      report();
+      return added;
+   }
+
+   public int getDocumentCount()
+   {
+      return documentCount;
+   }
+
+   public long getByteCount()
+   {
+      return byteCount;
+   }
+
+   public double getDocumentsPerSecond()
+   {
+      return documentCount / seconds();
+   }
+
+   public double getBytesPerSecond()
+   {
+      return byteCount / seconds();
+   }
+
+   public void shutdown()
+   {
+      if (executor != null)
+      {
+         executor.shutdownNow();
+         executor = null;
+      }
+   }
+
+   /**
+    * Reads the text and parses the standoff files for a header. Called on the
+    * pool threads, so it must not use the Factory.
+    */
+   GrafDocument.Prepared prepare(URL header) throws Exception
+   {
+      URL resourceHeader;
+      URL containerUrl;
+      String contentEncoding;
+      List<String> types;
+      boolean lazy;
+      synchronized (parameters)
+      {
+         resourceHeader = toUrl(parameters.get("resourceHeader"));
+         containerUrl = toUrl(parameters.get("containerUrl"));
+         contentEncoding = (String) parameters.get("contentEncoding");
+         types = toList(parameters.get("standoffAnnotations"));
+         lazy = Boolean.TRUE.equals(parameters.get("lazy"));
+      }
+      return GrafDocument.prepare(header, resourceHeader, containerUrl, contentEncoding, types, !lazy);
+   }
+
+   /**
+    * Creates the document for a header. Called on the thread that called
+    * load(), with the result of {@link #prepare(URL)} available to
+    * GrafDocument.init().
+    */
+   protected Document createDocument(URL header) throws ResourceInstantiationException
+   {
+      FeatureMap params = Factory.newFeatureMap();
+      synchronized (parameters)
+      {
+         params.putAll(parameters);
+      }
+      params.put(Document.DOCUMENT_URL_PARAMETER_NAME, header);
+      String name = new File(header.getPath()).getName();
+      if (name.endsWith(".hdr"))
+      {
+         name = name.substring(0, name.length() - 4);
+      }
+      return (Document) Factory.createResource(DOCUMENT_CLASS, params, Factory.newFeatureMap(), name);
+   }
+
+   protected void report()
+   {
+      Out.prln("Loaded " + documentCount + " documents, "
+              + String.format("%.1f docs/sec, %.2f MB/sec", getDocumentsPerSecond(), getBytesPerSecond() / (1024 * 1024)));
+   }
+
+   /**
+    * Creates a prepared document. Returns null if the document could not be
+    * created and failFast is false.
+    */
+   private Document create(URL header, GrafDocument.Prepared work) throws ResourceInstantiationException
+   {
+      GrafDocument.setPrepared(work);
+      try
+      {
+         return createDocument(header);
+      }
+      catch (ResourceInstantiationException e)
+      {
+         if (failFast)
+         {
+            throw e;
+         }
+         Out.prln(e.getMessage());
+         return null;
+      }
+      finally
+      {
+         GrafDocument.setPrepared(null);
+      }
+   }
+
+   /**
+    * Waits for a document to be prepared. Returns null if it could not be
+    * prepared and failFast is false.
+    */
+   private GrafDocument.Prepared take(Future<GrafDocument.Prepared> future) throws ResourceInstantiationException
+   {
+      try
+      {
+         return future.get();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new ResourceInstantiationException("Interrupted while loading the corpus.", e);
+      }
+      catch (java.util.concurrent.ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (failFast)
+         {
+            if (cause instanceof ResourceInstantiationException)
+            {
+               throw (ResourceInstantiationException) cause;
+            }
+            throw new ResourceInstantiationException(cause);
+         }
+         Out.prln(cause.getMessage());
+         return null;
+      }
+   }
+
+   private static URL toUrl(Object value) throws MalformedURLException
+   {
+      if (value == null || value instanceof URL)
+      {
+         return (URL) value;
+      }
+      return new URL(value.toString());
+   }
+
+   @SuppressWarnings("unchecked")
+   private static List<String> toList(Object value)
+   {
+      return value == null ? null : new ArrayList<String>((List<String>) value);
+   }
+
+   private double seconds()
+   {
+      double seconds = (System.nanoTime() - startTime) / 1.0e9;
+      return seconds > 0 ? seconds : Double.MIN_VALUE;
+   }
+
+   private static void collect(File directory, List<URL> headers) throws MalformedURLException
+   {
+      File[] children = directory.listFiles();
+      if (children == null)
+      {
+         return;
+      }
+      Arrays.sort(children);
+      for (File child : children)
+      {
+         if (child.isDirectory())
+         {
+            collect(child, headers);
+         }
+         else if (child.getName().endsWith(".hdr"))
+         {
+            headers.add(child.toURI().toURL());
+         }
+      }
+   }
+
+   private class LoadTask implements Callable<GrafDocument.Prepared>
+   {
+      private final URL header;
+
+      LoadTask(URL header)
+      {
+         this.header = header;
+      }
+
+      public GrafDocument.Prepared call() throws Exception
+      {
+         return prepare(header);
+      }
+   }
+}
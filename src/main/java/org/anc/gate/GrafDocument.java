@@ -34,30 +34,43 @@ import gate.util.InvalidOffsetException;
 import gate.util.Out;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.anc.io.UTF8Reader;
 import org.apache.commons.io.FileUtils;
 import org.xces.graf.api.GrafException;
 import org.xces.graf.api.IAnnotation;
 import org.xces.graf.api.IAnnotationSpace;
-import org.xces.graf.api.IEdge;
 import org.xces.graf.api.IFeature;
 import org.xces.graf.api.IFeatureStructure;
 import org.xces.graf.api.IGraph;
 import org.xces.graf.api.INode;
-import org.xces.graf.api.IRegion;
 import org.xces.graf.io.GrafParser;
 import org.xces.graf.io.dom.DocumentHeader;
 import org.xces.graf.io.dom.ResourceHeader;
-import org.xces.graf.util.GraphUtils;
 import org.xml.sax.SAXException;
 
 /**
@@ -71,6 +84,9 @@ import org.xml.sax.SAXException;
 public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageResource
 {
    private static final long serialVersionUID = 2L;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   /** The most chars reserved up front for compressed text, which is inflated into a growing buffer. */
+   private static final int INITIAL_TEXT_LIMIT = 16 * 1024 * 1024;
 
    //   protected transient GetRangeFunction getRangeFn = new GetRangeFunction();
    protected transient int endOfContent = 0;
@@ -81,11 +97,36 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
    private boolean standoffLoaded = false;
    private String contentEncoding = "UTF-8";
    private URL resourceHeader;
+   private URL containerUrl = null;
+   private Boolean lazy = Boolean.FALSE;
+   private Long windowStart = null;
+   private Long windowEnd = null;
+   private String edgeEncoding = EdgeEncoding.STRING;
 
    private Hashtable<String, String> ancAnnotations = null;
    protected AnnotationSet gateAnnotations = null;
+   /** The keys of the annotations added so far, see {@link StandoffLayer#getKey}. */
    protected Set<String> seen = new HashSet<String>();
+   /** The spans of the nodes in the graph being loaded. */
+   protected transient SpanResolver spans;
+   /** Collects the annotations for the graph being loaded so they can be added in offset order. */
+   protected transient AnnotationBatch batch;
    AnnotationSet as;
+   /** Standoff files that have not been loaded yet in lazy mode, keyed by annotation type. */
+   protected transient Map<String, File> pendingLayers = null;
+   /**
+    * Restricts the annotations to the window given by windowStart and
+    * windowEnd. It is applied once a file has been parsed and its features
+    * flattened, so it limits the annotations created but not the parsing.
+    */
+   protected transient AnnotationFilter filter = AnnotationFilter.ALL;
+   /** The packed corpus the header, text and standoff files are read from, or null. */
+   protected transient CorpusContainer container = null;
+   /** The size of the text and standoff files read by init(). */
+   protected transient long bytesLoaded = 0;
+
+   /** Work done for the next document created on this thread, see {@link #setPrepared(Prepared)}. */
+   private static final ThreadLocal<Prepared> prepared = new ThreadLocal<Prepared>();
 
    @RunTime(false)
    @Optional(false)
@@ -100,6 +141,18 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
       return resourceHeader;
    }
 
+   @RunTime(false)
+   @Optional
+   @CreoleParameter(comment = "A packed corpus container to read the header, text and standoff files from.")
+   public void setContainerUrl(URL containerUrl)
+   {
+      this.containerUrl = containerUrl;
+   }
+   public URL getContainerUrl()
+   {
+      return containerUrl;
+   }
+
    @RunTime
    @Optional
    @CreoleParameter(
@@ -165,6 +218,73 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
       return contentEncoding;
    }
 
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "If true each standoff layer is loaded into an annotation set named after its type the first time that set is requested.",
+           defaultValue = "false"
+   )
+   public void setLazy(Boolean lazy)
+   {
+      this.lazy = lazy;
+   }
+   public Boolean getLazy()
+   {
+      return lazy;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "How graf:edge values are stored: \"string\" for space separated ids or \"array\" for a String[].",
+           defaultValue = "string"
+   )
+   public void setEdgeEncoding(String edgeEncoding)
+   {
+      this.edgeEncoding = edgeEncoding;
+   }
+   public String getEdgeEncoding()
+   {
+      return edgeEncoding;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Only annotations that overlap the text starting at this offset are loaded. "
+           + "Standoff XML files are still parsed in full and their features flattened before the window is applied; "
+           + "the window only limits the annotations that are created.")
+   public void setWindowStart(Long windowStart)
+   {
+      this.windowStart = windowStart;
+   }
+   public Long getWindowStart()
+   {
+      return windowStart;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Only annotations that overlap the text before this offset are loaded. "
+           + "See windowStart for what the window saves.")
+   public void setWindowEnd(Long windowEnd)
+   {
+      this.windowEnd = windowEnd;
+   }
+   public Long getWindowEnd()
+   {
+      return windowEnd;
+   }
+
+   /**
+    * Returns the number of bytes of text and standoff annotations read when
+    * the document was created. Layers loaded later in lazy mode are not
+    * counted.
+    */
+   public long getBytesLoaded()
+   {
+      return bytesLoaded;
+   }
+
    public GrafDocument()
    {
    }
@@ -174,9 +294,12 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
    public Resource init() throws ResourceInstantiationException
    {
 //      Out.prln("Initializing GrafDocument.");
+      if (containerUrl != null)
+      {
+         openContainer();
+      }
       super.init();
 
-      IGraph graph;
       File fullPath;
       //from the gate gui
       URL url = super.getSourceUrl();
@@ -189,14 +312,15 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
          Out.println("No file found: sourceUrl = " + url);
          return null;
       }
+      Prepared work = takePrepared(url);
 
       // Load a DocumentHeader object to query the data it contains.
       DocumentHeader docHeader = null;
       try
       {
-         docHeader = new DocumentHeader(fullPath);
+         docHeader = work != null ? work.header : loadHeader(fullPath);
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
          throw new ResourceInstantiationException("Error loading document header.", e);
       }
@@ -224,21 +348,30 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
          throw new ResourceInstantiationException("Document content not specified in the headern.");
       }
 
-      //get the original text, see getContent below
-      File txtFile = new File(fullPath.getParentFile(), filename);
-      if (!txtFile.exists())
-      {
-         throw new ResourceInstantiationException("Primary data not found: " + txtFile.getPath());
-      }
-//      Out.prln("Loading text from " + txtFile.getPath());
       String theContent = null;
-      try
+      if (work != null)
       {
-         theContent = getContent(new File(fullPath.getParentFile(), filename));
+         theContent = work.content;
+         bytesLoaded = work.bytes;
       }
-      catch (IOException e)
+      else
       {
-         throw new ResourceInstantiationException("Unable to load text content.", e);
+         //get the original text, see getContent below
+         File txtFile = CorpusContainer.resolve(container, new File(fullPath.getParentFile(), filename));
+         if (!CorpusContainer.exists(container, txtFile))
+         {
+            throw new ResourceInstantiationException("Primary data not found: " + txtFile.getPath());
+         }
+         bytesLoaded = CorpusContainer.length(container, txtFile);
+//         Out.prln("Loading text from " + txtFile.getPath());
+         try
+         {
+            theContent = getContent(txtFile);
+         }
+         catch (IOException e)
+         {
+            throw new ResourceInstantiationException("Unable to load text content.", e);
+         }
       }
 
       endOfContent = theContent.length();
@@ -252,13 +385,48 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
       DocumentContent docContent = new DocumentContentImpl(theContent);
       //set it to this object, and move on, nothing to see here...
       this.setContent(docContent);
+      filter = new AnnotationFilter(null, null, null,
+              windowStart == null ? 0 : windowStart,
+              windowEnd == null ? Long.MAX_VALUE : windowEnd);
 
+      if (lazy != null && lazy)
+      {
+         try
+         {
+            registerLayers(docHeader, fullPath.getParentFile());
+         }
+         catch (GrafException e)
+         {
+            throw new ResourceInstantiationException("Unable to read the standoff annotation locations.", e);
+         }
+         return this;
+      }
+
+      addStandoff(docHeader, fullPath.getParentFile(), work);
+      return this;
+   }
+
+   /**
+    * Adds the standoff layers in standoffAnnotations, or every layer in the
+    * document header, to the standoffASName set. Layers that were parsed by
+    * {@link #prepare} are taken from <code>work</code>, which may be null. An
+    * annotation that has already been added, e.g. from a layer that is also a
+    * dependency of another layer, is only added once whichever way its layer
+    * was read.
+    */
+   protected void addStandoff(DocumentHeader docHeader, File directory, Prepared work)
+           throws ResourceInstantiationException
+   {
+      IGraph graph;
+      String filename;
       // Get a parser for the standoff annotations
       //AnnotationParser parser = new AnnotationParser();
+      GrafParserPool parsers = null;
+      GrafParser graphParser = null;
       try
       {
-         ResourceHeader header = new ResourceHeader(resourceHeader.openStream());
-         GrafParser graphParser = new GrafParser(header);
+         parsers = ResourceHeaderCache.getParserPool(resourceHeader);
+         graphParser = parsers.acquire();
          //This is a gate Annotation set made using standoffASName, that comes from the
          //gate GUI, Gate uses the setStandoffASName above to fill it, getAnnotations is a gate method, not ours
          gateAnnotations = this.getAnnotations(standoffASName);
@@ -280,19 +448,27 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
                   //get the file name from this iteration, call the parser for that file now...
                   //and pull out the annotations from this iterations standoff file.
                   //  newAnnotations = parser.parse(basePath + System.getProperty("file.separator") + filename);
-                  graph = graphParser.parse(new File(fullPath.getParentFile(), filename));
+                  StandoffLayer layer = work == null ? null : work.layers.get(type);
+                  if (layer != null)
+                  {
+                     layer.addTo(gateAnnotations, endOfContent, filter, EdgeEncoding.isArray(edgeEncoding), seen);
+                     continue;
+                  }
+                  File soFile = CorpusContainer.resolve(container, new File(directory, filename));
+                  bytesLoaded += CorpusContainer.length(container, soFile);
+                  if (Compression.isCompressed(soFile) || CorpusContainer.isPacked(container, soFile))
+                  {
+                     addStreamedLayer(soFile, gateAnnotations);
+                     continue;
+                  }
+                  graph = graphParser.parse(soFile);
                }
                catch (Exception e)
                {
                   Out.println("Could not load graph from " + filename);
                   throw new ResourceInstantiationException(e);
                }
-               //cycle through the nodes only here, making it look easy
-               for (INode node : graph.nodes())
-               {
-                  //this is where the magic happens...see comments in addAnnotations
-                  addAnnotation(node);
-               }
+               addGraph(graph, gateAnnotations);
             }
          }
       }
@@ -305,7 +481,334 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
          Out.prln("Unable to load GrafDocument");
          e.printStackTrace();
       }
-      return this;
+      finally
+      {
+         if (parsers != null)
+         {
+            parsers.release(graphParser);
+         }
+      }
+   }
+
+   /**
+    * Records the standoff files to be loaded in lazy mode. Nothing is parsed
+    * until {@link #getAnnotations(String)} asks for the layer.
+    */
+   protected void registerLayers(DocumentHeader docHeader, File directory) throws GrafException
+   {
+      List<String> types = standoffAnnotations;
+      if (types == null || types.size() == 0)
+      {
+         types = docHeader.getAnnotationTypes();
+      }
+      Map<String, File> layers = new LinkedHashMap<String, File>();
+      for (String type : types)
+      {
+         String filename = docHeader.getAnnotationLocation(type);
+         if (filename != null)
+         {
+            layers.put(type, CorpusContainer.resolve(container, new File(directory, filename)));
+         }
+      }
+      synchronized (this)
+      {
+         pendingLayers = layers;
+      }
+   }
+
+   /**
+    * Opens the container. If the document header is only in the container,
+    * its text is given to GATE as the string content, since GATE would
+    * otherwise try to read the header from the source URL.
+    */
+   protected void openContainer() throws ResourceInstantiationException
+   {
+      try
+      {
+         container = CorpusContainer.get(containerUrl);
+         File header = FileUtils.toFile(getSourceUrl());
+         if (header != null && !header.exists() && container.contains(header))
+         {
+            setStringContent(decode(container.getBuffer(header), UTF8));
+         }
+      }
+      catch (IOException e)
+      {
+         throw new ResourceInstantiationException("Unable to open the corpus container " + containerUrl, e);
+      }
+   }
+
+   /** Reads the document header from the container if it holds it, otherwise from disk. */
+   protected DocumentHeader loadHeader(File file) throws IOException
+   {
+      return readHeader(container, file);
+   }
+
+   protected static DocumentHeader readHeader(CorpusContainer container, File file) throws IOException
+   {
+      if (!CorpusContainer.isPacked(container, file))
+      {
+         return new DocumentHeader(file);
+      }
+      // DocumentHeader is only read from files, so packed headers are copied out.
+      File temp = container.extract(file);
+      try
+      {
+         return new DocumentHeader(temp);
+      }
+      finally
+      {
+         temp.delete();
+      }
+   }
+
+   /**
+    * Loads a compressed or packed standoff file with a GrafStreamLoader, since
+    * GrafParser can only read plain files on disk.
+    */
+   protected void addStreamedLayer(File file, AnnotationSet annotations) throws Exception
+   {
+      StandoffLayer layer = parseLayer(container, resourceHeader, file);
+      layer.addTo(annotations, endOfContent, filter, EdgeEncoding.isArray(edgeEncoding), seen);
+   }
+
+   /**
+    * Parses the whole standoff file into a layer. Compressed and packed files
+    * are read with a GrafStreamLoader, plain files with a pooled GrafParser.
+    * Either way the layer includes the annotations from the files it depends on.
+    */
+   protected static StandoffLayer parseLayer(CorpusContainer container, URL resourceHeader, File file)
+           throws Exception
+   {
+      if (Compression.isCompressed(file) || CorpusContainer.isPacked(container, file))
+      {
+         GrafStreamLoader loader = new GrafStreamLoader(ResourceHeaderCache.getAnnotationSpaces(resourceHeader));
+         loader.setContainer(container);
+         loader.setIncludeDependencies(true);
+         return loader.loadLayer(file);
+      }
+      GrafParserPool parsers = ResourceHeaderCache.getParserPool(resourceHeader);
+      GrafParser parser = parsers.acquire();
+      try
+      {
+         return StandoffLayer.fromGraph(parser.parse(file));
+      }
+      finally
+      {
+         parsers.release(parser);
+      }
+   }
+
+   /**
+    * Reads the header, decodes the text and, unless the document will be
+    * lazy, parses the standoff layers of a document without creating it. None
+    * of this touches GATE, so it can be done on any thread. The result is
+    * handed to init() with {@link #setPrepared(Prepared)} on the thread that
+    * creates the document.
+    *
+    * @param types the annotation types to parse, or null for all the types in
+    *           the document header
+    */
+   static Prepared prepare(URL sourceUrl, URL resourceHeader, URL containerUrl, String contentEncoding,
+                           List<String> types, boolean parseLayers) throws Exception
+   {
+      CorpusContainer container = containerUrl == null ? null : CorpusContainer.get(containerUrl);
+      File fullPath = FileUtils.toFile(sourceUrl);
+      DocumentHeader header = readHeader(container, fullPath);
+      String filename = header.getContentLocation();
+      if (filename == null)
+      {
+         throw new IOException("Document content not specified in the header " + fullPath.getPath());
+      }
+      File txtFile = CorpusContainer.resolve(container, new File(fullPath.getParentFile(), filename));
+      if (!CorpusContainer.exists(container, txtFile))
+      {
+         throw new IOException("Primary data not found: " + txtFile.getPath());
+      }
+      long bytes = CorpusContainer.length(container, txtFile);
+      String content = readContent(container, txtFile,
+              Charset.forName(contentEncoding == null ? "UTF-8" : contentEncoding));
+
+      Map<String, StandoffLayer> layers = new HashMap<String, StandoffLayer>();
+      if (parseLayers)
+      {
+         if (types == null || types.size() == 0)
+         {
+            types = header.getAnnotationTypes();
+         }
+         for (String type : types)
+         {
+            String location = header.getAnnotationLocation(type);
+            if (location == null)
+            {
+               continue;
+            }
+            File soFile = CorpusContainer.resolve(container, new File(fullPath.getParentFile(), location));
+            bytes += CorpusContainer.length(container, soFile);
+            layers.put(type, parseLayer(container, resourceHeader, soFile));
+         }
+      }
+      return new Prepared(sourceUrl, header, content, layers, bytes);
+   }
+
+   /**
+    * Gives the result of {@link #prepare} to the next GrafDocument initialized
+    * on this thread, or clears it if <code>work</code> is null. init() only
+    * uses it if the source URLs match.
+    */
+   static void setPrepared(Prepared work)
+   {
+      if (work == null)
+      {
+         prepared.remove();
+      }
+      else
+      {
+         prepared.set(work);
+      }
+   }
+
+   private static Prepared takePrepared(URL url)
+   {
+      Prepared work = prepared.get();
+      prepared.remove();
+      if (work == null || !work.sourceUrl.toExternalForm().equals(url.toExternalForm()))
+      {
+         return null;
+      }
+      return work;
+   }
+
+   /** The header, text and parsed layers of a document that has not been created yet. */
+   static class Prepared
+   {
+      final URL sourceUrl;
+      final DocumentHeader header;
+      final String content;
+      final Map<String, StandoffLayer> layers;
+      /** The size of the text and standoff files that were read. */
+      final long bytes;
+
+      Prepared(URL sourceUrl, DocumentHeader header, String content, Map<String, StandoffLayer> layers, long bytes)
+      {
+         this.sourceUrl = sourceUrl;
+         this.header = header;
+         this.content = content;
+         this.layers = layers;
+         this.bytes = bytes;
+      }
+   }
+
+   /**
+    * Parses the standoff file for the annotation type if it has been registered
+    * but not loaded yet. Does nothing if the document is not in lazy mode.
+    */
+   protected synchronized void loadLayer(String type)
+   {
+      if (pendingLayers == null || type == null)
+      {
+         return;
+      }
+      // Removed before loading so a layer that fails to load is not parsed
+      // again on every call.
+      File file = pendingLayers.remove(type);
+      if (file == null)
+      {
+         return;
+      }
+      Out.prln("Loading annotation " + type + " from " + file.getName());
+      GrafParserPool parsers = null;
+      GrafParser parser = null;
+      try
+      {
+         if (Compression.isCompressed(file) || CorpusContainer.isPacked(container, file))
+         {
+            addStreamedLayer(file, super.getAnnotations(type));
+            return;
+         }
+         parsers = ResourceHeaderCache.getParserPool(resourceHeader);
+         parser = parsers.acquire();
+         addGraph(parser.parse(file), super.getAnnotations(type));
+      }
+      catch (Exception e)
+      {
+         Out.prln("Unable to load standoff annotations from " + file.getPath());
+         e.printStackTrace();
+      }
+      finally
+      {
+         if (parsers != null)
+         {
+            parsers.release(parser);
+         }
+      }
+   }
+
+   /** Loads every standoff layer that has not been loaded yet. */
+   protected synchronized void loadLayers()
+   {
+      if (pendingLayers == null)
+      {
+         return;
+      }
+      List<String> types = new ArrayList<String>(pendingLayers.keySet());
+      for (String type : types)
+      {
+         loadLayer(type);
+      }
+   }
+
+   @Override
+   public AnnotationSet getAnnotations(String name)
+   {
+      loadLayer(name);
+      return super.getAnnotations(name);
+   }
+
+   /**
+    * In lazy mode the names of the layers that have not been loaded yet are
+    * included without loading them.
+    */
+   @Override
+   public Set<String> getAnnotationSetNames()
+   {
+      Set<String> names = super.getAnnotationSetNames();
+      synchronized (this)
+      {
+         if (pendingLayers == null || pendingLayers.size() == 0)
+         {
+            return names;
+         }
+         Set<String> all = new LinkedHashSet<String>();
+         if (names != null)
+         {
+            all.addAll(names);
+         }
+         all.addAll(pendingLayers.keySet());
+         return all;
+      }
+   }
+
+   @Override
+   public Map<String, AnnotationSet> getNamedAnnotationSets()
+   {
+      loadLayers();
+      return super.getNamedAnnotationSets();
+   }
+
+   /** Adds an annotation for every node in the graph to the annotation set. */
+   protected void addGraph(IGraph graph, AnnotationSet annotations)
+           throws GrafException, InvalidOffsetException
+   {
+      spans = new SpanResolver(graph);
+      batch = new AnnotationBatch();
+      //cycle through the nodes only here, making it look easy
+      for (INode node : graph.nodes())
+      {
+         //this is where the magic happens...see comments in addAnnotations
+         addAnnotation(node);
+      }
+      batch.addTo(annotations);
    }
 
    /**
@@ -335,15 +838,93 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
     */
    protected String getContent(File file) throws IOException // ResourceInstantiationException
    {
-//      try
-//      {
-         UTF8Reader reader = new UTF8Reader(file);
-         return reader.readString();
-//      }
-//      catch (IOException e)
-//      {
-//         throw new ResourceInstantiationException("Unable to load content", e);
-//      }
+      return readContent(container, file, Charset.forName(contentEncoding == null ? "UTF-8" : contentEncoding));
+   }
+
+   /** Reads and decodes the text from the container if it holds it, otherwise from disk. */
+   protected static String readContent(CorpusContainer container, File file, Charset charset) throws IOException
+   {
+      if (CorpusContainer.isPacked(container, file) && !Compression.isCompressed(file))
+      {
+         // The container is already mapped.
+         return decode(container.getBuffer(file), charset);
+      }
+      if (Compression.isCompressed(file))
+      {
+         // Compressed text can not be mapped, so it is decoded as it is
+         // inflated. The size of the text is not known, so the buffer starts
+         // at a few times the compressed size, up to a limit, and grows.
+         InputStream stream = CorpusContainer.open(container, file);
+         try
+         {
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            Reader reader = new InputStreamReader(stream, decoder);
+            long length = CorpusContainer.length(container, file);
+            StringBuilder text = new StringBuilder((int) Math.min(length * 4, INITIAL_TEXT_LIMIT));
+            char[] buffer = new char[64 * 1024];
+            int n = reader.read(buffer);
+            while (n >= 0)
+            {
+               text.append(buffer, 0, n);
+               n = reader.read(buffer);
+            }
+            // decode() skips a UTF-8 byte order mark, the reader does not.
+            if (UTF8.equals(charset) && text.length() > 0 && text.charAt(0) == '\uFEFF')
+            {
+               text.deleteCharAt(0);
+            }
+            return text.toString();
+         }
+         finally
+         {
+            stream.close();
+         }
+      }
+      RandomAccessFile input = new RandomAccessFile(file, "r");
+      try
+      {
+         FileChannel channel = input.getChannel();
+         ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         return decode(bytes, charset);
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+   /**
+    * Decodes the bytes in a single pass. The output buffer is sized for the
+    * worst case so the decoder never has to grow it. A UTF-8 byte order mark
+    * is skipped, other encodings that use a BOM (e.g. UTF-16) handle it
+    * themselves. Malformed input is replaced rather than rejected.
+    */
+   protected static String decode(ByteBuffer bytes, Charset charset) throws CharacterCodingException
+   {
+      if (UTF8.equals(charset) && bytes.remaining() >= 3
+              && (bytes.get(bytes.position()) & 0xFF) == 0xEF
+              && (bytes.get(bytes.position() + 1) & 0xFF) == 0xBB
+              && (bytes.get(bytes.position() + 2) & 0xFF) == 0xBF)
+      {
+         bytes.position(bytes.position() + 3);
+      }
+      CharsetDecoder decoder = charset.newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      CharBuffer chars = CharBuffer.allocate((int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()));
+      CoderResult result = decoder.decode(bytes, chars, true);
+      if (result.isError())
+      {
+         result.throwException();
+      }
+      result = decoder.flush(chars);
+      if (result.isError())
+      {
+         result.throwException();
+      }
+      return new String(chars.array(), 0, chars.position());
    }
 
    /**
@@ -402,42 +983,38 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
     */
    protected void addAnnotation(INode node) throws InvalidOffsetException
    {
-      IRegion span = GraphUtils.getSpan(node);
-      long start = -2;
-      long end = -1;
-      try
-      {
-         start = (Long) span.getStart().getOffset();
-         end = (Long) span.getEnd().getOffset();
-      }
-      catch (GrafException e)
+      if (!spans.hasSpan(node))
       {
-         throw new InvalidOffsetException(e.getMessage());
+         Err.prln("Span for node " + node.getId() + " is empty");
+         return;
       }
+      long start = spans.getStart(node);
+      long end = spans.getEnd(node);
 
       if (end < start)
       {
          Err.prln("Span for node " + node.getId() + " is empty (" + start + "," + end + ")");
          return;
       }
-
-      //node ids from out edges ( children node ids ) will end up as a long string
-      //separated by spaces
-      StringBuilder ids = new StringBuilder();
-      //cycle the out edges for this node
-      for (IEdge e : node.getOutEdges())
+      if (!filter.overlaps(start, end))
       {
-         //append child node id to ids stringbuilder
-         ids.append(e.getTo().getId() + " ");
+         return;
       }
+
+      //node ids from out edges ( children node ids ), as a string separated by
+      //spaces or as an array depending on the edgeEncoding
+      Object edges = EdgeEncoding.encode(node, EdgeEncoding.isArray(edgeEncoding));
+      //labels of the annotations on this node so far, see StandoffLayer.getKey
+      List<String> labels = new ArrayList<String>();
       //cycle through the annotations of aformented node
       for (IAnnotation a : node.annotations())
       {
-         if (seen.contains(a.getId()))
+         String key = StandoffLayer.getKey(node.getId(), a.getLabel(), Collections.frequency(labels, a.getLabel()));
+         labels.add(a.getLabel());
+         if (!seen.add(key))
          {
             continue;
          }
-         seen.add(a.getId());
          //create a gate object, FeatureMap, 
          FeatureMap newFeatures = Factory.newFeatureMap();
          //we know since this is an anc standoff graph, use Standoff Markups as the annotation setName
@@ -453,10 +1030,10 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
             newFeatures.put(Graf.GRAF_SET, aSetName);
 
          }
-         //if we have any outEdges put the 'id' stringbuilder in the gate FeatureMap using 'graf:edge' as the key
-         if (node.getOutEdges().size() > 0)
+         //if we have any outEdges put the child ids in the gate FeatureMap using 'graf:edge' as the key
+         if (edges != null)
          {
-            newFeatures.put(Graf.GRAF_EDGE, ids.toString());
+            newFeatures.put(Graf.GRAF_EDGE, edges);
          }
          //put the node id in the gate FeatureMap using 'graf:id' as the key
          newFeatures.put(Graf.GRAF_ID, node.getId());
@@ -482,11 +1059,8 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
          else
          {
             //if here, the offsets look ok, finally add the annotation to the
-            //gate annotations object using the start, end, anc graf annotation name and the gate feature map
-            if (gateAnnotations == null)
-            {
-               throw new NullPointerException("gateAnnotations is null");
-            }
+            //gate annotations object using the start, end, anc graf annotation name and the gate feature map.
+            //The batch is added to the set given to addGraph.
             if (label == null)
             {
                throw new NullPointerException("The label is null");
@@ -495,7 +1069,7 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
             {
                throw new NullPointerException("newFeatures is null");
             }
-            gateAnnotations.add(start, end, label, newFeatures);
+            batch.add(start, end, label, newFeatures);
          }
       }
    }
@@ -520,16 +1094,21 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
          //if this is not a feature structure, go, otherwise recurse with child features
          if (f.isAtomic())
          {
+            //a feature without a name has no key, the same as in GrafStreamLoader
+            if (f.getName() == null)
+            {
+               continue;
+            }
             //if no base sent in, use the feature name as the key in the passed in feature map
             if (base == null)
             {
                //put in feature map with feature name as key, and feature value as value
-               fm.put(f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(f.getName()), f.getStringValue());
             }
             //if base is sent in append feature name to it, and use that as key instead
             else
             {
-               fm.put(base + "/" + f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(base, f.getName()), f.getStringValue());
             }
          }
          //wait, this is not a feature, it is a feature structure, get the child feature structure and recurse with it
@@ -546,7 +1125,7 @@ public class GrafDocument extends gate.corpora.DocumentImpl implements LanguageR
             //base is sent in, append feature ( or feature structure ) name to it, and use that as new base
             else
             {
-               childName = base + "/" + f.getName();
+               childName = FeatureKeys.get(base, f.getName());
             }
             //recurse with child featureStructure, featureMap, and feature name as base
             addFeatures(childFS, fm, childName);
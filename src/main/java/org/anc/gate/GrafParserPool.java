@@ -0,0 +1,90 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.xces.graf.api.GrafException;
+import org.xces.graf.io.GrafParser;
+import org.xces.graf.io.dom.ResourceHeader;
+import org.xml.sax.SAXException;
+
+/**
+ * A small pool of GrafParser objects created from the same resource header.
+ * <p>
+ * A GrafParser starts each parse from a clean state, but creating one sets up a
+ * new SAX parser factory and handler, so parsers are kept and reused between
+ * documents. A PR running on a single thread will get the same parser back on
+ * every call to {@link #acquire()}. When GATE duplicates a PR for a
+ * multi-threaded pipeline the duplicates share the pool, which grows to one
+ * parser per thread.
+ * <p>
+ * Pools are obtained from {@link ResourceHeaderCache#getParserPool(java.net.URL)}
+ * so they are discarded along with the header when it changes.
+ */
+public class GrafParserPool
+{
+   private final ResourceHeader header;
+   private final BlockingQueue<GrafParser> idle;
+
+   public GrafParserPool(ResourceHeader header)
+   {
+      this(header, Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param header the resource header used to create new parsers
+    * @param maxIdle the maximum number of parsers kept for reuse
+    */
+   public GrafParserPool(ResourceHeader header, int maxIdle)
+   {
+      this.header = header;
+      this.idle = new LinkedBlockingQueue<GrafParser>(Math.max(1, maxIdle));
+   }
+
+   /**
+    * Returns an idle parser or creates a new one if none are available. The
+    * parser must be returned with {@link #release(GrafParser)} when it is no
+    * longer needed.
+    */
+   public GrafParser acquire() throws SAXException, GrafException
+   {
+      GrafParser parser = idle.poll();
+      if (parser == null)
+      {
+         synchronized (header)
+         {
+            parser = new GrafParser(header);
+         }
+      }
+      return parser;
+   }
+
+   /**
+    * Returns a parser to the pool. Parsers that do not fit in the pool are
+    * left for the garbage collector.
+    */
+   public void release(GrafParser parser)
+   {
+      if (parser != null)
+      {
+         idle.offer(parser);
+      }
+   }
+}
@@ -0,0 +1,1032 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import gate.AnnotationSet;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.util.InvalidOffsetException;
+import gate.util.Out;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xces.graf.api.IAnnotationSpace;
+
+/**
+ * Loads a GrAF standoff file straight into a GATE AnnotationSet without
+ * building an IGraph.
+ * <p>
+ * The file is read with a StAX parser and only the state needed to compute
+ * spans is kept: region offsets, node ids, links and edges are held in
+ * primitive arrays. Annotation labels and features go directly into the
+ * FeatureMap that will be given to GATE. Annotations are added once the
+ * graph element closes, which is the first point where every edge, and
+ * therefore every span, is known.
+ * <p>
+ * Regions and nodes from the layers listed in the graf:dependsOn header are
+ * loaded so that spans can be resolved. Annotations from those layers are only
+ * added when {@link #setIncludeDependencies(boolean)} is set, in which case the
+ * loader adds the same annotations as GrafParser, which puts every layer the
+ * file depends on into the graph. If a {@link NodeRegistry} has been set,
+ * dependencies that have already been added to it are not read again. Ids the
+ * file does not define are looked up in the registry instead.
+ * <p>
+ * Instances are not thread safe, but may be reused for several files.
+ */
+public class GrafStreamLoader
+{
+   private static final int INITIAL_SIZE = 1024;
+
+   private static final XMLInputFactory factory = createFactory();
+
+   /** Region ids mapped to indices into the regionStart/regionEnd arrays. */
+   protected IdTable regionIndex = new IdTable(INITIAL_SIZE);
+   protected long[] regionStart = new long[INITIAL_SIZE];
+   protected long[] regionEnd = new long[INITIAL_SIZE];
+   protected int regionCount = 0;
+
+   /** Node ids mapped to indices into the nodeIds array. */
+   protected IdTable nodeIndex = new IdTable(INITIAL_SIZE);
+   protected String[] nodeIds = new String[INITIAL_SIZE];
+   protected int nodeCount = 0;
+
+   /** (node, region) pairs from the link elements. */
+   protected int[] linkNode = new int[INITIAL_SIZE];
+   protected int[] linkRegion = new int[INITIAL_SIZE];
+   protected int linkCount = 0;
+
+   /** (from, to) pairs from the edge elements, in document order. */
+   protected int[] edgeFrom = new int[INITIAL_SIZE];
+   protected int[] edgeTo = new int[INITIAL_SIZE];
+   protected int edgeCount = 0;
+
+   /** Annotations waiting for the spans to be computed. */
+   protected List<Pending> pending = new ArrayList<Pending>();
+
+   /** Node spans and out edges, filled in by resolveSpans(). */
+   protected long[] spanStart;
+   protected long[] spanEnd;
+   protected int[] edgeFirst;
+   protected int[] edgeTargets;
+
+   /** Files that have already been read while loading dependencies. */
+   protected Set<String> loaded = new HashSet<String>();
+
+   /** Header information from the primary file. */
+   protected List<String> annotationSpaces = new ArrayList<String>();
+   protected List<String> dependsOn = new ArrayList<String>();
+   protected List<String> roots = new ArrayList<String>();
+   protected String defaultSpace = null;
+
+   /** Annotation spaces from the resource header, keyed by name. */
+   protected Map<String, IAnnotationSpace> spaces;
+
+   /** Annotations rejected by the filter are skipped without reading their features. */
+   protected AnnotationFilter filter = AnnotationFilter.ALL;
+   /** Store graf:edge features as String[] instead of space separated strings. */
+   protected boolean edgeArrays = false;
+   /** Also collect the annotations from the dependencies that are read. */
+   protected boolean includeDependencies = false;
+
+   /** Regions and nodes of the layers already loaded for the document, may be null. */
+   protected NodeRegistry registry;
+   /** Files are read from the container when it holds them, may be null. */
+   protected CorpusContainer container;
+   /** Lists the files on disk so dependencies are found without the file system, may be null. */
+   protected CorpusManifest manifest;
+
+   public GrafStreamLoader()
+   {
+      this(Collections.<String, IAnnotationSpace>emptyMap());
+   }
+
+   public GrafStreamLoader(Map<String, IAnnotationSpace> spaces)
+   {
+      this.spaces = spaces;
+   }
+
+   public void setFilter(AnnotationFilter filter)
+   {
+      this.filter = filter == null ? AnnotationFilter.ALL : filter;
+   }
+
+   /** Selects how graf:edge features are stored, see {@link EdgeEncoding}. */
+   public void setEdgeEncoding(String encoding)
+   {
+      this.edgeArrays = EdgeEncoding.isArray(encoding);
+   }
+
+   /**
+    * When true the annotations in the layers the file depends on are loaded as
+    * well, the same as when the file is parsed into an IGraph. Dependencies
+    * that are resolved through the registry are not read, so their annotations
+    * are never added.
+    */
+   public void setIncludeDependencies(boolean includeDependencies)
+   {
+      this.includeDependencies = includeDependencies;
+   }
+
+   /**
+    * Sets the registry used to resolve references to other layers. The
+    * registry is kept by {@link #reset()}.
+    */
+   public void setRegistry(NodeRegistry registry)
+   {
+      this.registry = registry;
+   }
+
+   /**
+    * Sets the container that standoff files, including dependencies, are read
+    * from. Files that are not in the container are read from disk.
+    */
+   public void setContainer(CorpusContainer container)
+   {
+      this.container = container;
+   }
+
+   /**
+    * Sets the manifest used to find dependencies that are not in the
+    * container. Files below its directory that it does not list are taken
+    * not to exist.
+    */
+   public void setManifest(CorpusManifest manifest)
+   {
+      this.manifest = manifest;
+   }
+
+   /**
+    * Adds the regions, node spans and edges of the file that was loaded last to
+    * the registry under the given layer name. Must be called after
+    * {@link #load} or {@link #loadLayer}.
+    */
+   public void publish(String name)
+   {
+      if (registry == null)
+      {
+         return;
+      }
+      synchronized (registry)
+      {
+         for (int slot = 0; slot < regionIndex.capacity(); ++slot)
+         {
+            String id = regionIndex.keyAt(slot);
+            if (id != null)
+            {
+               int r = regionIndex.valueAt(slot);
+               registry.addRegion(id, regionStart[r], regionEnd[r]);
+            }
+         }
+         int[] handles = new int[nodeCount];
+         for (int n = 0; n < nodeCount; ++n)
+         {
+            handles[n] = registry.addNode(nodeIds[n], spanStart[n], spanEnd[n]);
+         }
+         int[] targets = new int[16];
+         for (int n = 0; n < nodeCount; ++n)
+         {
+            int count = edgeFirst[n + 1] - edgeFirst[n];
+            if (count == 0)
+            {
+               continue;
+            }
+            if (count > targets.length)
+            {
+               targets = new int[count * 2];
+            }
+            for (int i = 0; i < count; ++i)
+            {
+               targets[i] = handles[edgeTargets[edgeFirst[n] + i]];
+            }
+            registry.setEdges(handles[n], targets, 0, count);
+         }
+         registry.addLayer(name);
+      }
+   }
+
+   /**
+    * Returns the names listed in the dependsOn elements of a standoff file.
+    * Only the graph header is read.
+    */
+   public static List<String> readDependsOn(File file) throws IOException, XMLStreamException
+   {
+      return readDependsOn(file, null);
+   }
+
+   /** As above, reading the file from the container if it holds it. */
+   public static List<String> readDependsOn(File file, CorpusContainer container)
+           throws IOException, XMLStreamException
+   {
+      List<String> result = new ArrayList<String>();
+      InputStream stream = CorpusContainer.open(container, file);
+      XMLStreamReader reader = null;
+      try
+      {
+         reader = factory.createXMLStreamReader(stream);
+         while (reader.hasNext())
+         {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+               String name = reader.getLocalName();
+               if ("dependsOn".equals(name))
+               {
+                  String dependency = reader.getAttributeValue(null, "f.id");
+                  if (dependency != null)
+                  {
+                     result.add(dependency);
+                  }
+               }
+               else if ("region".equals(name) || "node".equals(name))
+               {
+                  break;
+               }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && "graphHeader".equals(reader.getLocalName()))
+            {
+               break;
+            }
+         }
+      }
+      finally
+      {
+         if (reader != null)
+         {
+            reader.close();
+         }
+         stream.close();
+      }
+      return result;
+   }
+
+   /**
+    * Loads the annotations from <code>file</code> into <code>annotations</code>.
+    * End offsets past <code>endOfContent</code> are truncated.
+    */
+   public void load(File file, AnnotationSet annotations, long endOfContent)
+           throws IOException, XMLStreamException, InvalidOffsetException
+   {
+      reset();
+      read(file, true);
+      emit(annotations, endOfContent);
+   }
+
+   /**
+    * Loads the standoff file into a StandoffLayer rather than a GATE
+    * AnnotationSet.
+    */
+   public StandoffLayer loadLayer(File file) throws IOException, XMLStreamException
+   {
+      reset();
+      read(file, true);
+      resolveSpans();
+
+      // Group the annotations by node since the builder expects all the
+      // annotations for a node to follow it.
+      int[] first = new int[nodeCount + 1];
+      for (Pending p : pending)
+      {
+         ++first[p.node + 1];
+      }
+      for (int i = 0; i < nodeCount; ++i)
+      {
+         first[i + 1] += first[i];
+      }
+      Pending[] byNode = new Pending[pending.size()];
+      int[] fill = new int[nodeCount];
+      for (Pending p : pending)
+      {
+         byNode[first[p.node] + fill[p.node]++] = p;
+      }
+
+      StandoffLayer.Builder builder = new StandoffLayer.Builder();
+      builder.annotationSpaces.addAll(annotationSpaces);
+      builder.dependsOn.addAll(dependsOn);
+      builder.roots.addAll(roots);
+      for (int n = 0; n < nodeCount; ++n)
+      {
+         if (first[n] == first[n + 1] || spanStart[n] > spanEnd[n])
+         {
+            continue;
+         }
+         builder.addNode(nodeIds[n], spanStart[n], spanEnd[n]);
+         for (int i = edgeFirst[n]; i < edgeFirst[n + 1]; ++i)
+         {
+            builder.addEdge(nodeIds[edgeTargets[i]]);
+         }
+         for (int i = first[n]; i < first[n + 1]; ++i)
+         {
+            Pending p = byNode[i];
+            builder.addAnnotation(p.label, (String) p.features.get(Graf.GRAF_SET));
+            for (Map.Entry<Object, Object> entry : p.features.entrySet())
+            {
+               Object key = entry.getKey();
+               if (!Graf.GRAF_SET.equals(key) && !Graf.GRAF_ID.equals(key))
+               {
+                  builder.addFeature(key.toString(), (String) entry.getValue());
+               }
+            }
+         }
+      }
+      pending.clear();
+      return builder.build();
+   }
+
+   /** Clears all state left over from a previous file. */
+   public void reset()
+   {
+      regionIndex.clear();
+      regionCount = 0;
+      nodeIndex.clear();
+      Arrays.fill(nodeIds, 0, nodeCount, null);
+      nodeCount = 0;
+      linkCount = 0;
+      edgeCount = 0;
+      pending.clear();
+      loaded.clear();
+      annotationSpaces.clear();
+      dependsOn.clear();
+      roots.clear();
+      defaultSpace = null;
+   }
+
+   public List<String> getAnnotationSpaces()
+   {
+      return annotationSpaces;
+   }
+
+   public List<String> getDependsOn()
+   {
+      return dependsOn;
+   }
+
+   public List<String> getRoots()
+   {
+      return roots;
+   }
+
+   /**
+    * Reads the regions, nodes, links and edges from a standoff file. Annotations
+    * are only collected when <code>primary</code> or
+    * <code>includeDependencies</code> is true.
+    */
+   protected void read(File file, boolean primary) throws IOException, XMLStreamException
+   {
+      loaded.add(file.getAbsolutePath());
+      // A dependency has its own default annotation space.
+      String primaryDefault = defaultSpace;
+      if (!primary)
+      {
+         defaultSpace = null;
+      }
+      List<String> dependencies = new ArrayList<String>();
+      InputStream stream = CorpusContainer.open(container, file);
+      XMLStreamReader reader = null;
+      try
+      {
+         reader = factory.createXMLStreamReader(stream);
+         int node = -1;
+         while (reader.hasNext())
+         {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+               String name = reader.getLocalName();
+               if ("region".equals(name))
+               {
+                  addRegion(getId(reader), reader.getAttributeValue(null, "anchors"));
+               }
+               else if ("node".equals(name))
+               {
+                  node = getNode(getId(reader));
+               }
+               else if ("link".equals(name))
+               {
+                  String targets = reader.getAttributeValue(null, "targets");
+                  if (node >= 0 && targets != null)
+                  {
+                     StringTokenizer tokenizer = new StringTokenizer(targets);
+                     while (tokenizer.hasMoreTokens())
+                     {
+                        addLink(node, getRegion(tokenizer.nextToken()));
+                     }
+                  }
+               }
+               else if ("edge".equals(name))
+               {
+                  String from = reader.getAttributeValue(null, "from");
+                  String to = reader.getAttributeValue(null, "to");
+                  if (from != null && to != null)
+                  {
+                     addEdge(getNode(from), getNode(to));
+                  }
+               }
+               else if ("a".equals(name))
+               {
+                  if (primary || includeDependencies)
+                  {
+                     readAnnotation(reader);
+                  }
+               }
+               else if ("dependsOn".equals(name))
+               {
+                  String dependency = reader.getAttributeValue(null, "f.id");
+                  if (dependency != null)
+                  {
+                     dependencies.add(dependency);
+                     if (primary)
+                     {
+                        dependsOn.add(dependency);
+                     }
+                  }
+               }
+               else if ("annotationSpace".equals(name))
+               {
+                  String space = reader.getAttributeValue(null, "as.id");
+                  if (space == null)
+                  {
+                     space = reader.getAttributeValue(null, "name");
+                  }
+                  if (space != null)
+                  {
+                     if (primary)
+                     {
+                        annotationSpaces.add(space);
+                     }
+                     if ("true".equals(reader.getAttributeValue(null, "default")))
+                     {
+                        defaultSpace = space;
+                     }
+                  }
+               }
+               else if (primary && "root".equals(name))
+               {
+                  roots.add(reader.getElementText().trim());
+               }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+               String name = reader.getLocalName();
+               if ("node".equals(name))
+               {
+                  node = -1;
+               }
+               else if ("graphHeader".equals(name))
+               {
+                  // The regions in the layers we depend on are needed before
+                  // any of our own spans can be computed.
+                  loadDependencies(file, dependencies);
+               }
+            }
+         }
+      }
+      finally
+      {
+         if (reader != null)
+         {
+            reader.close();
+         }
+         stream.close();
+         if (!primary)
+         {
+            defaultSpace = primaryDefault;
+         }
+      }
+   }
+
+   protected void loadDependencies(File file, List<String> dependencies)
+           throws IOException, XMLStreamException
+   {
+      for (String dependency : dependencies)
+      {
+         File dependencyFile = getDependencyFile(file, dependency);
+         if (loaded.contains(dependencyFile.getAbsolutePath()))
+         {
+            continue;
+         }
+         if (registry != null && registry.containsLayer(dependency))
+         {
+            // Its ids are resolved through the registry as they are used.
+            loaded.add(dependencyFile.getAbsolutePath());
+            continue;
+         }
+         if (!exists(dependencyFile))
+         {
+            Out.prln("Unable to locate dependency " + dependencyFile.getPath());
+            continue;
+         }
+         read(dependencyFile, false);
+      }
+   }
+
+   /**
+    * Standoff files are named <i>basename-type.xml</i> so the dependency is
+    * expected to be in the same directory as <i>basename-dependency.xml</i>,
+    * or <i>basename-dependency.xml.gz</i> if only the compressed file exists.
+    */
+   protected File getDependencyFile(File file, String dependency)
+   {
+      File name = getDependencyName(file, dependency);
+      if (manifest == null)
+      {
+         return CorpusContainer.resolve(container, name);
+      }
+      File compressed = new File(name.getPath() + Compression.GZIP_SUFFIX);
+      if (exists(name) || !exists(compressed))
+      {
+         return name;
+      }
+      return compressed;
+   }
+
+   /**
+    * Returns true if the file is in the container, or is listed in the
+    * manifest, or when the manifest does not cover it, exists on disk.
+    */
+   protected boolean exists(File file)
+   {
+      if (CorpusContainer.isPacked(container, file))
+      {
+         return true;
+      }
+      if (manifest != null && manifest.covers(file))
+      {
+         return manifest.contains(file);
+      }
+      return file.exists();
+   }
+
+   /**
+    * Returns the plain <i>basename-dependency.xml</i> file for a dependency of
+    * the standoff file, without checking whether it or its compressed version
+    * exists.
+    */
+   public static File getDependencyName(File file, String dependency)
+   {
+      String filename = file.getName();
+      int index = filename.lastIndexOf('-');
+      if (index > 0)
+      {
+         filename = filename.substring(0, index);
+      }
+      else if (filename.endsWith(".xml"))
+      {
+         filename = filename.substring(0, filename.length() - 4);
+      }
+      return new File(file.getParentFile(), filename + "-" + dependency + ".xml");
+   }
+
+   /**
+    * Reads an <i>a</i> element and its feature structure. The reader is left
+    * positioned on the closing tag.
+    */
+   protected void readAnnotation(XMLStreamReader reader) throws XMLStreamException
+   {
+      String label = reader.getAttributeValue(null, "label");
+      String ref = reader.getAttributeValue(null, "ref");
+      String space = reader.getAttributeValue(null, "as");
+      if (space == null)
+      {
+         space = defaultSpace;
+      }
+      IAnnotationSpace definition = space == null ? null : spaces.get(space);
+      if (definition != null)
+      {
+         space = definition.getName();
+      }
+      if (!filter.accept(label, space))
+      {
+         skipElement(reader);
+         return;
+      }
+      FeatureMap features = Factory.newFeatureMap();
+      if (space != null)
+      {
+         features.put(Graf.GRAF_SET, space);
+      }
+      features.put(Graf.GRAF_ID, ref);
+      while (reader.hasNext())
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+         {
+            if ("fs".equals(reader.getLocalName()))
+            {
+               readFeatureStructure(reader, features, null);
+            }
+            else
+            {
+               skipElement(reader);
+            }
+         }
+         else if (event == XMLStreamConstants.END_ELEMENT)
+         {
+            break;
+         }
+      }
+      if (ref != null && label != null)
+      {
+         pending.add(new Pending(getNode(ref), label, features));
+      }
+   }
+
+   /**
+    * Flattens a feature structure into the feature map. Nested feature names
+    * are joined with a '/' the same way the loaders flatten an IFeatureStructure.
+    */
+   protected void readFeatureStructure(XMLStreamReader reader, FeatureMap features, String base)
+           throws XMLStreamException
+   {
+      while (reader.hasNext())
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+         {
+            if ("f".equals(reader.getLocalName()))
+            {
+               readFeature(reader, features, base);
+            }
+            else
+            {
+               skipElement(reader);
+            }
+         }
+         else if (event == XMLStreamConstants.END_ELEMENT)
+         {
+            return;
+         }
+      }
+   }
+
+   protected void readFeature(XMLStreamReader reader, FeatureMap features, String base)
+           throws XMLStreamException
+   {
+      String name = reader.getAttributeValue(null, "name");
+      String value = reader.getAttributeValue(null, "value");
+      // A feature without a name has no key of its own. Its feature structure,
+      // if it has one, is flattened into the enclosing one.
+      String key = FeatureKeys.get(base, name);
+      StringBuilder text = null;
+      while (reader.hasNext())
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+         {
+            if ("fs".equals(reader.getLocalName()))
+            {
+               readFeatureStructure(reader, features, key);
+            }
+            else
+            {
+               skipElement(reader);
+            }
+         }
+         else if (event == XMLStreamConstants.CHARACTERS && value == null)
+         {
+            if (text == null)
+            {
+               text = new StringBuilder();
+            }
+            text.append(reader.getText());
+         }
+         else if (event == XMLStreamConstants.END_ELEMENT)
+         {
+            break;
+         }
+      }
+      if (value == null && text != null)
+      {
+         value = text.toString().trim();
+         if (value.length() == 0)
+         {
+            value = null;
+         }
+      }
+      if (name != null && value != null)
+      {
+         features.put(key, value);
+      }
+   }
+
+   /** Skips to the end of the current element. */
+   protected void skipElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      int depth = 1;
+      while (depth > 0 && reader.hasNext())
+      {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT)
+         {
+            ++depth;
+         }
+         else if (event == XMLStreamConstants.END_ELEMENT)
+         {
+            --depth;
+         }
+      }
+   }
+
+   /**
+    * Computes the span of every node and adds the pending annotations to the
+    * AnnotationSet.
+    */
+   protected void emit(AnnotationSet annotations, long endOfContent) throws InvalidOffsetException
+   {
+      resolveSpans();
+      long[] start = spanStart;
+      long[] end = spanEnd;
+      int[] first = edgeFirst;
+      int[] targets = edgeTargets;
+      Object[] edges = new Object[nodeCount];
+      AnnotationBatch batch = new AnnotationBatch(pending.size());
+      for (Pending p : pending)
+      {
+         int n = p.node;
+         if (start[n] > end[n])
+         {
+            // No regions are reachable from this node.
+            continue;
+         }
+         if (!filter.overlaps(start[n], end[n]))
+         {
+            continue;
+         }
+         if (first[n] < first[n + 1])
+         {
+            if (edges[n] == null)
+            {
+               String[] ids = new String[first[n + 1] - first[n]];
+               for (int i = first[n]; i < first[n + 1]; ++i)
+               {
+                  ids[i - first[n]] = nodeIds[targets[i]];
+               }
+               edges[n] = EdgeEncoding.encode(ids, edgeArrays);
+            }
+            p.features.put(Graf.GRAF_EDGE, edges[n]);
+         }
+         long s = start[n];
+         long e = end[n];
+         if (e > endOfContent)
+         {
+            System.err.println("Invalid end offset for " + p.label + " " + e
+                    + ", end of content = " + endOfContent);
+            e = endOfContent;
+         }
+         if (s > e)
+         {
+            System.err.println("Invalid start offset for " + p.label + " "
+                    + s + ", end of content = " + endOfContent);
+         }
+         else
+         {
+            batch.add(s, e, p.label, p.features);
+         }
+      }
+      batch.addTo(annotations);
+      pending.clear();
+   }
+
+   /**
+    * Computes the span of every node from the regions it is linked to and the
+    * spans of its descendants.
+    */
+   protected void resolveSpans()
+   {
+      long[] start = new long[nodeCount];
+      long[] end = new long[nodeCount];
+      Arrays.fill(start, Long.MAX_VALUE);
+      Arrays.fill(end, Long.MIN_VALUE);
+      for (int i = 0; i < linkCount; ++i)
+      {
+         int n = linkNode[i];
+         int r = linkRegion[i];
+         if (regionStart[r] > regionEnd[r])
+         {
+            // The region was referenced but never defined.
+            continue;
+         }
+         if (regionStart[r] < start[n])
+         {
+            start[n] = regionStart[r];
+         }
+         if (regionEnd[r] > end[n])
+         {
+            end[n] = regionEnd[r];
+         }
+      }
+
+      // Index the out edges of each node, preserving document order.
+      int[] first = new int[nodeCount + 1];
+      for (int i = 0; i < edgeCount; ++i)
+      {
+         ++first[edgeFrom[i] + 1];
+      }
+      for (int i = 0; i < nodeCount; ++i)
+      {
+         first[i + 1] += first[i];
+      }
+      int[] targets = new int[edgeCount];
+      int[] fill = new int[nodeCount];
+      for (int i = 0; i < edgeCount; ++i)
+      {
+         int from = edgeFrom[i];
+         targets[first[from] + fill[from]++] = edgeTo[i];
+      }
+      SpanResolver.resolve(nodeCount, start, end, first, targets);
+      spanStart = start;
+      spanEnd = end;
+      edgeFirst = first;
+      edgeTargets = targets;
+   }
+
+   protected void addRegion(String id, String anchors)
+   {
+      if (id == null || anchors == null)
+      {
+         return;
+      }
+      StringTokenizer tokenizer = new StringTokenizer(anchors);
+      if (!tokenizer.hasMoreTokens())
+      {
+         return;
+      }
+      String first = tokenizer.nextToken();
+      String last = first;
+      while (tokenizer.hasMoreTokens())
+      {
+         last = tokenizer.nextToken();
+      }
+      int r = getRegion(id);
+      try
+      {
+         regionStart[r] = Long.parseLong(first);
+         regionEnd[r] = Long.parseLong(last);
+      }
+      catch (NumberFormatException e)
+      {
+         // Not a character anchor so it can not contribute to a span.
+         Out.prln("Ignoring region " + id + " with anchors " + anchors);
+      }
+   }
+
+   /**
+    * Returns the index for the region, allocating one if needed. A region
+    * defined in the registry gets its offsets from there.
+    */
+   protected int getRegion(String id)
+   {
+      int index = regionIndex.get(id);
+      if (index != IdTable.MISSING)
+      {
+         return index;
+      }
+      int r = newRegion();
+      regionIndex.put(id, r);
+      if (registry != null)
+      {
+         int shared = registry.getRegion(id);
+         if (shared != NodeRegistry.MISSING)
+         {
+            regionStart[r] = registry.getRegionStart(shared);
+            regionEnd[r] = registry.getRegionEnd(shared);
+         }
+      }
+      return r;
+   }
+
+   /** Allocates a region that has no offsets yet. */
+   protected int newRegion()
+   {
+      if (regionCount == regionStart.length)
+      {
+         regionStart = Arrays.copyOf(regionStart, regionCount * 2);
+         regionEnd = Arrays.copyOf(regionEnd, regionCount * 2);
+      }
+      int r = regionCount++;
+      regionStart[r] = Long.MAX_VALUE;
+      regionEnd[r] = Long.MIN_VALUE;
+      return r;
+   }
+
+   /**
+    * Returns the index for the node, allocating one if needed. A node defined
+    * in the registry is linked to a region covering its resolved span, so its
+    * own links and edges do not need to be known.
+    */
+   protected int getNode(String id)
+   {
+      int index = nodeIndex.get(id);
+      if (index != IdTable.MISSING)
+      {
+         return index;
+      }
+      if (nodeCount == nodeIds.length)
+      {
+         nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+      }
+      int n = nodeCount++;
+      nodeIds[n] = id;
+      nodeIndex.put(id, n);
+      if (registry != null)
+      {
+         int shared = registry.getNode(id);
+         if (shared != NodeRegistry.MISSING && registry.hasSpan(shared))
+         {
+            int r = newRegion();
+            regionStart[r] = registry.getNodeStart(shared);
+            regionEnd[r] = registry.getNodeEnd(shared);
+            addLink(n, r);
+         }
+      }
+      return n;
+   }
+
+   protected void addLink(int node, int region)
+   {
+      if (linkCount == linkNode.length)
+      {
+         linkNode = Arrays.copyOf(linkNode, linkCount * 2);
+         linkRegion = Arrays.copyOf(linkRegion, linkCount * 2);
+      }
+      linkNode[linkCount] = node;
+      linkRegion[linkCount] = region;
+      ++linkCount;
+   }
+
+   protected void addEdge(int from, int to)
+   {
+      if (edgeCount == edgeFrom.length)
+      {
+         edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+         edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+      }
+      edgeFrom[edgeCount] = from;
+      edgeTo[edgeCount] = to;
+      ++edgeCount;
+   }
+
+   private static String getId(XMLStreamReader reader)
+   {
+      String id = reader.getAttributeValue(XMLConstants.XML_NS_URI, "id");
+      if (id == null)
+      {
+         id = reader.getAttributeValue(null, "id");
+      }
+      return id;
+   }
+
+   private static XMLInputFactory createFactory()
+   {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      return factory;
+   }
+
+   /** An annotation whose span is not known yet. */
+   protected static class Pending
+   {
+      final int node;
+      final String label;
+      final FeatureMap features;
+
+      Pending(int node, String label, FeatureMap features)
+      {
+         this.node = node;
+         this.label = label;
+         this.features = features;
+      }
+   }
+}
@@ -0,0 +1,265 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import gate.FeatureMap;
+import gate.util.Out;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.anc.util.IDGenerator;
+import org.xces.graf.api.IAnnotationSpace;
+import org.xces.graf.api.IStandoffHeader;
+import org.xces.graf.io.XML;
+
+/**
+ * Writes GATE annotations straight to a GrAF standoff file without building an
+ * IGraph.
+ * <p>
+ * The output is the same as rendering the graph built by
+ * SaveGrafStandoff.createGraph() with a GrafRenderer: the graph header, then
+ * every region, then each node followed by its annotations and its out edges.
+ * Since all the regions come first the annotations are given twice, to
+ * {@link #writeRegion} and then to {@link #write}, both times in the order
+ * produced by AnnotationComparer.createStartComparator(), so annotations with
+ * the same span arrive together.
+ * <p>
+ * Each new span gets a region and a node, and every annotation with that span
+ * is attached to the node, as createGraph() does. Region and node ids are
+ * generated with the same sequence of IDGenerator calls as createGraph(), and
+ * feature values are encoded with XML.encode() as it encodes them. The writer
+ * only keeps the current span, its node id and the targets of the node's
+ * edges between annotations.
+ */
+public class GrafStreamWriter
+{
+   public static final String NAMESPACE = "http://www.xces.org/ns/GrAF/1.0/";
+
+   private final Writer writer;
+   /** Replays the ids generated by createGraph() for the regions, then for the nodes. */
+   private final IDGenerator regionIds = new IDGenerator();
+   private final IDGenerator nodeIds = new IDGenerator();
+   private final IDGenerator edgeIds = new IDGenerator();
+   private final String prefix;
+
+   private long regionStart = -1;
+   private long regionEnd = -1;
+   private boolean region = false;
+
+   private long start = -1;
+   private long end = -1;
+   private String node = null;
+   /** The targets of the edges from the current node, written after its annotations. */
+   private final List<String> edges = new ArrayList<String>();
+
+   /**
+    * @param writer the destination. It should be buffered, and is not closed
+    *           by {@link #close()}.
+    */
+   public GrafStreamWriter(Writer writer)
+   {
+      this(writer, "");
+   }
+
+   /**
+    * @param writer the destination. It should be buffered, and is not closed
+    *           by {@link #close()}.
+    * @param prefix prepended to the generated region, node and edge ids so
+    *           several layers of one document can be written without clashes
+    */
+   public GrafStreamWriter(Writer writer, String prefix)
+   {
+      this.writer = writer;
+      this.prefix = prefix;
+   }
+
+   /**
+    * Writes the start of the graph and the graph header.
+    *
+    * @param header the header to copy, may be null
+    * @param space the annotation space used when there is no header
+    */
+   public void start(String encoding, IStandoffHeader header, IAnnotationSpace space) throws IOException
+   {
+      if (header == null)
+      {
+         List<String> none = Collections.emptyList();
+         start(encoding, none, Collections.singletonList(space), none);
+      }
+      else
+      {
+         start(encoding, header.getDependsOn(), header.getAnnotationSpaces(), header.getRoots());
+      }
+   }
+
+   /**
+    * Writes the start of the graph and a graph header with the given
+    * dependencies, annotation spaces and roots. Any of them may be null.
+    */
+   public void start(String encoding, List<String> dependsOn, List<IAnnotationSpace> spaces, List<String> roots)
+           throws IOException
+   {
+      writer.write("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n");
+      writer.write("<graph xmlns=\"" + NAMESPACE + "\">\n");
+      writer.write("  <graphHeader>\n");
+      if (dependsOn != null && dependsOn.size() > 0)
+      {
+         writer.write("    <dependencies>\n");
+         for (String type : dependsOn)
+         {
+            writer.write("      <dependsOn f.id=\"" + XML.encode(type) + "\"/>\n");
+         }
+         writer.write("    </dependencies>\n");
+      }
+      if (spaces != null && spaces.size() > 0)
+      {
+         writer.write("    <annotationSpaces>\n");
+         for (IAnnotationSpace as : spaces)
+         {
+            writer.write("      <annotationSpace as.id=\"" + XML.encode(as.getName()) + "\"");
+            if (as.getType() != null)
+            {
+               writer.write(" type=\"" + XML.encode(as.getType()) + "\"");
+            }
+            writer.write("/>\n");
+         }
+         writer.write("    </annotationSpaces>\n");
+      }
+      if (roots != null && roots.size() > 0)
+      {
+         writer.write("    <roots>\n");
+         for (String root : roots)
+         {
+            writer.write("      <root>" + XML.encode(root) + "</root>\n");
+         }
+         writer.write("    </roots>\n");
+      }
+      writer.write("  </graphHeader>\n");
+   }
+
+   /**
+    * Writes the region for an annotation if its span differs from the
+    * previous annotation. Must be called for every annotation before the
+    * first call to {@link #write}.
+    */
+   public void writeRegion(long start, long end, FeatureMap features) throws IOException
+   {
+      // createGraph() generates a region id for annotations without a graf:id
+      // even though it is never used. Do the same so the ids match.
+      if (features == null || features.get(Graf.GRAF_ID) == null)
+      {
+         regionIds.generate("r");
+      }
+      if (region && start == regionStart && end == regionEnd)
+      {
+         return;
+      }
+      writer.write("  <region xml:id=\"" + prefix + regionIds.generate("r") + "\" anchors=\""
+              + start + " " + end + "\"/>\n");
+      // The node id is taken here in createGraph() as well.
+      regionIds.generate("n");
+      regionStart = start;
+      regionEnd = end;
+      region = true;
+   }
+
+   /**
+    * Writes one annotation, preceded by its node if its span differs from the
+    * previous annotation. The edges of a node are written once all of its
+    * annotations have been.
+    */
+   public void write(long start, long end, String label, FeatureMap features) throws IOException
+   {
+      if (features == null || features.get(Graf.GRAF_ID) == null)
+      {
+         nodeIds.generate("r");
+      }
+      if (node == null || start != this.start || end != this.end)
+      {
+         writeEdges();
+         String region = prefix + nodeIds.generate("r");
+         node = prefix + nodeIds.generate("n");
+         writer.write("  <node xml:id=\"" + node + "\">\n");
+         writer.write("    <link targets=\"" + region + "\"/>\n");
+         writer.write("  </node>\n");
+         this.start = start;
+         this.end = end;
+      }
+
+      writer.write("  <a label=\"" + XML.encode(label) + "\" ref=\"" + node + "\"");
+      boolean open = false;
+      if (features != null)
+      {
+         for (Map.Entry<Object, Object> e : features.entrySet())
+         {
+            Object key = e.getKey();
+            if ("isEmptyAndSpan".equals(key) || Graf.GRAF_SET.equals(key))
+            {
+               continue;
+            }
+            if (Graf.GRAF_EDGE.equals(key))
+            {
+               Collections.addAll(edges, EdgeEncoding.decode(e.getValue()));
+               continue;
+            }
+            if (e.getValue() == null)
+            {
+               Out.prln("Null value specified for " + label + ": " + key + ": " + start + "-" + end);
+               continue;
+            }
+            if (!open)
+            {
+               writer.write(">\n    <fs>\n");
+               open = true;
+            }
+            writer.write("      <f name=\"" + XML.encode(key.toString()) + "\" value=\""
+                    + XML.encode(e.getValue().toString()) + "\"/>\n");
+         }
+      }
+      if (open)
+      {
+         writer.write("    </fs>\n  </a>\n");
+      }
+      else
+      {
+         writer.write("/>\n");
+      }
+   }
+
+   /** Writes the edges of the last node, closes the graph element and flushes the output. */
+   public void close() throws IOException
+   {
+      writeEdges();
+      writer.write("</graph>\n");
+      writer.flush();
+   }
+
+   private void writeEdges() throws IOException
+   {
+      for (String child : edges)
+      {
+         writer.write("  <edge xml:id=\"" + prefix + edgeIds.generate("e") + "\" from=\"" + node
+                 + "\" to=\"" + child + "\"/>\n");
+      }
+      edges.clear();
+   }
+}
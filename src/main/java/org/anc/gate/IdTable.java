@@ -0,0 +1,180 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.util.Arrays;
+
+/**
+ * A map from string ids to int values that does not box the values or allocate
+ * an entry object per id.
+ * <p>
+ * Keys and values are kept in two parallel arrays and collisions are resolved
+ * with linear probing. The table is at most half full so lookups rarely look
+ * at more than one or two slots. Ids can not be removed, only the whole table
+ * can be cleared. Instances are not thread safe.
+ */
+public class IdTable
+{
+   /** Returned by {@link #get(String)} when the id is not in the table. */
+   public static final int MISSING = -1;
+
+   private String[] keys;
+   private int[] values;
+   private int size = 0;
+   private int mask;
+
+   public IdTable()
+   {
+      this(64);
+   }
+
+   /**
+    * @param expected the number of ids the table should hold without growing
+    */
+   public IdTable(int expected)
+   {
+      int capacity = 16;
+      while (capacity < expected * 2)
+      {
+         capacity <<= 1;
+      }
+      keys = new String[capacity];
+      values = new int[capacity];
+      mask = capacity - 1;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   /** Returns the value for the id or {@link #MISSING}. */
+   public int get(String id)
+   {
+      int slot = hash(id) & mask;
+      String key = keys[slot];
+      while (key != null)
+      {
+         if (key.equals(id))
+         {
+            return values[slot];
+         }
+         slot = (slot + 1) & mask;
+         key = keys[slot];
+      }
+      return MISSING;
+   }
+
+   /** Sets the value for the id, replacing any previous value. */
+   public void put(String id, int value)
+   {
+      if (id == null)
+      {
+         throw new NullPointerException("Null ids can not be stored.");
+      }
+      if ((size + 1) * 2 > keys.length)
+      {
+         resize(keys.length * 2);
+      }
+      int slot = hash(id) & mask;
+      String key = keys[slot];
+      while (key != null)
+      {
+         if (key.equals(id))
+         {
+            values[slot] = value;
+            return;
+         }
+         slot = (slot + 1) & mask;
+         key = keys[slot];
+      }
+      keys[slot] = id;
+      values[slot] = value;
+      ++size;
+   }
+
+   public void clear()
+   {
+      Arrays.fill(keys, null);
+      size = 0;
+   }
+
+   /** The number of slots, for use with {@link #keyAt(int)} and {@link #valueAt(int)}. */
+   public int capacity()
+   {
+      return keys.length;
+   }
+
+   /** Returns the id stored in the slot or null if the slot is empty. */
+   public String keyAt(int slot)
+   {
+      return keys[slot];
+   }
+
+   public int valueAt(int slot)
+   {
+      return values[slot];
+   }
+
+   /**
+    * An estimate of the memory used by the table in bytes. The ids themselves
+    * are counted as Java strings with a 40 byte overhead and two bytes per
+    * character.
+    */
+   public long getMemoryUsage()
+   {
+      long bytes = 16 + 4L * keys.length + 16 + 4L * values.length + 16;
+      for (String key : keys)
+      {
+         if (key != null)
+         {
+            bytes += 40 + 2L * key.length();
+         }
+      }
+      return bytes;
+   }
+
+   private void resize(int capacity)
+   {
+      String[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new String[capacity];
+      values = new int[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; ++i)
+      {
+         String key = oldKeys[i];
+         if (key != null)
+         {
+            int slot = hash(key) & mask;
+            while (keys[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+         }
+      }
+   }
+
+   /** Spreads the bits of the hash code since ids often differ only at the end. */
+   private static int hash(String id)
+   {
+      int h = id.hashCode() * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
@@ -1,6 +1,5 @@
 package org.anc.gate;
 
-import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
@@ -15,8 +14,21 @@ import gate.creole.metadata.RunTime;
 import gate.util.InvalidOffsetException;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import gate.util.Out;
 import org.anc.gate.core.ANCLanguageAnalyzer;
@@ -24,16 +36,14 @@ import org.apache.commons.io.FileUtils;
 import org.xces.graf.api.GrafException;
 import org.xces.graf.api.IAnnotation;
 import org.xces.graf.api.IAnnotationSpace;
-import org.xces.graf.api.IEdge;
 import org.xces.graf.api.IFeature;
 import org.xces.graf.api.IFeatureStructure;
 import org.xces.graf.api.IGraph;
 import org.xces.graf.api.INode;
-import org.xces.graf.api.IRegion;
 import org.xces.graf.io.GrafParser;
 import org.xces.graf.io.dom.DocumentHeader;
 import org.xces.graf.io.dom.ResourceHeader;
-import org.xces.graf.util.GraphUtils;
+import org.xml.sax.SAXException;
 
 @CreoleResource(
         name = "GrAF Load All Standoff",
@@ -52,10 +62,72 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
     */
    protected Boolean printStackTrace = Boolean.FALSE;
 
+   /**
+    * If set to true the standoff files for a document are parsed concurrently.
+    * The annotations are always added to the document on the calling thread
+    * since GATE documents are not thread safe.
+    */
+   protected Boolean parallel = Boolean.FALSE;
+
+   /**
+    * The number of threads used to parse standoff files when <code>parallel</code>
+    * is true. Values less than one use the number of available processors.
+    */
+   protected Integer threads = 0;
+
+   /** If set to true the time taken to load each layer is printed. */
+   protected Boolean printTimings = Boolean.FALSE;
+
+   /**
+    * If set, parsed standoff files are saved to binary sidecar files in this
+    * directory and loaded from there while the standoff file is unchanged.
+    */
+   protected URL cacheDirectory = null;
+
+   /**
+    * If set, headers and standoff files are read from this packed corpus
+    * container when it holds them, see {@link CorpusContainer}.
+    */
+   protected URL containerUrl = null;
+
+   /**
+    * If set, the corpus manifest (a directory to scan or an index file) used
+    * to find headers and standoff files instead of checking the disk, see
+    * {@link CorpusManifest}.
+    */
+   protected URL manifestUrl = null;
+
+   /**
+    * If set to true the standoff files are read with a StAX parser in the order
+    * given by their graf:dependsOn headers. Each layer is parsed once and its
+    * spans are shared with the layers that depend on it.
+    */
+   protected Boolean streaming = Boolean.FALSE;
+
+   /**
+    * How the graf:edge feature is stored, see {@link EdgeEncoding}. Defaults to
+    * the space separated string.
+    */
+   protected String edgeEncoding = EdgeEncoding.STRING;
 
-   protected transient GrafParser parser;
+   private ResourceHeader header;
+
+   /** Annotation spaces defined in the resource header. */
+   private transient Map<String, IAnnotationSpace> annotationSpaces;
+
+   /** Parsers are shared with any duplicates of this PR. */
+   protected transient GrafParserPool parsers;
+   protected transient ExecutorService executor;
+   /** The spans of the nodes in the graph being added. */
+   protected transient SpanResolver spans;
+   /** Collects the annotations for the graph being added so they can be added in offset order. */
+   protected transient AnnotationBatch batch;
    protected transient String content = null;
    protected transient int endOfContent = 0;
+   /** The container opened from the containerUrl, or null. */
+   protected transient CorpusContainer container = null;
+   /** The manifest loaded from the manifestUrl, or null. */
+   protected transient CorpusManifest manifest = null;
 
    public LoadAllGrafStandoff()
    {
@@ -69,8 +141,9 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       {
          super.init();
 
-         ResourceHeader header = new ResourceHeader(resourceHeader.openStream());
-         parser = new GrafParser(header);
+         header = ResourceHeaderCache.getHeader(resourceHeader);
+         parsers = ResourceHeaderCache.getParserPool(resourceHeader);
+         annotationSpaces = ResourceHeaderCache.getAnnotationSpaces(resourceHeader);
       }
       catch (Exception ex)
       {
@@ -80,6 +153,17 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       return this;
    }
 
+   @Override
+   public void cleanup()
+   {
+      if (executor != null)
+      {
+         executor.shutdownNow();
+         executor = null;
+      }
+      super.cleanup();
+   }
+
    @Override
    public void execute() throws ExecutionException
    {
@@ -87,8 +171,34 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       content = document.getContent().toString();
       endOfContent = content.length();
 
+      container = null;
+      if (containerUrl != null)
+      {
+         try
+         {
+            container = CorpusContainer.get(containerUrl);
+         }
+         catch (IOException e)
+         {
+            throw new ExecutionException("Unable to open the corpus container " + containerUrl, e);
+         }
+      }
+
+      manifest = null;
+      if (manifestUrl != null)
+      {
+         try
+         {
+            manifest = CorpusManifest.get(manifestUrl);
+         }
+         catch (IOException e)
+         {
+            throw new ExecutionException("Unable to load the corpus manifest " + manifestUrl, e);
+         }
+      }
+
       File file = FileUtils.toFile(url);
-      if (!file.exists())
+      if (!exists(file))
       {
          throw new ExecutionException("Could not locate original document: "
                + file.getAbsolutePath());
@@ -98,18 +208,24 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       String basename = filename.substring(0, filename.length() - 4);
       String headerName = basename + ".hdr";
       File headerFile = new File(parentDir, headerName);
-      if (!headerFile.exists())
+      if (!exists(headerFile))
       {
          throw new ExecutionException(
                "Unable to locate document header for file " + file.getPath());
       }
+      if (manifest != null && manifest.getLayers(file).isEmpty())
+      {
+         // Nothing to load so there is no need to read the header.
+         Out.prln("No standoff files listed for " + file.getPath());
+         return;
+      }
 
       DocumentHeader docHeader = null;
       try
       {
-         docHeader = new DocumentHeader(headerFile);
+         docHeader = loadHeader(headerFile);
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
          // This should not happen since we check that the file exists. So
          // this means something really bad went wrong.
@@ -133,59 +249,550 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
          }
       }
 
+      long startTime = System.nanoTime();
+      try
+      {
+         if (streaming)
+         {
+            loadByDependencies(docHeader, parentDir);
+         }
+         else if (parallel)
+         {
+            loadParallel(docHeader, parentDir);
+         }
+         else
+         {
+            loadSequential(docHeader, parentDir);
+         }
+      }
+      catch (GrafException e)
+      {
+         if (failFast) {
+            throw new ExecutionException(
+                    "Error getting annotation types from the header.");
+         }
+         else if (printStackTrace)
+         {
+            e.printStackTrace();
+         }
+         else
+         {
+            Out.prln(e.getMessage());
+         }
+      }
+      if (printTimings)
+      {
+         Out.prln("Loaded " + document.getName() + " in " + millis(System.nanoTime() - startTime) + " ms");
+      }
+   }
+
+   /** Returns true if the file is listed in the manifest, or when there is no manifest, if it exists. */
+   protected boolean exists(File file)
+   {
+      if (manifest != null)
+      {
+         return manifest.contains(file);
+      }
+      return CorpusContainer.exists(container, file);
+   }
+
+   /**
+    * Returns the standoff file, or its compressed version, if it is listed in
+    * the manifest or exists in the container or on disk. Otherwise returns
+    * null.
+    */
+   protected File locate(File file)
+   {
+      if (manifest != null)
+      {
+         return manifest.resolve(file);
+      }
+      file = CorpusContainer.resolve(container, file);
+      return CorpusContainer.exists(container, file) ? file : null;
+   }
+
+   /** Reads the document header from the container if it holds it, otherwise from disk. */
+   protected DocumentHeader loadHeader(File headerFile) throws IOException
+   {
+      if (!CorpusContainer.isPacked(container, headerFile))
+      {
+         return new DocumentHeader(headerFile);
+      }
+      // DocumentHeader is only read from files, so packed headers are copied out.
+      File temp = container.extract(headerFile);
+      try
+      {
+         return new DocumentHeader(temp);
+      }
+      finally
+      {
+         temp.delete();
+      }
+   }
+
+   /** Parses and adds the standoff files one at a time on the calling thread. */
+   protected void loadSequential(DocumentHeader docHeader, File parentDir)
+           throws ExecutionException, GrafException
+   {
+      GrafParser parser;
+      try
+      {
+         parser = parsers.acquire();
+      }
+      catch (SAXException e)
+      {
+         throw new ExecutionException(e);
+      }
       try
       {
          for (String type : docHeader.getAnnotationTypes())
          {
-            File soFile = new File(parentDir,
-                  docHeader.getAnnotationLocation(type));
-            if (soFile.exists())
+            File soFile = locate(new File(parentDir, docHeader.getAnnotationLocation(type)));
+            if (soFile != null)
             {
                Out.prln("Attempting to load " + soFile.getPath());
-               IGraph graph = null;
                try
                {
-                  graph = parser.parse(soFile);
-                  for (INode node : graph.nodes())
+                  long parseTime = System.nanoTime();
+                  long mergeTime;
+                  // GrafParser can only read plain files on disk so compressed
+                  // and packed files are loaded as layers.
+                  if (cacheDirectory != null || Compression.isCompressed(soFile)
+                          || CorpusContainer.isPacked(container, soFile))
                   {
-                     addAnnotation(node, type);
-                  }
-               }
-               catch (Exception ex)
-               {
-                  if (failFast)
-                  {
-                     throw new ExecutionException(ex);
-                  }
-                  else if (printStackTrace)
-                  {
-                     ex.printStackTrace();
+                     StandoffLayer layer = loadLayer(soFile);
+                     mergeTime = System.nanoTime();
+                     layer.addTo(getAnnotations(type), endOfContent, AnnotationFilter.ALL, EdgeEncoding.isArray(edgeEncoding));
                   }
                   else
                   {
-                     Out.prln(ex.getMessage());
+                     IGraph graph = parser.parse(soFile);
+                     mergeTime = System.nanoTime();
+                     addGraph(graph, type);
                   }
+                  printTiming(type, mergeTime - parseTime, System.nanoTime() - mergeTime);
+               }
+               catch (Exception ex)
+               {
+                  handleLayerException(ex);
                }
             }
          }
       }
-      catch (GrafException e)
+      finally
       {
-         if (failFast) {
-            throw new ExecutionException(
-                    "Error getting annotation types from the header.");
+         parsers.release(parser);
+      }
+   }
+
+   /**
+    * Parses all the standoff files for the document on the executor and then adds
+    * the annotations on the calling thread in the order the annotation types are
+    * listed in the header.
+    */
+   protected void loadParallel(DocumentHeader docHeader, File parentDir)
+           throws ExecutionException, GrafException
+   {
+      if (executor == null)
+      {
+         int n = threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+         executor = Executors.newFixedThreadPool(n, new DaemonThreadFactory());
+      }
+      List<String> types = new ArrayList<String>();
+      List<ParseTask> tasks = new ArrayList<ParseTask>();
+      List<Future<StandoffLayer>> futures = new ArrayList<Future<StandoffLayer>>();
+      for (String type : docHeader.getAnnotationTypes())
+      {
+         File soFile = locate(new File(parentDir, docHeader.getAnnotationLocation(type)));
+         if (soFile != null)
+         {
+            Out.prln("Attempting to load " + soFile.getPath());
+            ParseTask task = new ParseTask(soFile);
+            types.add(type);
+            tasks.add(task);
+            futures.add(executor.submit(task));
          }
-         else if (printStackTrace)
+      }
+
+      try
+      {
+         for (int i = 0; i < futures.size(); ++i)
          {
-            e.printStackTrace();
+            String type = types.get(i);
+            try
+            {
+               StandoffLayer layer = futures.get(i).get();
+               long mergeTime = System.nanoTime();
+               layer.addTo(getAnnotations(type), endOfContent, AnnotationFilter.ALL, EdgeEncoding.isArray(edgeEncoding));
+               printTiming(type, tasks.get(i).elapsed, System.nanoTime() - mergeTime);
+            }
+            catch (java.util.concurrent.ExecutionException ex)
+            {
+               handleLayerException(ex.getCause());
+            }
+            catch (InterruptedException ex)
+            {
+               Thread.currentThread().interrupt();
+               throw new ExecutionException("Interrupted while loading standoff annotations.", ex);
+            }
+            catch (Exception ex)
+            {
+               handleLayerException(ex);
+            }
          }
-         else
+      }
+      finally
+      {
+         // Only has an effect if we are leaving early because of an exception.
+         for (Future<StandoffLayer> future : futures)
          {
-            Out.prln(e.getMessage());
+            future.cancel(true);
+         }
+      }
+   }
+
+   /**
+    * Loads the standoff files in dependency order. A layer is only parsed once
+    * all the layers it depends on have been parsed. The regions and nodes of
+    * every parsed layer are added to a NodeRegistry that lives until the
+    * document has been loaded, so later layers resolve references to them
+    * without reading the files again. Layers that do not depend on each other
+    * are parsed concurrently when <code>parallel</code> is true.
+    * <p>
+    * Annotations are added on the calling thread as each layer finishes.
+    * Dependencies that are not listed in the document header, or that are
+    * part of a cycle, are read by the stream loader as before.
+    */
+   protected void loadByDependencies(DocumentHeader docHeader, File parentDir)
+           throws ExecutionException, GrafException
+   {
+      Map<String, DependencyTask> tasks = new LinkedHashMap<String, DependencyTask>();
+      for (String type : docHeader.getAnnotationTypes())
+      {
+         File soFile = locate(new File(parentDir, docHeader.getAnnotationLocation(type)));
+         if (soFile != null)
+         {
+            tasks.put(type, new DependencyTask(type, soFile));
+         }
+      }
+      linkDependencies(tasks);
+      if (cacheDirectory != null)
+      {
+         readSidecars(tasks);
+      }
+
+      CompletionService<DependencyTask> service = null;
+      if (parallel)
+      {
+         if (executor == null)
+         {
+            int n = threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+            executor = Executors.newFixedThreadPool(n, new DaemonThreadFactory());
          }
+         service = new ExecutorCompletionService<DependencyTask>(executor);
+      }
+      LinkedList<DependencyTask> ready = new LinkedList<DependencyTask>();
+      for (DependencyTask task : tasks.values())
+      {
+         if (task.waiting.isEmpty())
+         {
+            ready.add(task);
+         }
+      }
+      NodeRegistry registry = new NodeRegistry();
+      List<Future<DependencyTask>> futures = new ArrayList<Future<DependencyTask>>();
+      int remaining = tasks.size();
+      int running = 0;
+      try
+      {
+         while (remaining > 0)
+         {
+            if (ready.isEmpty() && running == 0)
+            {
+               // Only layers in a dependency cycle are left.
+               ready.addAll(unfinished(tasks));
+            }
+            while (!ready.isEmpty())
+            {
+               DependencyTask task = ready.removeFirst();
+               task.started = true;
+               task.registry = registry;
+               Out.prln("Attempting to load " + task.file.getPath());
+               if (service == null)
+               {
+                  task.call();
+                  finish(task, ready);
+                  --remaining;
+               }
+               else
+               {
+                  futures.add(service.submit(task));
+                  ++running;
+               }
+            }
+            if (running > 0)
+            {
+               DependencyTask task = service.take().get();
+               --running;
+               finish(task, ready);
+               --remaining;
+            }
+         }
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         throw new ExecutionException("Interrupted while loading standoff annotations.", ex);
+      }
+      catch (java.util.concurrent.ExecutionException ex)
+      {
+         handleLayerException(ex.getCause());
+      }
+      finally
+      {
+         // Only has an effect if we are leaving early because of an exception.
+         for (Future<DependencyTask> future : futures)
+         {
+            future.cancel(true);
+         }
+      }
+      if (printTimings)
+      {
+         Out.prln("Node registry: " + registry.getMemoryReport());
       }
    }
 
+   /** Records which of the tasks each task has to wait for. */
+   protected void linkDependencies(Map<String, DependencyTask> tasks)
+   {
+      for (DependencyTask task : tasks.values())
+      {
+         try
+         {
+            for (String dependency : GrafStreamLoader.readDependsOn(task.file, container))
+            {
+               DependencyTask required = tasks.get(dependency);
+               if (required != null && required != task)
+               {
+                  task.waiting.add(dependency);
+                  task.required.add(required);
+                  required.dependents.add(task);
+               }
+            }
+         }
+         catch (Exception ex)
+         {
+            // The loader will report the problem when it reads the file.
+            Out.prln("Unable to read the header of " + task.file.getPath());
+         }
+      }
+   }
+
+   /**
+    * Takes the layers that have an up to date sidecar from the cache. A cached
+    * layer can not be added to the NodeRegistry since sidecars do not keep the
+    * regions, so a layer is parsed anyway when a layer that depends on it has
+    * to be parsed, and so are the layers it depends on in turn. Each layer is
+    * still only parsed once.
+    */
+   protected void readSidecars(Map<String, DependencyTask> tasks)
+   {
+      StandoffCache cache = createCache();
+      LinkedList<DependencyTask> parse = new LinkedList<DependencyTask>();
+      for (DependencyTask task : tasks.values())
+      {
+         // Sidecars are checked against the file on disk, so packed files are not cached.
+         if (!CorpusContainer.isPacked(container, task.file))
+         {
+            try
+            {
+               task.layer = cache.read(task.file);
+            }
+            catch (IOException e)
+            {
+               Out.prln("Unable to read the sidecar for " + task.file.getPath() + ": " + e.getMessage());
+            }
+         }
+         if (task.layer == null)
+         {
+            parse.add(task);
+         }
+      }
+      while (!parse.isEmpty())
+      {
+         DependencyTask task = parse.removeFirst();
+         for (String dependency : task.waiting)
+         {
+            DependencyTask required = tasks.get(dependency);
+            if (required.layer != null)
+            {
+               required.layer = null;
+               parse.add(required);
+            }
+         }
+      }
+   }
+
+   /**
+    * Creates the loader used to parse a layer. It adds the annotations from
+    * the dependencies it reads, the same as GrafParser.
+    */
+   protected GrafStreamLoader createStreamLoader()
+   {
+      GrafStreamLoader loader = new GrafStreamLoader(annotationSpaces);
+      loader.setContainer(container);
+      loader.setManifest(manifest);
+      loader.setIncludeDependencies(true);
+      return loader;
+   }
+
+   /** Creates the sidecar cache, which finds dependencies through the manifest if there is one. */
+   protected StandoffCache createCache()
+   {
+      StandoffCache cache = new StandoffCache(FileUtils.toFile(cacheDirectory));
+      cache.setManifest(manifest);
+      return cache;
+   }
+
+   /**
+    * Adds the annotations from a finished layer and queues the layers that were
+    * only waiting for it.
+    */
+   private void finish(DependencyTask task, List<DependencyTask> ready)
+           throws ExecutionException
+   {
+      for (DependencyTask dependent : task.dependents)
+      {
+         dependent.waiting.remove(task.type);
+         if (dependent.waiting.isEmpty() && !dependent.started)
+         {
+            ready.add(dependent);
+         }
+      }
+      if (task.error != null)
+      {
+         handleLayerException(task.error);
+         return;
+      }
+      try
+      {
+         long mergeTime = System.nanoTime();
+         task.layer.addTo(getAnnotations(task.type), endOfContent, AnnotationFilter.ALL,
+                 EdgeEncoding.isArray(edgeEncoding));
+         printTiming(task.type, task.elapsed, System.nanoTime() - mergeTime);
+      }
+      catch (Exception ex)
+      {
+         handleLayerException(ex);
+      }
+   }
+
+   private static List<DependencyTask> unfinished(Map<String, DependencyTask> tasks)
+   {
+      List<DependencyTask> result = new ArrayList<DependencyTask>();
+      for (DependencyTask task : tasks.values())
+      {
+         if (!task.started)
+         {
+            result.add(task);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Parses a standoff file into a StandoffLayer. If a cache directory has been
+    * set the layer is loaded from its sidecar file when possible, and the
+    * sidecar is written when it is missing or out of date.
+    */
+   protected StandoffLayer loadLayer(File soFile) throws Exception
+   {
+      boolean packed = CorpusContainer.isPacked(container, soFile);
+      StandoffCache cache = null;
+      // Sidecars are checked against the file on disk, so packed files are not cached.
+      if (cacheDirectory != null && !packed)
+      {
+         cache = createCache();
+         StandoffLayer layer = cache.read(soFile);
+         if (layer != null)
+         {
+            return layer;
+         }
+      }
+      StandoffLayer layer;
+      if (packed || Compression.isCompressed(soFile))
+      {
+         GrafStreamLoader loader = createStreamLoader();
+         layer = loader.loadLayer(soFile);
+      }
+      else
+      {
+         GrafParser parser = parsers.acquire();
+         try
+         {
+            layer = StandoffLayer.fromGraph(parser.parse(soFile));
+         }
+         finally
+         {
+            parsers.release(parser);
+         }
+      }
+      if (cache != null)
+      {
+         try
+         {
+            cache.write(soFile, layer);
+         }
+         catch (IOException e)
+         {
+            Out.prln("Unable to cache " + soFile.getPath() + ": " + e.getMessage());
+         }
+      }
+      return layer;
+   }
+
+   protected void handleLayerException(Throwable ex) throws ExecutionException
+   {
+      if (failFast)
+      {
+         throw new ExecutionException(ex);
+      }
+      else if (printStackTrace)
+      {
+         ex.printStackTrace();
+      }
+      else
+      {
+         Out.prln(ex.getMessage());
+      }
+   }
+
+   /** Adds an annotation for every node in the graph to the named annotation set. */
+   protected void addGraph(IGraph graph, String type)
+         throws InvalidOffsetException, ExecutionException, GrafException
+   {
+      spans = new SpanResolver(graph);
+      batch = new AnnotationBatch();
+      for (INode node : graph.nodes())
+      {
+         addAnnotation(node, type);
+      }
+      batch.addTo(getAnnotations(type));
+   }
+
+   protected void printTiming(String type, long parse, long merge)
+   {
+      if (printTimings)
+      {
+         Out.prln(type + ": parse " + millis(parse) + " ms, merge " + millis(merge) + " ms");
+      }
+   }
+
+   private static long millis(long nanos)
+   {
+      return nanos / 1000000L;
+   }
+
    @RunTime(false)
    @Optional(false)
    @CreoleParameter(comment ="Corpus resource header.")
@@ -236,6 +843,117 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       return printStackTrace;
    }
 
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Read the standoff files with a streaming parser in dependsOn order, parsing each dependency once.",
+           defaultValue = "false"
+   )
+   public void setStreaming(Boolean streaming)
+   {
+      this.streaming = streaming;
+   }
+   public Boolean getStreaming()
+   {
+      return streaming;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "How graf:edge values are stored: \"string\" for space separated ids or \"array\" for a String[].",
+           defaultValue = "string"
+   )
+   public void setEdgeEncoding(String edgeEncoding)
+   {
+      this.edgeEncoding = edgeEncoding;
+   }
+   public String getEdgeEncoding()
+   {
+      return edgeEncoding;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Parse the standoff files for a document concurrently.",
+           defaultValue = "false"
+   )
+   public void setParallel(Boolean parallel)
+   {
+      this.parallel = parallel;
+   }
+   public Boolean getParallel()
+   {
+      return parallel;
+   }
+
+   @RunTime(false)
+   @Optional
+   @CreoleParameter(
+           comment = "Number of threads used to parse standoff files. Zero uses one thread per processor.",
+           defaultValue = "0"
+   )
+   public void setThreads(Integer threads)
+   {
+      this.threads = threads;
+   }
+   public Integer getThreads()
+   {
+      return threads;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "A packed corpus container to read headers and standoff files from instead of the directory.")
+   public void setContainerUrl(URL containerUrl)
+   {
+      this.containerUrl = containerUrl;
+   }
+   public URL getContainerUrl()
+   {
+      return containerUrl;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "A corpus directory or manifest index file listing the headers and standoff files, so the disk is not checked for each document.")
+   public void setManifestUrl(URL manifestUrl)
+   {
+      this.manifestUrl = manifestUrl;
+   }
+   public URL getManifestUrl()
+   {
+      return manifestUrl;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Directory where parsed standoff files are cached. Caching is disabled if not set.")
+   public void setCacheDirectory(URL cacheDirectory)
+   {
+      this.cacheDirectory = cacheDirectory;
+   }
+   public URL getCacheDirectory()
+   {
+      return cacheDirectory;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Print the time taken to parse and add each annotation layer.",
+           defaultValue = "false"
+   )
+   public void setPrintTimings(Boolean printTimings)
+   {
+      this.printTimings = printTimings;
+   }
+   public Boolean getPrintTimings()
+   {
+      return printTimings;
+   }
+
    protected void addAnnotation(INode node, String type)
          throws InvalidOffsetException, ExecutionException
    {
@@ -245,29 +963,13 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
 //      {
 //         return;
 //      }
-      IRegion span = GraphUtils.getSpan(node);
-      if (span == null)
+      if (!spans.hasSpan(node))
       {
          return;
       }
 
-      long start = 0;
-      long end = 0;
-      try
-      {
-         if (span.getStart() != null)
-         {
-            start = (Long) span.getStart().getOffset();
-         }
-         if (span.getEnd() != null)
-         {
-            end = (Long) span.getEnd().getOffset();
-         }
-      }
-      catch (Exception e)
-      {
-         throw new ExecutionException("Unable to get span offsets for node " + node.getId(), e);
-      }
+      long start = spans.getStart(node);
+      long end = spans.getEnd(node);
 
       if (start > end)
       {
@@ -275,11 +977,7 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
          return;
       }
       
-      StringBuilder ids = new StringBuilder();
-      for (IEdge e : node.getOutEdges())
-      {
-         ids.append(e.getTo().getId() + " ");
-      }
+      Object edges = EdgeEncoding.encode(node, EdgeEncoding.isArray(edgeEncoding));
       for (IAnnotation a : node.annotations())
       {
          FeatureMap newFeatures = Factory.newFeatureMap();
@@ -290,15 +988,14 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
             aSetName = as.getName();
             newFeatures.put(Graf.GRAF_SET, aSetName);
          }
-         if (node.getOutEdges().size() > 0)
+         if (edges != null)
          {
-            newFeatures.put(Graf.GRAF_EDGE, ids.toString());
+            newFeatures.put(Graf.GRAF_EDGE, edges);
          }
          newFeatures.put(Graf.GRAF_ID, node.getId());
          String label = a.getLabel();
          addFeatures(a.getFeatures(), newFeatures, null);
 
-         AnnotationSet annotations = getAnnotations(type);
 //         long start = 0; //offset.getStart();
 //         long end = 0; //offset.getEnd();
          try
@@ -319,7 +1016,7 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
             }
             else
             {
-               annotations.add(start, end, label, newFeatures);
+               batch.add(start, end, label, newFeatures);
             }
          }
          catch (Exception e)
@@ -343,13 +1040,18 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
       {
          if (f.isAtomic())
          {
+            // A feature without a name has no key, the same as in GrafStreamLoader.
+            if (f.getName() == null)
+            {
+               continue;
+            }
             if (base == null)
             {
-               fm.put(f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(f.getName()), f.getStringValue());
             }
             else
             {
-               fm.put(base + "/" + f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(base, f.getName()), f.getStringValue());
             }
          }
          else
@@ -362,11 +1064,129 @@ public class LoadAllGrafStandoff extends ANCLanguageAnalyzer
             }
             else
             {
-               childName = base + "/" + f.getName();
+               childName = FeatureKeys.get(base, f.getName());
             }
             addFeatures(childFS, fm, childName);
          }
       }
    }
 
+   /**
+    * Parses a single standoff file. Each task borrows its own GrafParser from
+    * the pool since parsers can not be shared between threads. The spans and
+    * features are resolved on the worker thread so only the GATE annotations
+    * are created on the calling thread.
+    */
+   protected class ParseTask implements Callable<StandoffLayer>
+   {
+      protected final File file;
+      protected volatile long elapsed;
+
+      public ParseTask(File file)
+      {
+         this.file = file;
+      }
+
+      public StandoffLayer call() throws Exception
+      {
+         long start = System.nanoTime();
+         StandoffLayer layer = loadLayer(file);
+         elapsed = System.nanoTime() - start;
+         return layer;
+      }
+   }
+
+   /**
+    * Parses one layer, resolving references to the layers it depends on through
+    * the document's NodeRegistry. Errors are
+    * kept rather than thrown so the layers waiting for this one can still be
+    * scheduled.
+    */
+   protected class DependencyTask implements Callable<DependencyTask>
+   {
+      protected final String type;
+      protected final File file;
+      /** Dependencies that have not been loaded yet. */
+      protected final Set<String> waiting = new HashSet<String>();
+      /** The tasks for the layers listed in this one's dependsOn header. */
+      protected final List<DependencyTask> required = new ArrayList<DependencyTask>();
+      /** Layers that list this one in their dependsOn header. */
+      protected final List<DependencyTask> dependents = new ArrayList<DependencyTask>();
+      /** The regions and nodes of the layers loaded so far for the document. */
+      protected NodeRegistry registry;
+      protected boolean started = false;
+      protected volatile StandoffLayer layer;
+      protected volatile Throwable error;
+      protected volatile long elapsed;
+
+      public DependencyTask(String type, File file)
+      {
+         this.type = type;
+         this.file = file;
+      }
+
+      /**
+       * Parses the layer unless it was already taken from the cache by
+       * {@link #readSidecars(Map)}, in which case no layer depending on it
+       * needs its regions and nodes.
+       */
+      public DependencyTask call()
+      {
+         long start = System.nanoTime();
+         try
+         {
+            if (layer == null)
+            {
+               GrafStreamLoader loader = createStreamLoader();
+               loader.setRegistry(registry);
+               layer = addRequired(loader.loadLayer(file));
+               loader.publish(type);
+               if (cacheDirectory != null && !CorpusContainer.isPacked(container, file))
+               {
+                  try
+                  {
+                     createCache().write(file, layer);
+                  }
+                  catch (IOException e)
+                  {
+                     Out.prln("Unable to cache " + file.getPath() + ": " + e.getMessage());
+                  }
+               }
+            }
+         }
+         catch (Throwable e)
+         {
+            error = e;
+         }
+         elapsed = System.nanoTime() - start;
+         return this;
+      }
+
+      /**
+       * Adds the annotations of the layers this one depends on. The loader
+       * resolves those layers through the registry rather than reading them,
+       * so without this the layer would only have its own annotations rather
+       * than those GrafParser puts in the graph. The layers it depends on have
+       * finished by now and already include their own dependencies, except in
+       * a cycle, where layers that have not been loaded yet are left out.
+       */
+      protected StandoffLayer addRequired(StandoffLayer own)
+      {
+         if (required.isEmpty())
+         {
+            return own;
+         }
+         List<StandoffLayer> layers = new ArrayList<StandoffLayer>();
+         for (DependencyTask task : required)
+         {
+            if (task.layer != null)
+            {
+               layers.add(task.layer);
+            }
+         }
+         layers.add(own);
+         return StandoffLayer.merge(layers);
+      }
+   }
+
 }
@@ -18,11 +18,13 @@
 package org.anc.gate;
 
 import gate.AnnotationSet;
+import gate.Controller;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.Resource;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
@@ -34,11 +36,15 @@ import gate.util.InvalidOffsetException;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 // import org.anc.conf.AnnotationSpaces;
 import gate.util.Out;
@@ -49,7 +55,6 @@ import org.xces.graf.api.*;
 import org.xces.graf.impl.CharacterAnchor;
 import org.xces.graf.io.GrafParser;
 import org.xces.graf.io.dom.ResourceHeader;
-import org.xces.graf.util.GraphUtils;
 import org.xces.graf.util.IFunction;
 import org.xml.sax.SAXException;
 
@@ -62,7 +67,7 @@ import org.xml.sax.SAXException;
         name = "GrAF Load Standoff",
         comment = "Loads GrAF standoff annotations"
 )
-public class LoadGrafStandoff extends ANCLanguageAnalyzer
+public class LoadGrafStandoff extends ANCLanguageAnalyzer implements ControllerAwarePR
 {
    private static final long serialVersionUID = 1L;
 
@@ -94,17 +99,94 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
     */
    protected Boolean printStackTrace = Boolean.FALSE;
 
+   /**
+    * If set to true the standoff file is read with a StAX parser and the
+    * annotations are added without building an IGraph. This uses much less
+    * memory on large layers.
+    */
+   protected Boolean streaming = Boolean.FALSE;
+
+   /**
+    * If set, parsed standoff files are saved to binary sidecar files in this
+    * directory and loaded from there while the standoff file is unchanged.
+    */
+   protected URL cacheDirectory = null;
+
+   /**
+    * If set, standoff files are read from this packed corpus container when it
+    * holds them, see {@link CorpusContainer}.
+    */
+   protected URL containerUrl = null;
+
+   /**
+    * If set, the corpus manifest (a directory to scan or an index file) used
+    * to find the standoff files instead of checking the disk, see
+    * {@link CorpusManifest}.
+    */
+   protected URL manifestUrl = null;
+
+   /**
+    * If greater than zero, the standoff files of up to this many of the
+    * following documents in the corpus are parsed in the background while the
+    * pipeline works on the current one.
+    */
+   protected Integer prefetchWindow = 0;
+
+   /** Only annotations with these labels are loaded. All labels are loaded if empty. */
+   protected List<String> includeLabels = null;
+
+   /** Annotations with these labels are not loaded. */
+   protected List<String> excludeLabels = null;
+
+   /** Only annotations from these annotation spaces are loaded. All are loaded if empty. */
+   protected List<String> includeSpaces = null;
+
+   /**
+    * The first character offset of the window to load. Loads from the start of
+    * the text if not set. The window only limits the annotations created: XML
+    * files are parsed and flattened in full, and only sidecar layers use their
+    * block index to skip the rest.
+    */
+   protected Long windowStart = null;
+
+   /** The offset just past the end of the window to load. Loads to the end of the text if not set. */
+   protected Long windowEnd = null;
+
+   /**
+    * How the graf:edge feature is stored, see {@link EdgeEncoding}. Defaults to
+    * the space separated string.
+    */
+   protected String edgeEncoding = EdgeEncoding.STRING;
+
    /** The URL to the corpus resource header. */
    private URL resourceHeader;
 
    private ResourceHeader header;
 
+   /** Annotation spaces defined in the resource header. */
+   private Map<String, IAnnotationSpace> annotationSpaces;
+
+   /** Parsers are shared with any duplicates of this PR. */
+   private transient GrafParserPool parsers;
+
+   /** If set to true the time taken to load each document is printed. */
+   protected Boolean printTimings = Boolean.FALSE;
+
    /** Parser used to load the standoff annotation file. */
 //   protected transient GrafParser parser;
 
    /** The GATE AnnotationSet where new annotations will be created. */
    protected AnnotationSet annotations;
 
+   /** The spans of the nodes in the graph being loaded. */
+   protected transient SpanResolver spans;
+
+   /** Collects the new annotations so they can be added in offset order. */
+   protected transient AnnotationBatch batch;
+
+   /** Created from the label and annotation space parameters for each document. */
+   protected transient AnnotationFilter filter = AnnotationFilter.ALL;
+
 //   protected transient GetRangeFunction getRangeFn = new GetRangeFunction();
 
    /** Text content for the document being processed. */
@@ -113,6 +195,18 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
    /** The length of the content. */
    protected transient int endOfContent = 0;
 
+   /** The container opened from the containerUrl, or null. */
+   protected transient CorpusContainer container = null;
+
+   /** The manifest loaded from the manifestUrl, or null. */
+   protected transient CorpusManifest manifest = null;
+
+   /** Parses the standoff files of the next documents when prefetchWindow is set. */
+   protected transient StandoffPrefetcher prefetcher = null;
+
+   /** The position of the current document in the corpus, or -1. */
+   private transient int corpusIndex = -1;
+
    public LoadGrafStandoff()
    {
       super();
@@ -130,8 +224,9 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
       {
          super.init();
 //         parser = new GrafParser();
-         File headerFile = FileUtils.toFile(resourceHeader);
-         header = new ResourceHeader(headerFile);
+         header = ResourceHeaderCache.getHeader(resourceHeader);
+         annotationSpaces = ResourceHeaderCache.getAnnotationSpaces(resourceHeader);
+         parsers = ResourceHeaderCache.getParserPool(resourceHeader);
 //         for (IAnnotationSpace aspace : header.getAnnotationSpaces())
 //         {
 //            parser.addAnnotationSpace(aspace);
@@ -145,31 +240,76 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
       return this;
    }
 
+   @Override
+   public void cleanup()
+   {
+      if (prefetcher != null)
+      {
+         prefetcher.shutdown();
+         prefetcher = null;
+      }
+      super.cleanup();
+   }
+
+   public void controllerExecutionStarted(Controller controller) throws ExecutionException
+   {
+      corpusIndex = -1;
+   }
+
+   /** Drops layers prefetched for documents that will not be processed. */
+   public void controllerExecutionFinished(Controller controller) throws ExecutionException
+   {
+      if (prefetcher != null)
+      {
+         prefetcher.clear();
+      }
+   }
+
+   public void controllerExecutionAborted(Controller controller, Throwable throwable) throws ExecutionException
+   {
+      controllerExecutionFinished(controller);
+   }
+
    @Override
    public void execute() throws ExecutionException
    {
 //      BufferedReader r;
-		GrafParser parser = null;
-		try
-		{
-			parser = new GrafParser(header);
-		}
-		catch (SAXException e)
-		{
-			throw new ExecutionException(e);
-		}
-		catch (GrafException e)
-		{
-			throw new ExecutionException(e);
-		}
-
 		// Get the GATE annotations from the document being processed.
       annotations = super.getAnnotations(standoffASName);
+      filter = new AnnotationFilter(includeLabels, excludeLabels, includeSpaces,
+              windowStart == null ? 0 : windowStart,
+              windowEnd == null ? Long.MAX_VALUE : windowEnd);
 
       // Get the text from the document.
       content = document.getContent().toString();
       endOfContent = content.length();
 
+      container = null;
+      if (containerUrl != null)
+      {
+         try
+         {
+            container = CorpusContainer.get(containerUrl);
+         }
+         catch (IOException e)
+         {
+            throw new ExecutionException("Unable to open the corpus container " + containerUrl, e);
+         }
+      }
+
+      manifest = null;
+      if (manifestUrl != null)
+      {
+         try
+         {
+            manifest = CorpusManifest.get(manifestUrl);
+         }
+         catch (IOException e)
+         {
+            throw new ExecutionException("Unable to load the corpus manifest " + manifestUrl, e);
+         }
+      }
+
       File file;
       if (sourceUrl == null) {
          // If the sourceUrl is null then the path to the standoff file should be derived
@@ -181,26 +321,35 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
             throw new ExecutionException(
                     "Source URL is null and no annotation type was specified.");
          }
-         // TODO The annotation file should be retrieved from the document header.
-         File docFile = new File(document.getSourceUrl().getPath());
-         File parent = docFile.getParentFile();
-
-         String filename = docFile.getName();
-         int index = filename.lastIndexOf(".txt");
-         if (index > 0)
-         {
-            filename = filename.substring(0, index);
-         }
-         filename = filename + "-" + annotationType + ".xml";
-         file = new File(parent, filename);
+         file = getStandoffFile(document);
       }
       else
       {
          // The sourceUrl was specified so load the standoff annotations from there.
          file = new File(sourceUrl.getPath());
       }
+      // Use the compressed file if there is no plain one.
+      long length = -1;
+      if (manifest != null)
+      {
+         File listed = manifest.resolve(file);
+         if (listed != null)
+         {
+            file = listed;
+            length = manifest.length(file);
+         }
+      }
+      else
+      {
+         file = CorpusContainer.resolve(container, file);
+         if (CorpusContainer.exists(container, file))
+         {
+            length = CorpusContainer.length(container, file);
+         }
+      }
+      boolean packed = CorpusContainer.isPacked(container, file);
 
-      if (!file.exists())
+      if (length < 0)
       {
          String message = "Unable to locate annotation file " + file.getPath();
          if (failFast) {
@@ -209,7 +358,7 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
          Out.prln(message);
          return;
       }
-      if (file.length() == 0)
+      if (length == 0)
       {
          String message = "WARNING: " + file.getPath() + " is empty.";
          if (failFast)
@@ -220,15 +369,60 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
          return;
       }
 
+      if (prefetchWindow != null && prefetchWindow > 0)
+      {
+         if (loadPrefetched(file))
+         {
+            return;
+         }
+      }
+      else if (prefetcher != null)
+      {
+         prefetcher.shutdown();
+         prefetcher = null;
+      }
+
+      // Sidecars are checked against the file on disk, so packed files are not cached.
+      if (cacheDirectory != null && !packed)
+      {
+         loadCached(file);
+         return;
+      }
+      // GrafParser can only read plain files on disk.
+      if (streaming || packed || Compression.isCompressed(file))
+      {
+         loadStreaming(file);
+         return;
+      }
+
+      long startTime = System.nanoTime();
+      GrafParser parser = null;
+      try
+      {
+         parser = parsers.acquire();
+      }
+      catch (SAXException e)
+      {
+         throw new ExecutionException(e);
+      }
+      catch (GrafException e)
+      {
+         throw new ExecutionException(e);
+      }
+
       //create empty graph to start
       IGraph graph = null;
       try
       {
          //set graph to the graph file
          // System.out.println("Loading the graph.");
+         long parseTime = System.nanoTime();
          graph = parser.parse(file);
+         long addTime = System.nanoTime();
 
          addHeader(graph);
+         spans = new SpanResolver(graph);
+         batch = new AnnotationBatch();
          //cycle through the nodes of the graph to get the annotations
          for (INode node : graph.nodes())
          {
@@ -239,6 +433,13 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
             // System.out.println("Adding annotation for node " + node.getId());
             addAnnotation(node);
          }
+         batch.addTo(annotations);
+         if (printTimings)
+         {
+            Out.prln(file.getName() + ": parser " + millis(parseTime - startTime)
+                    + " ms, parse " + millis(addTime - parseTime)
+                    + " ms, add " + millis(System.nanoTime() - addTime) + " ms");
+         }
       }
       catch (Exception ex)
       {
@@ -255,9 +456,337 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
             Out.prln(ex.getMessage());
          }
       }
+      finally
+      {
+         parsers.release(parser);
+      }
 //      System.out.println("Execution complete.");
    }
 
+   private static long millis(long nanos)
+   {
+      return nanos / 1000000L;
+   }
+
+   /**
+    * Returns the standoff file for the annotationType next to the document's
+    * text file.
+    */
+   protected File getStandoffFile(Document doc)
+   {
+      // TODO The annotation file should be retrieved from the document header.
+      File docFile = new File(doc.getSourceUrl().getPath());
+      File parent = docFile.getParentFile();
+
+      String filename = docFile.getName();
+      int index = filename.lastIndexOf(".txt");
+      if (index > 0)
+      {
+         filename = filename.substring(0, index);
+      }
+      filename = filename + "-" + annotationType + ".xml";
+      return new File(parent, filename);
+   }
+
+   /**
+    * Returns the standoff file, or its compressed version, if it is listed in
+    * the manifest or exists in the container or on disk. Otherwise returns
+    * null.
+    */
+   protected File locate(File file)
+   {
+      if (manifest != null)
+      {
+         return manifest.resolve(file);
+      }
+      file = CorpusContainer.resolve(container, file);
+      return CorpusContainer.exists(container, file) ? file : null;
+   }
+
+   /**
+    * Adds the annotations from the prefetched layer for the file, after
+    * submitting the standoff files of the next documents in the corpus.
+    * Returns false if the file was not prefetched, in which case the caller
+    * loads it as usual.
+    */
+   protected boolean loadPrefetched(File file) throws ExecutionException
+   {
+      if (prefetcher == null || prefetcher.getWindow() != prefetchWindow)
+      {
+         if (prefetcher != null)
+         {
+            prefetcher.shutdown();
+         }
+         int threads = Math.min(prefetchWindow, Runtime.getRuntime().availableProcessors());
+         prefetcher = new StandoffPrefetcher(threads, prefetchWindow);
+      }
+      // Remove this document's layer first so it does not count against the window.
+      Future<StandoffLayer> future = prefetcher.remove(file);
+      prefetchNext();
+      if (future == null)
+      {
+         return false;
+      }
+      long startTime = System.nanoTime();
+      try
+      {
+         StandoffLayer layer = future.get();
+         long addTime = System.nanoTime();
+         addLayer(layer);
+         if (printTimings)
+         {
+            Out.prln(file.getName() + ": prefetched, waited " + millis(addTime - startTime)
+                    + " ms, add " + millis(System.nanoTime() - addTime) + " ms");
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new ExecutionException("Interrupted while loading standoff annotations.", e);
+      }
+      catch (Exception e)
+      {
+         Throwable ex = e instanceof java.util.concurrent.ExecutionException ? e.getCause() : e;
+         Err.prln("Error loading standoff from " + file.getPath());
+         if (failFast) {
+            throw new ExecutionException("Unable to load standoff.", ex);
+         }
+         else if (printStackTrace)
+         {
+            ex.printStackTrace();
+         }
+         else
+         {
+            Out.prln(ex.getMessage());
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Submits the standoff files of the documents that follow the current one
+    * in the corpus to the prefetcher. Documents that are not in memory, e.g.
+    * in a serial corpus, are not loaded just to find their standoff files.
+    */
+   protected void prefetchNext()
+   {
+      if (corpus == null || sourceUrl != null)
+      {
+         return;
+      }
+      int index = indexOf(document);
+      if (index < 0)
+      {
+         return;
+      }
+      final CorpusContainer container = this.container;
+      int last = Math.min(corpus.size() - 1, index + prefetcher.getWindow());
+      for (int i = index + 1; i <= last; ++i)
+      {
+         if (!corpus.isDocumentLoaded(i))
+         {
+            continue;
+         }
+         Document next = corpus.get(i);
+         if (next.getSourceUrl() == null)
+         {
+            continue;
+         }
+         final File file = locate(getStandoffFile(next));
+         if (file != null)
+         {
+            prefetcher.submit(file, new Callable<StandoffLayer>()
+            {
+               public StandoffLayer call() throws Exception
+               {
+                  return readLayer(file, container);
+               }
+            });
+         }
+      }
+   }
+
+   /** Returns the position of the document in the corpus, checking the next position first. */
+   private int indexOf(Document doc)
+   {
+      int next = corpusIndex + 1;
+      if (next < corpus.size() && corpus.isDocumentLoaded(next) && corpus.get(next) == doc)
+      {
+         corpusIndex = next;
+      }
+      else
+      {
+         corpusIndex = corpus.indexOf(doc);
+      }
+      return corpusIndex;
+   }
+
+   /**
+    * Returns the whole layer for the standoff file from the sidecar cache if
+    * there is one, otherwise parses the file. Does not touch the document so
+    * it can be called on the prefetch threads.
+    */
+   protected StandoffLayer readLayer(File file, CorpusContainer container) throws Exception
+   {
+      StandoffCache cache = null;
+      if (cacheDirectory != null && !CorpusContainer.isPacked(container, file))
+      {
+         cache = createCache();
+         StandoffLayer layer = cache.read(file);
+         if (layer != null)
+         {
+            return layer;
+         }
+      }
+      StandoffLayer layer = parseLayer(file, container);
+      if (cache != null)
+      {
+         try
+         {
+            cache.write(file, layer);
+         }
+         catch (IOException e)
+         {
+            Out.prln("Unable to cache " + file.getPath() + ": " + e.getMessage());
+         }
+      }
+      return layer;
+   }
+
+   /**
+    * Creates a loader that finds dependencies through the container and the
+    * manifest. It adds the annotations from the dependencies as well, so a
+    * file gives the same annotations whether or not a graph is built for it.
+    */
+   protected GrafStreamLoader createStreamLoader(CorpusContainer container)
+   {
+      GrafStreamLoader loader = new GrafStreamLoader(annotationSpaces);
+      loader.setContainer(container);
+      loader.setManifest(manifest);
+      loader.setIncludeDependencies(true);
+      return loader;
+   }
+
+   /** Creates the sidecar cache, which finds dependencies through the manifest if there is one. */
+   protected StandoffCache createCache()
+   {
+      StandoffCache cache = new StandoffCache(FileUtils.toFile(cacheDirectory));
+      cache.setManifest(manifest);
+      return cache;
+   }
+
+   /** Parses the whole standoff file into a layer. */
+   protected StandoffLayer parseLayer(File file, CorpusContainer container) throws Exception
+   {
+      if (streaming || Compression.isCompressed(file) || CorpusContainer.isPacked(container, file))
+      {
+         return createStreamLoader(container).loadLayer(file);
+      }
+      GrafParser parser = parsers.acquire();
+      try
+      {
+         return StandoffLayer.fromGraph(parser.parse(file));
+      }
+      finally
+      {
+         parsers.release(parser);
+      }
+   }
+
+   /** Adds the annotations in the layer that pass the filter and records its header. */
+   protected void addLayer(StandoffLayer layer) throws InvalidOffsetException
+   {
+      layer.addTo(annotations, endOfContent, filter, EdgeEncoding.isArray(edgeEncoding));
+      addToMetaData("graf:annotationSpaces", layer.getAnnotationSpaces());
+      addToMetaData("graf:dependsOn", layer.getDependsOn());
+      addToMetaData("graf:roots", layer.getRoots());
+   }
+
+   /**
+    * Loads the standoff file with a GrafStreamLoader rather than building
+    * an IGraph.
+    */
+   protected void loadStreaming(File file) throws ExecutionException
+   {
+      try
+      {
+         GrafStreamLoader loader = createStreamLoader(container);
+         loader.setFilter(filter);
+         loader.setEdgeEncoding(edgeEncoding);
+         loader.load(file, annotations, endOfContent);
+         addToMetaData("graf:annotationSpaces", loader.getAnnotationSpaces());
+         addToMetaData("graf:dependsOn", loader.getDependsOn());
+         addToMetaData("graf:roots", loader.getRoots());
+      }
+      catch (Exception ex)
+      {
+         Err.prln("Error loading standoff from " + file.getPath());
+         if (failFast) {
+            throw new ExecutionException("Unable to load standoff.", ex);
+         }
+         else if (printStackTrace)
+         {
+            ex.printStackTrace();
+         }
+         else
+         {
+            Out.prln(ex.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Loads the annotations from the sidecar file in the cache directory. If
+    * the sidecar is missing or out of date the standoff file is parsed and a
+    * new sidecar is written.
+    */
+   protected void loadCached(File file) throws ExecutionException
+   {
+      long startTime = System.nanoTime();
+      try
+      {
+         StandoffCache cache = createCache();
+         StandoffLayer layer = cache.read(file);
+         boolean hit = layer != null;
+         if (!hit)
+         {
+            layer = parseLayer(file, container);
+            try
+            {
+               cache.write(file, layer);
+            }
+            catch (IOException e)
+            {
+               Out.prln("Unable to cache " + file.getPath() + ": " + e.getMessage());
+            }
+         }
+         long addTime = System.nanoTime();
+         // The sidecar always holds the whole layer so the filter is applied here.
+         addLayer(layer);
+         if (printTimings)
+         {
+            Out.prln(file.getName() + ": " + (hit ? "cached" : "parsed") + " in "
+                    + millis(addTime - startTime) + " ms, add "
+                    + millis(System.nanoTime() - addTime) + " ms");
+         }
+      }
+      catch (Exception ex)
+      {
+         Err.prln("Error loading standoff from " + file.getPath());
+         if (failFast) {
+            throw new ExecutionException("Unable to load standoff.", ex);
+         }
+         else if (printStackTrace)
+         {
+            ex.printStackTrace();
+         }
+         else
+         {
+            Out.prln(ex.getMessage());
+         }
+      }
+   }
+
    @RunTime(false)
    @Optional(false)
    @CreoleParameter(comment = "Corpus resource header.")
@@ -322,6 +851,165 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
    }
 
 
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "A packed corpus container to read standoff files from instead of the directory.")
+   public void setContainerUrl(URL containerUrl)
+   {
+      this.containerUrl = containerUrl;
+   }
+   public URL getContainerUrl()
+   {
+      return containerUrl;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "A corpus directory or manifest index file listing the standoff files, so the disk is not checked for each document.")
+   public void setManifestUrl(URL manifestUrl)
+   {
+      this.manifestUrl = manifestUrl;
+   }
+   public URL getManifestUrl()
+   {
+      return manifestUrl;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "The number of following documents whose standoff files are parsed in the background. Zero disables prefetching.",
+           defaultValue = "0"
+   )
+   public void setPrefetchWindow(Integer prefetchWindow)
+   {
+      this.prefetchWindow = prefetchWindow;
+   }
+   public Integer getPrefetchWindow()
+   {
+      return prefetchWindow;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Directory where parsed standoff files are cached. Caching is disabled if not set.")
+   public void setCacheDirectory(URL cacheDirectory)
+   {
+      this.cacheDirectory = cacheDirectory;
+   }
+   public URL getCacheDirectory()
+   {
+      return cacheDirectory;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Print the time taken to get a parser, parse and add the annotations.",
+           defaultValue = "false"
+   )
+   public void setPrintTimings(Boolean printTimings)
+   {
+      this.printTimings = printTimings;
+   }
+   public Boolean getPrintTimings()
+   {
+      return printTimings;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Annotation labels to load. All labels are loaded if empty.")
+   public void setIncludeLabels(List<String> includeLabels)
+   {
+      this.includeLabels = includeLabels;
+   }
+   public List<String> getIncludeLabels()
+   {
+      return includeLabels;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Annotation labels that will not be loaded.")
+   public void setExcludeLabels(List<String> excludeLabels)
+   {
+      this.excludeLabels = excludeLabels;
+   }
+   public List<String> getExcludeLabels()
+   {
+      return excludeLabels;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Annotation spaces to load. All annotation spaces are loaded if empty.")
+   public void setIncludeSpaces(List<String> includeSpaces)
+   {
+      this.includeSpaces = includeSpaces;
+   }
+   public List<String> getIncludeSpaces()
+   {
+      return includeSpaces;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Only annotations that overlap the text starting at this offset are loaded. "
+           + "Standoff XML files are still parsed in full and their features flattened before the window is applied; "
+           + "only layers read from the sidecar cache skip the annotations outside it.")
+   public void setWindowStart(Long windowStart)
+   {
+      this.windowStart = windowStart;
+   }
+   public Long getWindowStart()
+   {
+      return windowStart;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Only annotations that overlap the text before this offset are loaded. "
+           + "See windowStart for what the window saves.")
+   public void setWindowEnd(Long windowEnd)
+   {
+      this.windowEnd = windowEnd;
+   }
+   public Long getWindowEnd()
+   {
+      return windowEnd;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "How graf:edge values are stored: \"string\" for space separated ids or \"array\" for a String[].",
+           defaultValue = "string"
+   )
+   public void setEdgeEncoding(String edgeEncoding)
+   {
+      this.edgeEncoding = edgeEncoding;
+   }
+   public String getEdgeEncoding()
+   {
+      return edgeEncoding;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Load the standoff file with a streaming parser instead of building a graph.",
+           defaultValue = "false"
+   )
+   public void setStreaming(Boolean streaming)
+   {
+      this.streaming = streaming;
+   }
+   public Boolean getStreaming()
+   {
+      return streaming;
+   }
+
    @RunTime
    @Optional
    @CreoleParameter(comment = "Annotation type to be loaded. Only used if the sourceUrl is not specified.")
@@ -337,22 +1025,21 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
 
    protected void addAnnotation(INode node) throws InvalidOffsetException
    {
-      IRegion span = GraphUtils.getSpan(node);
-      if (span == null || span.getStart() == null || span.getEnd() == null || span.getStart().compareTo(span.getEnd()) > 0)
+      if (!spans.hasSpan(node) || !filter.overlaps(spans.getStart(node), spans.getEnd(node)))
       {
          return;
       }
-      //node ids from out edges ( children node ids ) will end up as a long string
-      //separated by spaces
-      StringBuilder ids = new StringBuilder();
-      //cycle the out edges for this node
-      for (IEdge e : node.getOutEdges())
-      {
-         //append child node id to ids stringbuilder
-         ids.append(e.getTo().getId() + " ");
-      }
+      //node ids from out edges ( children node ids ), as a string separated by
+      //spaces or as an array depending on the edgeEncoding
+      Object edges = EdgeEncoding.encode(node, EdgeEncoding.isArray(edgeEncoding));
       for (IAnnotation a : node.annotations())
       {
+         //skip annotations the user did not ask for before any features are copied
+         IAnnotationSpace space = a.getAnnotationSpace();
+         if (!filter.accept(a.getLabel(), space == null ? null : space.getName()))
+         {
+            continue;
+         }
          //create a gate object, FeatureMap, 
          FeatureMap newFeatures = Factory.newFeatureMap();
          //we know since this is an anc standoff graph, use Standoff Markups as the annotation setName
@@ -368,10 +1055,10 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
             newFeatures.put(Graf.GRAF_SET, aSetName);
 
          }
-         //if we have any outEdges put the 'id' stringbuilder in the gate FeatureMap using 'graf:edge' as the key
-         if (node.getOutEdges().size() > 0)
+         //if we have any outEdges put the child ids in the gate FeatureMap using 'graf:edge' as the key
+         if (edges != null)
          {
-            newFeatures.put(Graf.GRAF_EDGE, ids.toString());
+            newFeatures.put(Graf.GRAF_EDGE, edges);
          }
          //put the node id in the gate FeatureMap using 'graf:id' as the key
          newFeatures.put(Graf.GRAF_ID, node.getId());
@@ -386,8 +1073,8 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
          long end = 0;
          try
          {
-            start = (Long) span.getStart().getOffset(); //offset.getStart();
-            end = (Long) span.getEnd().getOffset(); //offset.getEnd();
+            start = spans.getStart(node);
+            end = spans.getEnd(node);
             if (end > endOfContent)
             {
                System.err.println("Invalid end offset for " + label + " " + end
@@ -405,7 +1092,7 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
                //if here, the offsets look ok, finally add the annotation to the
                //gate annotations object using the start, end, anc graf annotation name and the gate feature map
 //                  Out.println(start + ", " + end + ": " + label);
-               annotations.add(start, end, label, newFeatures);
+               batch.add(start, end, label, newFeatures);
 
             }
          }
@@ -482,16 +1169,21 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
          //if this is not a feature structure, go, otherwise recurse with child features
          if (f.isAtomic())
          {
+            //a feature without a name has no key, the same as in GrafStreamLoader
+            if (f.getName() == null)
+            {
+               continue;
+            }
             //if no base sent in, use the feature name as the key in the passed in feature map
             if (base == null)
             {
                //put in feature map with feature name as key, and feature value as value
-               fm.put(f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(f.getName()), f.getStringValue());
             }
             //if base is sent in append feature name to it, and use that as key instead
             else
             {
-               fm.put(base + "/" + f.getName(), f.getStringValue());
+               fm.put(FeatureKeys.get(base, f.getName()), f.getStringValue());
             }
          }
          //wait, this is not a feature, it is a feature structure, get the child feature structure and recurse with it
@@ -508,7 +1200,7 @@ public class LoadGrafStandoff extends ANCLanguageAnalyzer
             //base is sent in, append feature ( or feature structure ) name to it, and use that as new base
             else
             {
-               childName = base + "/" + f.getName();
+               childName = FeatureKeys.get(base, f.getName());
             }
             //recurse with child featureStructure, featureMap, and feature name as base
             addFeatures(childFS, fm, childName);
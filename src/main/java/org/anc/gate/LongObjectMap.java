@@ -0,0 +1,151 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long keys to objects that does not box the keys or
+ * allocate an entry object per key.
+ * <p>
+ * Keys and values are kept in two parallel arrays and collisions are resolved
+ * with linear probing, as in {@link IdTable}. Null values can not be stored
+ * since an empty value marks an empty slot. Keys can not be removed, only the
+ * whole map can be cleared. Instances are not thread safe.
+ */
+public class LongObjectMap<V>
+{
+   private long[] keys;
+   private Object[] values;
+   private int size = 0;
+   private int mask;
+
+   public LongObjectMap()
+   {
+      this(64);
+   }
+
+   /**
+    * @param expected the number of keys the map should hold without growing
+    */
+   public LongObjectMap(int expected)
+   {
+      int capacity = 16;
+      while (capacity < expected * 2)
+      {
+         capacity <<= 1;
+      }
+      keys = new long[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   /** Returns the value for the key or null. */
+   @SuppressWarnings("unchecked")
+   public V get(long key)
+   {
+      int slot = hash(key) & mask;
+      while (values[slot] != null)
+      {
+         if (keys[slot] == key)
+         {
+            return (V) values[slot];
+         }
+         slot = (slot + 1) & mask;
+      }
+      return null;
+   }
+
+   /** Sets the value for the key, replacing any previous value. */
+   public void put(long key, V value)
+   {
+      if (value == null)
+      {
+         throw new NullPointerException("Null values can not be stored.");
+      }
+      if ((size + 1) * 2 > keys.length)
+      {
+         resize(keys.length * 2);
+      }
+      int slot = hash(key) & mask;
+      while (values[slot] != null)
+      {
+         if (keys[slot] == key)
+         {
+            values[slot] = value;
+            return;
+         }
+         slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+      ++size;
+   }
+
+   public void clear()
+   {
+      Arrays.fill(values, null);
+      size = 0;
+   }
+
+   /**
+    * Packs a pair of offsets into a single key, or returns -1 if either offset
+    * does not fit in 31 bits.
+    */
+   public static long pack(long start, long end)
+   {
+      if (start < 0 || end < 0 || start > Integer.MAX_VALUE || end > Integer.MAX_VALUE)
+      {
+         return -1;
+      }
+      return (start << 32) | end;
+   }
+
+   private void resize(int capacity)
+   {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new long[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; ++i)
+      {
+         if (oldValues[i] != null)
+         {
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+         }
+      }
+   }
+
+   /** Mixes the high and low halves since packed keys often differ only in one of them. */
+   static int hash(long key)
+   {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+}
@@ -0,0 +1,231 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The regions and nodes of every layer loaded for a document, shared between
+ * the layers while the document is being loaded.
+ * <p>
+ * GrAF layers refer to regions and nodes defined in the layers they depend on.
+ * When a layer has been parsed its regions, resolved node spans and edges are
+ * added to the registry, and layers parsed later look up the ids they do not
+ * define themselves here instead of reading the dependency again. Regions and
+ * nodes are identified by compact int handles, ids are mapped to handles with an
+ * {@link IdTable}, and offsets and edges are kept in primitive arrays.
+ * <p>
+ * A node's span is final when it is added since a layer can not refer to the
+ * layers that depend on it. The registry is append only and all methods are
+ * synchronized so layers can be added while other threads are reading.
+ */
+public class NodeRegistry
+{
+   /** Returned when an id is not in the registry. */
+   public static final int MISSING = IdTable.MISSING;
+
+   private final Set<String> layers = new HashSet<String>();
+
+   private final IdTable regionIds = new IdTable(1024);
+   private long[] regionStart = new long[1024];
+   private long[] regionEnd = new long[1024];
+   private int regionCount = 0;
+
+   private final IdTable nodeIds = new IdTable(1024);
+   private String[] nodeNames = new String[1024];
+   private long[] nodeStart = new long[1024];
+   private long[] nodeEnd = new long[1024];
+   /** The out edges of node n are edgeTarget[edgeFirst[n]] to edgeTarget[edgeFirst[n] + edgeCount[n] - 1]. */
+   private int[] edgeFirst = new int[1024];
+   private int[] edgeCount = new int[1024];
+   private int nodeCount = 0;
+
+   private int[] edgeTarget = new int[1024];
+   private int edgeTotal = 0;
+
+   public synchronized boolean containsLayer(String name)
+   {
+      return layers.contains(name);
+   }
+
+   /** Records that the regions and nodes of the named layer have been added. */
+   public synchronized void addLayer(String name)
+   {
+      layers.add(name);
+   }
+
+   public synchronized int getRegion(String id)
+   {
+      return regionIds.get(id);
+   }
+
+   public synchronized long getRegionStart(int region)
+   {
+      return regionStart[region];
+   }
+
+   public synchronized long getRegionEnd(int region)
+   {
+      return regionEnd[region];
+   }
+
+   /**
+    * Adds a region and returns its handle. If the id has already been added the
+    * existing handle is returned and the offsets are not changed.
+    */
+   public synchronized int addRegion(String id, long start, long end)
+   {
+      int region = regionIds.get(id);
+      if (region != MISSING)
+      {
+         return region;
+      }
+      if (regionCount == regionStart.length)
+      {
+         regionStart = Arrays.copyOf(regionStart, regionCount * 2);
+         regionEnd = Arrays.copyOf(regionEnd, regionCount * 2);
+      }
+      region = regionCount++;
+      regionStart[region] = start;
+      regionEnd[region] = end;
+      regionIds.put(id, region);
+      return region;
+   }
+
+   public synchronized int getNode(String id)
+   {
+      return nodeIds.get(id);
+   }
+
+   public synchronized String getNodeId(int node)
+   {
+      return nodeNames[node];
+   }
+
+   /** Returns false if no regions can be reached from the node. */
+   public synchronized boolean hasSpan(int node)
+   {
+      return nodeStart[node] <= nodeEnd[node];
+   }
+
+   public synchronized long getNodeStart(int node)
+   {
+      return nodeStart[node];
+   }
+
+   public synchronized long getNodeEnd(int node)
+   {
+      return nodeEnd[node];
+   }
+
+   public synchronized int getEdgeCount(int node)
+   {
+      return edgeCount[node];
+   }
+
+   /** Returns the handle of the target of the i'th out edge of the node. */
+   public synchronized int getEdgeTarget(int node, int i)
+   {
+      return edgeTarget[edgeFirst[node] + i];
+   }
+
+   /**
+    * Adds a node with its resolved span and returns its handle. Nodes without a
+    * span should be added with start &gt; end. If the id has already been added
+    * the existing handle is returned.
+    */
+   public synchronized int addNode(String id, long start, long end)
+   {
+      int node = nodeIds.get(id);
+      if (node != MISSING)
+      {
+         return node;
+      }
+      if (nodeCount == nodeStart.length)
+      {
+         int size = nodeCount * 2;
+         nodeNames = Arrays.copyOf(nodeNames, size);
+         nodeStart = Arrays.copyOf(nodeStart, size);
+         nodeEnd = Arrays.copyOf(nodeEnd, size);
+         edgeFirst = Arrays.copyOf(edgeFirst, size);
+         edgeCount = Arrays.copyOf(edgeCount, size);
+      }
+      node = nodeCount++;
+      nodeNames[node] = id;
+      nodeStart[node] = start;
+      nodeEnd[node] = end;
+      edgeFirst[node] = edgeTotal;
+      edgeCount[node] = 0;
+      nodeIds.put(id, node);
+      return node;
+   }
+
+   /**
+    * Sets the out edges of a node that does not have any yet. The targets are
+    * node handles.
+    */
+   public synchronized void setEdges(int node, int[] targets, int from, int to)
+   {
+      if (edgeCount[node] > 0 || to <= from)
+      {
+         return;
+      }
+      int n = to - from;
+      if (edgeTotal + n > edgeTarget.length)
+      {
+         edgeTarget = Arrays.copyOf(edgeTarget, Math.max(edgeTarget.length * 2, edgeTotal + n));
+      }
+      System.arraycopy(targets, from, edgeTarget, edgeTotal, n);
+      edgeFirst[node] = edgeTotal;
+      edgeCount[node] = n;
+      edgeTotal += n;
+   }
+
+   public synchronized int getRegionCount()
+   {
+      return regionCount;
+   }
+
+   public synchronized int getNodeCount()
+   {
+      return nodeCount;
+   }
+
+   public synchronized int getEdgeCount()
+   {
+      return edgeTotal;
+   }
+
+   /** An estimate of the memory used by the registry in bytes. */
+   public synchronized long getMemoryUsage()
+   {
+      long bytes = regionIds.getMemoryUsage() + nodeIds.getMemoryUsage();
+      bytes += 8L * (regionStart.length + regionEnd.length);
+      bytes += 4L * nodeNames.length + 8L * (nodeStart.length + nodeEnd.length);
+      bytes += 4L * (edgeFirst.length + edgeCount.length + edgeTarget.length);
+      return bytes;
+   }
+
+   /** A one line summary of the size of the registry. */
+   public synchronized String getMemoryReport()
+   {
+      return layers.size() + " layers, " + regionCount + " regions, " + nodeCount + " nodes, "
+              + edgeTotal + " edges, about " + (getMemoryUsage() + 1023) / 1024 + " KB";
+   }
+}
@@ -0,0 +1,154 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import gate.Annotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Sorts annotations by offset without boxing. The offsets are given as
+ * parallel start and end arrays and the result is a permutation of the
+ * indices, so callers can reorder as many other arrays as they need.
+ */
+final class OffsetSort
+{
+   private OffsetSort()
+   {
+   }
+
+   /**
+    * Returns the annotations sorted by start and then end offset, the same
+    * order as AnnotationComparer.createStartComparator(). The offsets are
+    * copied into primitive arrays first so the sort does not compare boxed
+    * Longs, and annotations that are already in order are only checked, not
+    * sorted. Annotations with the same offsets are ordered by id, so the
+    * order does not depend on how the collection iterates, e.g. when
+    * SaveGrafStandoff sorts the annotations starting at one offset rather
+    * than the whole set.
+    */
+   static List<Annotation> sort(Collection<Annotation> annotations)
+   {
+      Annotation[] array = annotations.toArray(new Annotation[annotations.size()]);
+      long[] start = new long[array.length];
+      long[] end = new long[array.length];
+      long[] id = new long[array.length];
+      for (int i = 0; i < array.length; ++i)
+      {
+         start[i] = array[i].getStartNode().getOffset().longValue();
+         end[i] = array[i].getEndNode().getOffset().longValue();
+         id[i] = array[i].getId().longValue();
+      }
+      int[] order = sort(start, end, id, array.length);
+      List<Annotation> sorted = new ArrayList<Annotation>(array.length);
+      for (int i : order)
+      {
+         sorted.add(array[i]);
+      }
+      return sorted;
+   }
+
+   /**
+    * Returns the indices 0 to size-1 sorted by start and then end offset.
+    * Indices with the same offsets keep their original order.
+    */
+   static int[] sort(long[] start, long[] end, int size)
+   {
+      return sort(start, end, null, size);
+   }
+
+   /** As above, but indices with the same offsets are ordered by <code>id</code> if it is not null. */
+   private static int[] sort(long[] start, long[] end, long[] id, int size)
+   {
+      int[] order = new int[size];
+      boolean sorted = true;
+      for (int i = 0; i < size; ++i)
+      {
+         order[i] = i;
+         if (i > 0 && compare(start, end, id, i - 1, i) > 0)
+         {
+            sorted = false;
+         }
+      }
+      if (!sorted)
+      {
+         mergeSort(start, end, id, order, new int[size], 0, size);
+      }
+      return order;
+   }
+
+   /** A stable merge sort of index[from..to) using temp as scratch space. */
+   private static void mergeSort(long[] start, long[] end, long[] id, int[] index, int[] temp, int from, int to)
+   {
+      if (to - from < 8)
+      {
+         for (int i = from + 1; i < to; ++i)
+         {
+            int value = index[i];
+            int j = i - 1;
+            while (j >= from && compare(start, end, id, index[j], value) > 0)
+            {
+               index[j + 1] = index[j];
+               --j;
+            }
+            index[j + 1] = value;
+         }
+         return;
+      }
+      int middle = (from + to) >>> 1;
+      mergeSort(start, end, id, index, temp, from, middle);
+      mergeSort(start, end, id, index, temp, middle, to);
+      if (compare(start, end, id, index[middle - 1], index[middle]) <= 0)
+      {
+         return;
+      }
+      System.arraycopy(index, from, temp, from, to - from);
+      int left = from;
+      int right = middle;
+      for (int i = from; i < to; ++i)
+      {
+         if (right >= to || (left < middle && compare(start, end, id, temp[left], temp[right]) <= 0))
+         {
+            index[i] = temp[left++];
+         }
+         else
+         {
+            index[i] = temp[right++];
+         }
+      }
+   }
+
+   private static int compare(long[] start, long[] end, long[] id, int a, int b)
+   {
+      if (start[a] != start[b])
+      {
+         return start[a] < start[b] ? -1 : 1;
+      }
+      if (end[a] != end[b])
+      {
+         return end[a] < end[b] ? -1 : 1;
+      }
+      if (id != null && id[a] != id[b])
+      {
+         return id[a] < id[b] ? -1 : 1;
+      }
+      return 0;
+   }
+}
@@ -0,0 +1,143 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.xces.graf.api.IAnnotationSpace;
+import org.xces.graf.io.dom.ResourceHeader;
+
+/**
+ * A process wide cache of parsed corpus resource headers.
+ * <p>
+ * Entries are keyed by the URL of the resource header and the modification
+ * time of the file, so a header that is edited on disk is parsed again the next
+ * time it is requested. Headers that are not loaded from a file are cached until
+ * {@link #clear()} is called.
+ * <p>
+ * The cached ResourceHeader objects are shared between threads. Code that reads
+ * from a header, e.g. constructing a GrafParser, should synchronize on it.
+ */
+public final class ResourceHeaderCache
+{
+   private static final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+   private ResourceHeaderCache()
+   {
+   }
+
+   public static ResourceHeader getHeader(URL url) throws IOException
+   {
+      return getEntry(url).header;
+   }
+
+   /**
+    * Returns the annotation spaces defined in the resource header keyed by
+    * name. The map is unmodifiable.
+    */
+   public static Map<String, IAnnotationSpace> getAnnotationSpaces(URL url) throws IOException
+   {
+      return getEntry(url).spaces;
+   }
+
+   /** Returns the pool of GrafParsers created from the resource header. */
+   public static GrafParserPool getParserPool(URL url) throws IOException
+   {
+      return getEntry(url).parsers;
+   }
+
+   public static void clear()
+   {
+      cache.clear();
+   }
+
+   private static Entry getEntry(URL url) throws IOException
+   {
+      String key = url.toExternalForm();
+      long modified = lastModified(url);
+      Entry entry = cache.get(key);
+      if (entry != null && entry.modified == modified)
+      {
+         return entry;
+      }
+      synchronized (cache)
+      {
+         // Another thread may have loaded the header while we were waiting.
+         entry = cache.get(key);
+         if (entry == null || entry.modified != modified)
+         {
+            entry = new Entry(load(url), modified);
+            cache.put(key, entry);
+         }
+      }
+      return entry;
+   }
+
+   private static ResourceHeader load(URL url) throws IOException
+   {
+      InputStream stream = url.openStream();
+      try
+      {
+         return new ResourceHeader(stream);
+      }
+      finally
+      {
+         stream.close();
+      }
+   }
+
+   private static long lastModified(URL url)
+   {
+      File file = FileUtils.toFile(url);
+      if (file == null)
+      {
+         return 0;
+      }
+      return file.lastModified();
+   }
+
+   private static class Entry
+   {
+      final ResourceHeader header;
+      final long modified;
+      final Map<String, IAnnotationSpace> spaces;
+      final GrafParserPool parsers;
+
+      Entry(ResourceHeader header, long modified)
+      {
+         this.header = header;
+         this.modified = modified;
+         Map<String, IAnnotationSpace> map = new LinkedHashMap<String, IAnnotationSpace>();
+         for (IAnnotationSpace space : header.getAnnotationSpaces())
+         {
+            map.put(space.getName(), space);
+         }
+         this.spaces = Collections.unmodifiableMap(map);
+         this.parsers = new GrafParserPool(header);
+      }
+   }
+}
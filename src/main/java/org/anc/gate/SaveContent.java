@@ -17,13 +17,16 @@
 
 package org.anc.gate;
 
+import gate.Controller;
 import gate.Resource;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 
 import gate.creole.metadata.CreoleParameter;
@@ -36,11 +39,17 @@ import org.anc.gate.core.ANCLanguageAnalyzer;
         name = "GrAF Save Content",
         comment = "Saves the text content from a GATE document."
 )
-public class SaveContent extends ANCLanguageAnalyzer
+public class SaveContent extends ANCLanguageAnalyzer implements ControllerAwarePR
 {
    // Properties to hold parameter values.
    private java.net.URL destination = null;
    private java.lang.String encoding = null;
+   private Boolean asynchronous = Boolean.FALSE;
+   private String compression = Compression.NONE;
+   private Integer writerThreads = 1;
+   private Integer queueSize = 16;
+   /** Writes files in the background when asynchronous is true. */
+   protected transient WriteBehindQueue queue = null;
 
    public SaveContent()
    {
@@ -60,6 +69,32 @@ public class SaveContent extends ANCLanguageAnalyzer
       this.init();
    }
 
+   @Override
+   public void cleanup()
+   {
+      if (queue != null)
+      {
+         queue.close();
+         queue = null;
+      }
+      super.cleanup();
+   }
+
+   public void controllerExecutionStarted(Controller controller) throws ExecutionException
+   {
+   }
+
+   /** Waits for queued files to be written and reports any that failed. */
+   public void controllerExecutionFinished(Controller controller) throws ExecutionException
+   {
+      flushQueue();
+   }
+
+   public void controllerExecutionAborted(Controller controller, Throwable throwable) throws ExecutionException
+   {
+      flushQueue();
+   }
+
    @Override
    public void execute() throws ExecutionException
    {
@@ -68,6 +103,13 @@ public class SaveContent extends ANCLanguageAnalyzer
       {
          throw new ExecutionException("Parameter destination has not been set.");
       }
+      if (!Compression.isSupported(compression))
+      {
+         throw new ExecutionException("Unsupported compression " + compression + ". Use none or gzip.");
+      }
+
+      // Report files from previous documents that could not be written.
+      queue = WriteBehindQueue.update(queue, asynchronous, writerThreads, queueSize, true, false);
 
       try
       {
@@ -83,7 +125,9 @@ public class SaveContent extends ANCLanguageAnalyzer
             }
             outputFile = new File(outputFile, name);
          }
-         FileOutputStream ofstream = new FileOutputStream(outputFile);
+         outputFile = Compression.getOutputFile(outputFile, compression);
+         OutputStream ofstream = queue == null ? new FileOutputStream(outputFile) : queue.open(outputFile);
+         ofstream = Compression.compress(ofstream, compression);
          OutputStreamWriter writer = new OutputStreamWriter(ofstream, encoding);
 //        System.out.println("Set encoding to " + writer.getEncoding());
 //        FileWriter writer = new FileWriter(destination.getPath());
@@ -102,6 +146,18 @@ public class SaveContent extends ANCLanguageAnalyzer
       }
    }
 
+   /** Waits for the queue to write the files it holds, then reports failures. */
+   protected void flushQueue() throws ExecutionException
+   {
+      if (queue == null)
+      {
+         return;
+      }
+      WriteBehindQueue old = queue;
+      queue = null;
+      old.finish(true, false);
+   }
+
    @RunTime
    @Optional(false)
    @CreoleParameter(comment = "Where the standoff annotations will be saved.")
@@ -129,4 +185,64 @@ public class SaveContent extends ANCLanguageAnalyzer
       return encoding;
    }
 
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Compression for the saved files: \"none\" or \"gzip\". Compressed files get a .gz suffix.",
+           defaultValue = "none"
+   )
+   public void setCompression(String compression)
+   {
+      this.compression = compression;
+   }
+   public String getCompression()
+   {
+      return compression;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Queue files to be written by background threads instead of writing them on the pipeline thread.",
+           defaultValue = "false"
+   )
+   public void setAsynchronous(Boolean asynchronous)
+   {
+      this.asynchronous = asynchronous;
+   }
+   public Boolean getAsynchronous()
+   {
+      return asynchronous;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "The number of threads writing files when asynchronous is true.",
+           defaultValue = "1"
+   )
+   public void setWriterThreads(Integer writerThreads)
+   {
+      this.writerThreads = writerThreads;
+   }
+   public Integer getWriterThreads()
+   {
+      return writerThreads;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "The number of files that may be waiting to be written before execute() blocks.",
+           defaultValue = "16"
+   )
+   public void setQueueSize(Integer queueSize)
+   {
+      this.queueSize = queueSize;
+   }
+   public Integer getQueueSize()
+   {
+      return queueSize;
+   }
+
 }
@@ -19,8 +19,11 @@ package org.anc.gate;
 
 import gate.Annotation;
 import gate.AnnotationSet;
+import gate.Controller;
 import gate.FeatureMap;
+import gate.Node;
 import gate.Resource;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
@@ -30,26 +33,31 @@ import gate.creole.metadata.RunTime;
 import gate.util.Out;
 import gate.util.Pair;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
 import java.util.Map.Entry;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 //import org.anc.masc.MASC;
 import org.anc.gate.core.ANCLanguageAnalyzer;
-import org.anc.gate.core.AnnotationComparer;
 import org.anc.util.IDGenerator;
 import org.xces.graf.api.GrafException;
 import org.xces.graf.api.IAnchor;
@@ -73,7 +81,7 @@ import org.xces.graf.io.XML;
         name = "GrAF Save Standoff",
         comment = "Saves annotations to a GrAF standoff file."
 )
-public class SaveGrafStandoff extends ANCLanguageAnalyzer
+public class SaveGrafStandoff extends ANCLanguageAnalyzer implements ControllerAwarePR
 {
    // Properties to hold parameter values.
    private java.net.URL destination = null;
@@ -92,6 +100,16 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
    private String grafASName = null;
    private String grafASType = null;
    private String grafDefaultASType = null;
+   private Boolean streaming = Boolean.FALSE;
+   private Boolean splitLayers = Boolean.FALSE;
+   private java.util.List<String> layerMapping = null;
+   private Boolean overwriteHeader = Boolean.FALSE;
+   private Boolean asynchronous = Boolean.FALSE;
+   private String compression = Compression.NONE;
+   private Integer writerThreads = 1;
+   private Integer queueSize = 16;
+   /** Writes files in the background when asynchronous is true. */
+   protected transient WriteBehindQueue queue = null;
 
    public SaveGrafStandoff()
    {
@@ -110,6 +128,32 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
       this.init();
    }
 
+   @Override
+   public void cleanup()
+   {
+      if (queue != null)
+      {
+         queue.close();
+         queue = null;
+      }
+      super.cleanup();
+   }
+
+   public void controllerExecutionStarted(Controller controller) throws ExecutionException
+   {
+   }
+
+   /** Waits for queued files to be written and reports any that failed. */
+   public void controllerExecutionFinished(Controller controller) throws ExecutionException
+   {
+      flushQueue();
+   }
+
+   public void controllerExecutionAborted(Controller controller, Throwable throwable) throws ExecutionException
+   {
+      flushQueue();
+   }
+
    @Override
    public void execute() throws ExecutionException
    {
@@ -117,6 +161,13 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
       {
          throw new ExecutionException("Parameter document has not been set.");
       }
+      if (!Compression.isSupported(compression))
+      {
+         throw new ExecutionException("Unsupported compression " + compression + ". Use none or gzip.");
+      }
+
+      // Report files from previous documents that could not be written.
+      queue = WriteBehindQueue.update(queue, asynchronous, writerThreads, queueSize, failFast, printStackTrace);
 
       if (null == destination)
       {
@@ -128,16 +179,33 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
          encoding = "UTF-8";
       }
 
+      if (splitLayers && !new File(destination.getPath()).isDirectory())
+      {
+         throw new ExecutionException("The destination must be a directory when splitLayers is true.");
+      }
+
       try
       {
          File f = new File(destination.getPath());
+         if (splitLayers)
+         {
+            writeLayers(f);
+            return;
+         }
          if (f.isDirectory())
          {
             f = new File(f, document.getName() + "-" + filenameSuffix + ".xml");
          }
+         f = Compression.getOutputFile(f, compression);
+
+         if (streaming)
+         {
+            writeStreaming(f);
+            return;
+         }
 
          IGraph graph = createGraph();
-         FileOutputStream stream = new FileOutputStream(f);
+         OutputStream stream = openOutput(f);
          OutputStreamWriter writer = new OutputStreamWriter(stream, encoding);
          GrafRenderer graf = new GrafRenderer(writer);
 
@@ -177,23 +245,375 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
       }
    }
 
-   public IGraph createGraph() throws IOException, GrafException
+   /**
+    * Opens the file for writing. When asynchronous is true the contents are
+    * buffered and the file is written by the queue once the stream is closed.
+    * Files with a .gz suffix are compressed.
+    */
+   protected OutputStream openOutput(File file) throws IOException
    {
-//      Out.prln("GrAF Annotation set name : " + grafASName);
-      IGraph graph = Factory.newGraph();
-      IDGenerator id = new IDGenerator();
-      IAnchorFactory anchorFactory = Factory.newCharacterAnchorFactory();
+      OutputStream stream = null;
+      if (queue != null)
+      {
+         stream = queue.open(file);
+      }
+      else
+      {
+         stream = new FileOutputStream(file);
+      }
+      if (Compression.isCompressed(file))
+      {
+         stream = Compression.compress(stream, Compression.GZIP);
+      }
+      return stream;
+   }
 
-      Map<String, IAnnotationSpace> grafAnnotationSetMap = new HashMap<String, IAnnotationSpace>();
-      //grafASName ( default on the gui is: http://www.xces.org/schema/2003 ) and
-      //grafASType (default on the gui is: xces ) 
-      //come from the gate gui, use them to make a new anc graf annotationSet out of them ( now empty )
-      IAnnotationSpace set = Factory.newAnnotationSpace(grafASName, grafASType);
-      //add the set to the graf
-      graph.addAnnotationSpace(set);
-      //put the annotation set in the set map with the grafASName as key
-      grafAnnotationSetMap.put(grafASName, set);
+   /** Waits for the queue to write the files it holds, then reports failures. */
+   protected void flushQueue() throws ExecutionException
+   {
+      if (queue == null)
+      {
+         return;
+      }
+      WriteBehindQueue old = queue;
+      queue = null;
+      old.finish(failFast, printStackTrace);
+   }
+
+   /**
+    * Writes the annotations straight to the file with a
+    * {@link GrafStreamWriter} instead of building an IGraph first. The
+    * annotation set is walked one start offset at a time, once for the regions
+    * and once for the nodes, so neither a graph nor a sorted copy of the
+    * annotations is created. The file is the same as the one written by the
+    * renderer.
+    */
+   protected void writeStreaming(File f) throws IOException
+   {
+      AnnotationSet annotations = getStandoffAnnotations();
+      if (annotations == null)
+      {
+         return;
+      }
+      IStandoffHeader header = null;
+      Object headerObject = document.getFeatures().get(Graf.GRAF_HEADER);
+      if (headerObject instanceof IStandoffHeader)
+      {
+         header = (IStandoffHeader) headerObject;
+      }
+      Writer writer = new BufferedWriter(new OutputStreamWriter(openOutput(f), encoding), 64 * 1024);
+      try
+      {
+         GrafStreamWriter graf = new GrafStreamWriter(writer);
+         graf.start(encoding, header, Factory.newAnnotationSpace(grafASName, grafASType));
+         for (Node node = annotations.firstNode(); node != null; node = annotations.nextNode(node))
+         {
+            for (Annotation a : getStartingAt(annotations, node))
+            {
+               graf.writeRegion(node.getOffset().longValue(), a.getEndNode().getOffset().longValue(),
+                       a.getFeatures());
+            }
+         }
+         for (Node node = annotations.firstNode(); node != null; node = annotations.nextNode(node))
+         {
+            for (Annotation a : getStartingAt(annotations, node))
+            {
+               graf.write(node.getOffset().longValue(), a.getEndNode().getOffset().longValue(),
+                       a.getType(), a.getFeatures());
+            }
+         }
+         graf.close();
+      }
+      finally
+      {
+         writer.close();
+      }
+   }
+
+   /**
+    * Returns the annotations that start at the node sorted by end offset, the
+    * order they have in {@link #getSortedAnnotations()}.
+    */
+   private static List<Annotation> getStartingAt(AnnotationSet annotations, Node node)
+   {
+      return OffsetSort.sort(annotations.getStartingAt(node.getOffset().longValue()));
+   }
+
+   /**
+    * Writes each layer of the document to its own standoff file in a single
+    * pass over the annotations, followed by a document header that lists the
+    * files.
+    * <p>
+    * The layer of an annotation is taken from the layerMapping if its type is
+    * listed there, otherwise from its graf:set feature. Annotations with
+    * neither go to the layer named by the filenameSuffix. Layer files are
+    * named <i>document</i>-<i>layer</i>.xml and are written with a
+    * {@link GrafStreamWriter}. As in {@link #writeStreaming(File)} the
+    * annotation set is walked one start offset at a time rather than copied,
+    * and no graph is built.
+    * <p>
+    * Each layer file declares the annotation spaces of all the annotations
+    * written to it, and the dependencies listed in the document's graf:header
+    * feature, if it has one, other than the layer itself. An existing
+    * document header is only replaced if overwriteHeader is true. Nothing is
+    * written if a layer name contains a path separator.
+    */
+   protected void writeLayers(File directory) throws IOException, XMLStreamException, ExecutionException
+   {
+      AnnotationSet annotations = getStandoffAnnotations();
+      if (annotations == null)
+      {
+         return;
+      }
+      Map<String, String> mapping = new HashMap<String, String>();
+      if (layerMapping != null)
+      {
+         for (String entry : layerMapping)
+         {
+            int index = entry.indexOf('=');
+            if (index <= 0)
+            {
+               throw new ExecutionException("Invalid layer mapping " + entry + ". Expected type=layer");
+            }
+            String layer = entry.substring(index + 1).trim();
+            checkLayerName(layer);
+            mapping.put(entry.substring(0, index).trim(), layer);
+         }
+      }
+
+      String name = document.getName();
+      File headerFile = new File(directory, name + ".hdr");
+      if (headerFile.exists() && !Boolean.TRUE.equals(overwriteHeader))
+      {
+         throw new ExecutionException("The document header " + headerFile.getPath()
+                 + " already exists. Set overwriteHeader to replace it.");
+      }
+      List<String> dependsOn = null;
+      Object headerObject = document.getFeatures().get(Graf.GRAF_HEADER);
+      if (headerObject instanceof IStandoffHeader)
+      {
+         dependsOn = ((IStandoffHeader) headerObject).getDependsOn();
+      }
+
+      // The graph header comes first in a layer file, so find the layer and
+      // the annotation spaces of every annotation before writing anything.
+      // Layers are created in the order their first annotation is found.
+      Map<String, Map<String, IAnnotationSpace>> spaces = new LinkedHashMap<String, Map<String, IAnnotationSpace>>();
+      for (Node node = annotations.firstNode(); node != null; node = annotations.nextNode(node))
+      {
+         for (Annotation a : getStartingAt(annotations, node))
+         {
+            String layer = getLayer(a, mapping);
+            if (!spaces.containsKey(layer))
+            {
+               checkLayerName(layer);
+            }
+            addLayerSpace(spaces, layer, a.getFeatures());
+         }
+      }
+
+      Map<String, GrafStreamWriter> graphs = new LinkedHashMap<String, GrafStreamWriter>();
+      Map<String, Writer> writers = new LinkedHashMap<String, Writer>();
+      try
+      {
+         for (Map.Entry<String, Map<String, IAnnotationSpace>> entry : spaces.entrySet())
+         {
+            String layer = entry.getKey();
+            File file = Compression.getOutputFile(new File(directory, name + "-" + layer + ".xml"), compression);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(openOutput(file), encoding), 64 * 1024);
+            writers.put(layer, writer);
+            GrafStreamWriter graf = new GrafStreamWriter(writer, layer + "-");
+            List<String> layerDependsOn = new ArrayList<String>();
+            if (dependsOn != null)
+            {
+               for (String dependency : dependsOn)
+               {
+                  if (!dependency.equals(layer))
+                  {
+                     layerDependsOn.add(dependency);
+                  }
+               }
+            }
+            graf.start(encoding, layerDependsOn, new ArrayList<IAnnotationSpace>(entry.getValue().values()), null);
+            graphs.put(layer, graf);
+         }
+         for (Node node = annotations.firstNode(); node != null; node = annotations.nextNode(node))
+         {
+            for (Annotation a : getStartingAt(annotations, node))
+            {
+               graphs.get(getLayer(a, mapping)).writeRegion(node.getOffset().longValue(),
+                       a.getEndNode().getOffset().longValue(), a.getFeatures());
+            }
+         }
+         for (Node node = annotations.firstNode(); node != null; node = annotations.nextNode(node))
+         {
+            for (Annotation a : getStartingAt(annotations, node))
+            {
+               graphs.get(getLayer(a, mapping)).write(node.getOffset().longValue(),
+                       a.getEndNode().getOffset().longValue(), a.getType(), a.getFeatures());
+            }
+         }
+         for (GrafStreamWriter graf : graphs.values())
+         {
+            graf.close();
+         }
+      }
+      finally
+      {
+         for (Writer writer : writers.values())
+         {
+            writer.close();
+         }
+      }
+      writeDocumentHeader(headerFile, name, graphs.keySet());
+   }
+
+   /**
+    * Returns the layer an annotation is written to: the one the layerMapping
+    * gives for its type, otherwise its graf:set, otherwise the filenameSuffix.
+    */
+   private String getLayer(Annotation a, Map<String, String> mapping)
+   {
+      String layer = mapping.get(a.getType());
+      if (layer == null)
+      {
+         FeatureMap fm = a.getFeatures();
+         Object set = fm == null ? null : fm.get(Graf.GRAF_SET);
+         layer = set == null ? filenameSuffix : set.toString();
+      }
+      return layer;
+   }
+
+   /**
+    * Layer names are used in file names, so a name with a path separator
+    * could write outside the destination directory.
+    */
+   private void checkLayerName(String layer) throws ExecutionException
+   {
+      if (layer.indexOf('/') >= 0 || layer.indexOf('\\') >= 0 || layer.indexOf(File.separatorChar) >= 0)
+      {
+         throw new ExecutionException("Invalid layer name " + layer + " in " + document.getName()
+                 + ". Layer names can not contain path separators.");
+      }
+   }
+
+   /** Records the annotation space of an annotation in the spaces of its layer. */
+   private void addLayerSpace(Map<String, Map<String, IAnnotationSpace>> spaces, String layer, FeatureMap fm)
+   {
+      Map<String, IAnnotationSpace> layerSpaces = spaces.get(layer);
+      if (layerSpaces == null)
+      {
+         layerSpaces = new LinkedHashMap<String, IAnnotationSpace>();
+         spaces.put(layer, layerSpaces);
+      }
+      Object set = fm == null ? null : fm.get(Graf.GRAF_SET);
+      String spaceName = set == null ? grafASName : set.toString();
+      if (!layerSpaces.containsKey(spaceName))
+      {
+         layerSpaces.put(spaceName, getLayerSpace(set));
+      }
+   }
+
+   /**
+    * Returns the annotation space declared in a layer file. Layers named after
+    * a graf:set get a space of their own, as createGraph() does for undefined
+    * sets.
+    */
+   private IAnnotationSpace getLayerSpace(Object set)
+   {
+      if (set == null || set.toString().equals(grafASName))
+      {
+         return Factory.newAnnotationSpace(grafASName, grafASType);
+      }
+      String type = grafDefaultASType;
+      if (type.endsWith("/"))
+      {
+         type = type + set;
+      }
+      else
+      {
+         type = type + "/" + set;
+      }
+      return Factory.newAnnotationSpace(set.toString(), type);
+   }
+
+   /**
+    * Writes a GrAF document header listing the text file and the standoff
+    * files of the layers.
+    */
+   protected void writeDocumentHeader(File file, String name, Collection<String> layers)
+           throws IOException, XMLStreamException
+   {
+      String content = name;
+      int index = content.lastIndexOf(".txt");
+      if (index > 0)
+      {
+         content = content.substring(0, index);
+      }
+      content = content + ".txt";
+
+      Writer writer = new BufferedWriter(new OutputStreamWriter(openOutput(file), encoding));
+      try
+      {
+         XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+         xml.writeStartDocument(encoding, "1.0");
+         xml.writeCharacters("\n");
+         xml.writeStartElement("documentHeader");
+         xml.writeDefaultNamespace(GrafStreamWriter.NAMESPACE);
+         xml.writeAttribute("docId", name);
+         xml.writeCharacters("\n  ");
+         xml.writeStartElement("profileDesc");
+         xml.writeCharacters("\n    ");
+         xml.writeEmptyElement("primaryData");
+         xml.writeAttribute("loc", content);
+         xml.writeAttribute("f.id", "text");
+         xml.writeCharacters("\n    ");
+         xml.writeStartElement("annotations");
+         for (String layer : layers)
+         {
+            xml.writeCharacters("\n      ");
+            xml.writeEmptyElement("annotation");
+            xml.writeAttribute("loc", name + "-" + layer + ".xml");
+            xml.writeAttribute("f.id", layer);
+         }
+         xml.writeCharacters("\n    ");
+         xml.writeEndElement();
+         xml.writeCharacters("\n  ");
+         xml.writeEndElement();
+         xml.writeCharacters("\n");
+         xml.writeEndElement();
+         xml.writeCharacters("\n");
+         xml.writeEndDocument();
+         xml.close();
+      }
+      finally
+      {
+         writer.close();
+      }
+   }
+
+   /**
+    * Returns the annotations to be saved sorted by offset, or null if there
+    * are none.
+    */
+   protected List<Annotation> getSortedAnnotations()
+   {
+      AnnotationSet annotations = getStandoffAnnotations();
+      if (annotations == null)
+      {
+         return null;
+      }
+      //sort the annotations by their start offsets. If the start offsets are equal the annotations
+      //are sorted by end offsets, the same order as AnnotationComparer.createStartComparator().
+      return OffsetSort.sort(annotations);
+   }
 
+   /**
+    * Returns the annotations to be saved, or null if there are none. The set
+    * is neither copied nor sorted.
+    */
+   protected AnnotationSet getStandoffAnnotations()
+   {
       // This is a Gate AnnotationSet object.
       AnnotationSet annotations = null;
       try
@@ -234,16 +654,37 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
       {
          System.out.println(this.getClass().getName() + ": No standoff annotations found.");
          failed = true;
-         return null; //get out !
+         return null;
       }
+      return annotations;
+   }
+
+   public IGraph createGraph() throws IOException, GrafException
+   {
+//      Out.prln("GrAF Annotation set name : " + grafASName);
+      IGraph graph = Factory.newGraph();
+      IDGenerator id = new IDGenerator();
+      IAnchorFactory anchorFactory = Factory.newCharacterAnchorFactory();
+      //regions keyed by their packed start and end offsets, and one anchor per offset, so
+      //looking up the region for an annotation does not have to create or compare anchors
+      LongObjectMap<IRegion> regions = new LongObjectMap<IRegion>();
+      LongObjectMap<IAnchor> anchors = new LongObjectMap<IAnchor>();
+
+      Map<String, IAnnotationSpace> grafAnnotationSetMap = new HashMap<String, IAnnotationSpace>();
+      //grafASName ( default on the gui is: http://www.xces.org/schema/2003 ) and
+      //grafASType (default on the gui is: xces ) 
+      //come from the gate gui, use them to make a new anc graf annotationSet out of them ( now empty )
+      IAnnotationSpace set = Factory.newAnnotationSpace(grafASName, grafASType);
+      //add the set to the graf
+      graph.addAnnotationSpace(set);
+      //put the annotation set in the set map with the grafASName as key
+      grafAnnotationSetMap.put(grafASName, set);
 
-      //create a startComparer ( implements java.util.Comparator ).  
-      //this compares two GATE annotations by their start offsets. If the start offsets
-      //are equal the annotations will be compared by end offsets.
-      Comparator<Annotation> comp = AnnotationComparer.createStartComparator();
-      ArrayList<Annotation> sortedAnnotations = new ArrayList<Annotation>(annotations);
-      //sort the arrayList of annotations using our comparator
-      Collections.sort(sortedAnnotations, comp);
+      List<Annotation> sortedAnnotations = getSortedAnnotations();
+      if (sortedAnnotations == null)
+      {
+         return null; //get out !
+      }
       //now that it is sorted, we need the iterator
       Iterator<Annotation> it = sortedAnnotations.iterator();
       // new File(document.getSourceUrl().getPath());
@@ -261,13 +702,19 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
          long start = gateAnnotation.getStartNode().getOffset().longValue();
          long end = gateAnnotation.getEndNode().getOffset().longValue();
 
-         //make new IAnchor objects using the starts and end
-         IAnchor startAnchor = anchorFactory.newAnchor(start);
-         IAnchor endAnchor = anchorFactory.newAnchor(end);
-
-         //now make a new IRegion object by finding the region in the graph using the start and end anchors from above
-         //or if not found ( ie not already put there ), region will be null, so we will create another
-         IRegion region = graph.getRegion(startAnchor, endAnchor);
+         //now find the IRegion object with the same start and end in the region index, offsets that
+         //can not be packed into a key are looked up in the graph. If not found ( ie not already put
+         //there ), region will be null, so we will create another
+         long span = LongObjectMap.pack(start, end);
+         IRegion region = null;
+         if (span >= 0)
+         {
+            region = regions.get(span);
+         }
+         else
+         {
+            region = graph.getRegion(getAnchor(anchors, anchorFactory, start), getAnchor(anchors, anchorFactory, end));
+         }
          //figure out the name of the id should be; get id from the featurestructure map that 
          //comes from the magic this object ( via a few steps ); featureMap represents the features
          //of the document loaded into gate
@@ -281,9 +728,14 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
          //make a new one with id starting with r from id.generate, start and end anchors
          if (region == null)
          {
-            region = Factory.newRegion(id.generate("r"), startAnchor, endAnchor);
-            //add it to the graph
+            region = Factory.newRegion(id.generate("r"), getAnchor(anchors, anchorFactory, start),
+                    getAnchor(anchors, anchorFactory, end));
+            //add it to the graph and the index
             graph.addRegion(region);
+            if (span >= 0)
+            {
+               regions.put(span, region);
+            }
          }
 
          //get all the nodes associated with this region, if region is new, there should be no nodes , right ?
@@ -395,25 +847,151 @@ public class SaveGrafStandoff extends ANCLanguageAnalyzer
       }
 
       //now lets get back to the pairs, pairs is a list of...well...pairs
-      //each pair object is node id as the first part, and a bunch of child ids concatenated
-      //into a long string as the second part
+      //each pair object is node id as the first part, and the child ids as the second part,
+      //either concatenated into a long string or as an array (see EdgeEncoding)
       for (Pair p : pairs)
       {
-         //set up a string tokenizer using the second part of the pair, which is a bunch of child ids concatenated
-         //into a long string; these are the children of the node whose id is the first part of the pair
-         StringTokenizer sT = new StringTokenizer((String) p.second);
-         //go through the tokens of aforementioned string tokenizer
-         while (sT.hasMoreTokens())
+         //go through the children of the node whose id is the first part of the pair
+         for (String child : EdgeEncoding.decode(p.second))
          {
-            //add this edge to the graph, which is the id of a node as the fromNode and the nextToken of the 
-            //second part of the pair, ( an id of a child node )
-            graph.addEdge((String) p.first, sT.nextToken());
+            //add this edge to the graph, which is the id of a node as the fromNode and
+            //the id of a child node
+            graph.addEdge((String) p.first, child);
          }
       }
       return graph;
    }
 
+   /** Returns the pooled anchor for the offset, creating it the first time it is used. */
+   private static IAnchor getAnchor(LongObjectMap<IAnchor> anchors, IAnchorFactory factory, long offset)
+   {
+      IAnchor anchor = anchors.get(offset);
+      if (anchor == null)
+      {
+         anchor = factory.newAnchor(offset);
+         anchors.put(offset, anchor);
+      }
+      return anchor;
+   }
+
    // Property getters and setters.
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Compression for the saved files: \"none\" or \"gzip\". Compressed files get a .gz suffix.",
+           defaultValue = "none"
+   )
+   public void setCompression(String compression)
+   {
+      this.compression = compression;
+   }
+   public String getCompression()
+   {
+      return compression;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Queue files to be written by background threads instead of writing them on the pipeline thread.",
+           defaultValue = "false"
+   )
+   public void setAsynchronous(Boolean asynchronous)
+   {
+      this.asynchronous = asynchronous;
+   }
+   public Boolean getAsynchronous()
+   {
+      return asynchronous;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "The number of threads writing files when asynchronous is true.",
+           defaultValue = "1"
+   )
+   public void setWriterThreads(Integer writerThreads)
+   {
+      this.writerThreads = writerThreads;
+   }
+   public Integer getWriterThreads()
+   {
+      return writerThreads;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "The number of files that may be waiting to be written before execute() blocks.",
+           defaultValue = "16"
+   )
+   public void setQueueSize(Integer queueSize)
+   {
+      this.queueSize = queueSize;
+   }
+   public Integer getQueueSize()
+   {
+      return queueSize;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Write every layer to its own standoff file in one pass, plus a document header listing the files. The destination must be a directory.",
+           defaultValue = "false"
+   )
+   public void setSplitLayers(Boolean splitLayers)
+   {
+      this.splitLayers = splitLayers;
+   }
+   public Boolean getSplitLayers()
+   {
+      return splitLayers;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Replace an existing document header when splitLayers is true. If false the document is not saved if its header exists.",
+           defaultValue = "false"
+   )
+   public void setOverwriteHeader(Boolean overwriteHeader)
+   {
+      this.overwriteHeader = overwriteHeader;
+   }
+   public Boolean getOverwriteHeader()
+   {
+      return overwriteHeader;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(comment = "Entries of the form type=layer used by splitLayers. Types that are not listed are written to the layer named by their graf:set feature. Layer names can not contain path separators.")
+   public void setLayerMapping(java.util.List<String> layerMapping)
+   {
+      this.layerMapping = layerMapping;
+   }
+   public java.util.List<String> getLayerMapping()
+   {
+      return layerMapping;
+   }
+
+   @RunTime
+   @Optional
+   @CreoleParameter(
+           comment = "Write the standoff file directly with a streaming XML writer instead of building a graph. The output is equivalent GrAF but is not formatted exactly like the graph renderer's.",
+           defaultValue = "false"
+   )
+   public void setStreaming(Boolean streaming)
+   {
+      this.streaming = streaming;
+   }
+   public Boolean getStreaming()
+   {
+      return streaming;
+   }
+
    @RunTime
    @Optional(false)
    @CreoleParameter(comment = "Where the standoff annotation file will be saved.")
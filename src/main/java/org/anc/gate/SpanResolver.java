@@ -0,0 +1,218 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xces.graf.api.GrafException;
+import org.xces.graf.api.IAnchor;
+import org.xces.graf.api.IEdge;
+import org.xces.graf.api.IGraph;
+import org.xces.graf.api.ILink;
+import org.xces.graf.api.INode;
+import org.xces.graf.api.IRegion;
+
+/**
+ * Computes the span of every node in a graph in a single pass.
+ * <p>
+ * The span of a node covers the regions it is linked to and the spans of all its
+ * descendants, which is what GraphUtils.getSpan() returns. Calling getSpan() for
+ * every node walks the same subtrees again for every ancestor. The resolver
+ * visits the nodes bottom-up instead, so each node and each edge is only visited
+ * once, and keeps the results in primitive arrays indexed by node.
+ */
+public class SpanResolver
+{
+   private final Map<INode, Integer> index = new IdentityHashMap<INode, Integer>();
+   private final long[] start;
+   private final long[] end;
+
+   public SpanResolver(IGraph graph) throws GrafException
+   {
+      List<INode> nodes = new ArrayList<INode>();
+      for (INode node : graph.nodes())
+      {
+         indexOf(node, nodes);
+      }
+
+      // Edges may lead to nodes that were not returned by graph.nodes() so the
+      // list can grow while we iterate over it.
+      long[] start = new long[nodes.size()];
+      long[] end = new long[nodes.size()];
+      int[] first = new int[nodes.size() + 1];
+      int[] targets = new int[nodes.size()];
+      int edgeCount = 0;
+      for (int i = 0; i < nodes.size(); ++i)
+      {
+         if (i == start.length)
+         {
+            int size = Math.max(nodes.size(), i * 2);
+            start = Arrays.copyOf(start, size);
+            end = Arrays.copyOf(end, size);
+            first = Arrays.copyOf(first, size + 1);
+         }
+         INode node = nodes.get(i);
+         start[i] = Long.MAX_VALUE;
+         end[i] = Long.MIN_VALUE;
+         for (ILink link : node.links())
+         {
+            for (IRegion region : link)
+            {
+               long s = offset(region.getStart());
+               long e = offset(region.getEnd());
+               if (s == Long.MIN_VALUE || e == Long.MIN_VALUE || s > e)
+               {
+                  continue;
+               }
+               if (s < start[i])
+               {
+                  start[i] = s;
+               }
+               if (e > end[i])
+               {
+                  end[i] = e;
+               }
+            }
+         }
+         first[i] = edgeCount;
+         for (IEdge edge : node.getOutEdges())
+         {
+            if (edgeCount == targets.length)
+            {
+               targets = Arrays.copyOf(targets, edgeCount * 2 + 1);
+            }
+            targets[edgeCount++] = indexOf(edge.getTo(), nodes);
+         }
+      }
+      int count = nodes.size();
+      first[count] = edgeCount;
+      resolve(count, start, end, first, targets);
+      this.start = start;
+      this.end = end;
+   }
+
+   /** Returns false if no regions can be reached from the node. */
+   public boolean hasSpan(INode node)
+   {
+      Integer i = index.get(node);
+      return i != null && start[i] <= end[i];
+   }
+
+   public long getStart(INode node)
+   {
+      return start[index.get(node)];
+   }
+
+   public long getEnd(INode node)
+   {
+      return end[index.get(node)];
+   }
+
+   private int indexOf(INode node, List<INode> nodes)
+   {
+      Integer i = index.get(node);
+      if (i == null)
+      {
+         i = nodes.size();
+         nodes.add(node);
+         index.put(node, i);
+      }
+      return i;
+   }
+
+   /** Returns the character offset of the anchor or Long.MIN_VALUE if there isn't one. */
+   private static long offset(IAnchor anchor) throws GrafException
+   {
+      if (anchor == null)
+      {
+         return Long.MIN_VALUE;
+      }
+      Object offset = anchor.getOffset();
+      if (offset instanceof Number)
+      {
+         return ((Number) offset).longValue();
+      }
+      return Long.MIN_VALUE;
+   }
+
+   /**
+    * Extends the span of each node to cover the spans of all its descendants.
+    * <p>
+    * The out edges of node <i>n</i> are <code>targets[first[n]]</code> to
+    * <code>targets[first[n+1]-1]</code>. Nodes without a span must have
+    * <code>start = Long.MAX_VALUE</code> and <code>end = Long.MIN_VALUE</code>.
+    * Nodes are visited in post-order using an explicit stack so deep trees do
+    * not overflow the call stack.
+    */
+   public static void resolve(int nodeCount, long[] start, long[] end, int[] first, int[] targets)
+   {
+      byte[] state = new byte[nodeCount];
+      int[] cursor = new int[nodeCount];
+      int[] stack = new int[64];
+      for (int root = 0; root < nodeCount; ++root)
+      {
+         if (state[root] != 0)
+         {
+            continue;
+         }
+         int sp = 0;
+         stack[sp++] = root;
+         state[root] = 1;
+         while (sp > 0)
+         {
+            int n = stack[sp - 1];
+            int next = first[n] + cursor[n];
+            if (next < first[n + 1])
+            {
+               ++cursor[n];
+               int child = targets[next];
+               if (state[child] == 0)
+               {
+                  if (sp == stack.length)
+                  {
+                     stack = Arrays.copyOf(stack, sp * 2);
+                  }
+                  stack[sp++] = child;
+                  state[child] = 1;
+               }
+               continue;
+            }
+            // All the children are done (or are on the stack if the graph
+            // contains a cycle).
+            for (int i = first[n]; i < first[n + 1]; ++i)
+            {
+               int child = targets[i];
+               if (start[child] < start[n])
+               {
+                  start[n] = start[child];
+               }
+               if (end[child] > end[n])
+               {
+                  end[n] = end[child];
+               }
+            }
+            state[n] = 2;
+            --sp;
+         }
+      }
+   }
+}
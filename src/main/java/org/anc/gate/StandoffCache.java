@@ -0,0 +1,528 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import gate.util.Out;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Stores parsed standoff layers in binary sidecar files so unchanged standoff
+ * files do not have to be parsed again.
+ * <p>
+ * Each sidecar records the path, size, modification time and CRC-32 of the
+ * XML file it was created from and of every layer that file depends on,
+ * directly or through other dependencies, since the spans of the nodes were
+ * resolved through them. A sidecar is only used if none of those files has
+ * changed, otherwise {@link #read(File)} returns null and the caller should
+ * parse the XML and {@link #write(File, StandoffLayer) write} a new sidecar.
+ * <p>
+ * A file with the recorded size and modification time is taken to be
+ * unchanged without reading it. The checksum is only computed when the size
+ * matches but the modification time does not, e.g. after the corpus was
+ * copied, so a warm load does not read the XML at all. When the checksum
+ * matches, the new modification time is written to the sidecar so the file
+ * is not read again on the next load.
+ * <p>
+ * Sizes and modification times always come from the file system, since a
+ * {@link CorpusManifest} is a snapshot that may be older than the files. If a
+ * manifest is set it is only used to find the dependencies.
+ * <p>
+ * Sidecars are memory mapped when they are read. The layout is a string table
+ * followed by the header lists, the node arrays, the annotation arrays and the
+ * offset index of the annotations. All strings are referenced by their index in
+ * the string table. A sidecar that can not be read, e.g. because it was
+ * truncated, is deleted.
+ */
+public class StandoffCache
+{
+   /** "GrAF" in ASCII. */
+   private static final int MAGIC = 0x47724146;
+   /**
+    * Version 2 sorts the annotations by offset and adds the block index.
+    * Version 3 records the files the layer depends on.
+    */
+   private static final int VERSION = 3;
+   private static final String SUFFIX = ".gsc";
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final File directory;
+   private CorpusManifest manifest = null;
+
+   /**
+    * @param directory where sidecar files will be stored
+    */
+   public StandoffCache(File directory)
+   {
+      this.directory = directory;
+   }
+
+   /**
+    * Sets the manifest used to find the files a layer depends on, or null to
+    * check the file system.
+    */
+   public void setManifest(CorpusManifest manifest)
+   {
+      this.manifest = manifest;
+   }
+
+   /**
+    * Returns the sidecar file for a standoff file. The hash of the full path is
+    * included in the name since different directories often contain files with
+    * the same name.
+    */
+   public File getSidecar(File source)
+   {
+      String path = source.getAbsolutePath();
+      return new File(directory, source.getName() + "-" + Integer.toHexString(path.hashCode()) + SUFFIX);
+   }
+
+   /**
+    * Returns the cached layer for the standoff file or null if there is no
+    * sidecar or the standoff file, or a file it depends on, has changed since
+    * the sidecar was written.
+    */
+   public StandoffLayer read(File source) throws IOException
+   {
+      File sidecar = getSidecar(source);
+      RandomAccessFile file;
+      try
+      {
+         file = new RandomAccessFile(sidecar, "r");
+      }
+      catch (FileNotFoundException e)
+      {
+         return null;
+      }
+      boolean corrupt = false;
+      try
+      {
+         FileChannel channel = file.getChannel();
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+         {
+            return null;
+         }
+         int count = buffer.getInt();
+         // Positions in the sidecar of modification times that are out of date.
+         List<Integer> touched = new ArrayList<Integer>();
+         List<Long> times = new ArrayList<Long>();
+         for (int i = 0; i < count; ++i)
+         {
+            String path = readString(buffer);
+            long size = buffer.getLong();
+            int position = buffer.position();
+            long modified = buffer.getLong();
+            long checksum = buffer.getLong();
+            // The first entry is the source itself, which may have been moved
+            // along with its sidecar directory.
+            File recorded = i == 0 ? source : new File(path);
+            if (!isUnchanged(recorded, size, modified, checksum))
+            {
+               return null;
+            }
+            long current = lastModified(recorded);
+            if (current != modified)
+            {
+               touched.add(position);
+               times.add(current);
+            }
+         }
+         StandoffLayer layer = readLayer(buffer);
+         if (!touched.isEmpty())
+         {
+            updateModified(sidecar, touched, times);
+         }
+         return layer;
+      }
+      catch (BufferUnderflowException e)
+      {
+         corrupt = true;
+      }
+      catch (IndexOutOfBoundsException e)
+      {
+         corrupt = true;
+      }
+      catch (IllegalArgumentException e)
+      {
+         corrupt = true;
+      }
+      catch (NegativeArraySizeException e)
+      {
+         corrupt = true;
+      }
+      finally
+      {
+         file.close();
+      }
+      if (corrupt)
+      {
+         Out.prln("Deleting unreadable cache file " + sidecar.getPath());
+         sidecar.delete();
+      }
+      return null;
+   }
+
+   /**
+    * Writes the sidecar for a standoff file. The sidecar is written to a
+    * temporary file first so other processes never see a partial sidecar.
+    */
+   public void write(File source, StandoffLayer layer) throws IOException
+   {
+      if (!directory.exists() && !directory.mkdirs())
+      {
+         throw new IOException("Unable to create cache directory " + directory.getPath());
+      }
+      List<File> files = new ArrayList<File>();
+      files.add(source);
+      files.addAll(getDependencies(source, layer.getDependsOn()));
+
+      File sidecar = getSidecar(source);
+      File temp = File.createTempFile(source.getName(), ".tmp", directory);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+      try
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(files.size());
+         for (File file : files)
+         {
+            writeString(out, file.getAbsolutePath());
+            out.writeLong(length(file));
+            out.writeLong(lastModified(file));
+            out.writeLong(checksum(file));
+         }
+         writeLayer(out, layer);
+      }
+      finally
+      {
+         out.close();
+      }
+      if (sidecar.exists() && !sidecar.delete())
+      {
+         temp.delete();
+         throw new IOException("Unable to replace " + sidecar.getPath());
+      }
+      if (!temp.renameTo(sidecar))
+      {
+         temp.delete();
+         throw new IOException("Unable to create " + sidecar.getPath());
+      }
+   }
+
+   /**
+    * Records new modification times in the sidecar once the checksums have
+    * shown the files are unchanged. The times are fixed size so they are
+    * overwritten in place. The sidecar is still valid if this fails, the
+    * checksums are just computed again next time.
+    */
+   protected void updateModified(File sidecar, List<Integer> positions, List<Long> times)
+   {
+      try
+      {
+         RandomAccessFile file = new RandomAccessFile(sidecar, "rw");
+         try
+         {
+            for (int i = 0; i < positions.size(); ++i)
+            {
+               file.seek(positions.get(i));
+               file.writeLong(times.get(i));
+            }
+         }
+         finally
+         {
+            file.close();
+         }
+      }
+      catch (IOException e)
+      {
+         Out.prln("Unable to update " + sidecar.getPath() + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Returns the standoff files the layer depends on, following the dependsOn
+    * headers of the dependencies as well. Dependencies that can not be found
+    * are left out, as the loaders skip them too.
+    */
+   protected List<File> getDependencies(File source, List<String> dependsOn) throws IOException
+   {
+      List<File> result = new ArrayList<File>();
+      Set<String> seen = new HashSet<String>();
+      seen.add(source.getAbsolutePath());
+      LinkedList<File> from = new LinkedList<File>();
+      LinkedList<String> names = new LinkedList<String>();
+      for (String name : dependsOn)
+      {
+         from.add(source);
+         names.add(name);
+      }
+      while (!names.isEmpty())
+      {
+         File file = resolve(GrafStreamLoader.getDependencyName(from.removeFirst(), names.removeFirst()));
+         if (file == null || !seen.add(file.getAbsolutePath()))
+         {
+            continue;
+         }
+         result.add(file);
+         try
+         {
+            for (String name : GrafStreamLoader.readDependsOn(file))
+            {
+               from.add(file);
+               names.add(name);
+            }
+         }
+         catch (XMLStreamException e)
+         {
+            throw new IOException("Unable to read the header of " + file.getPath() + ": " + e.getMessage());
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Returns true if the file still has the recorded size and modification
+    * time, or if only the modification time differs and the contents are
+    * the same.
+    */
+   protected boolean isUnchanged(File file, long size, long modified, long checksum) throws IOException
+   {
+      if (size != length(file))
+      {
+         return false;
+      }
+      if (modified == lastModified(file))
+      {
+         return true;
+      }
+      return size >= 0 && checksum == checksum(file);
+   }
+
+   /** Returns the file, or its compressed version, that exists, or null. */
+   protected File resolve(File file)
+   {
+      if (manifest != null && manifest.covers(file))
+      {
+         return manifest.resolve(file);
+      }
+      file = Compression.resolve(file);
+      return file.exists() ? file : null;
+   }
+
+   /** Returns the size of the file or -1 if it does not exist. */
+   protected long length(File file)
+   {
+      return file.exists() ? file.length() : -1;
+   }
+
+   protected long lastModified(File file)
+   {
+      return file.lastModified();
+   }
+
+   /** Computes the CRC-32 of a file's contents. */
+   public static long checksum(File file) throws IOException
+   {
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[64 * 1024];
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         int n = in.read(buffer);
+         while (n >= 0)
+         {
+            crc.update(buffer, 0, n);
+            n = in.read(buffer);
+         }
+      }
+      finally
+      {
+         in.close();
+      }
+      return crc.getValue();
+   }
+
+   private static void writeString(DataOutputStream out, String s) throws IOException
+   {
+      byte[] bytes = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(ByteBuffer buffer)
+   {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   protected void writeLayer(DataOutputStream out, StandoffLayer layer) throws IOException
+   {
+      out.writeInt(layer.strings.length);
+      for (String s : layer.strings)
+      {
+         byte[] bytes = s.getBytes(UTF8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+      writeList(out, layer, layer.annotationSpaces);
+      writeList(out, layer, layer.dependsOn);
+      writeList(out, layer, layer.roots);
+
+      writeInts(out, layer.nodeId);
+      writeLongs(out, layer.nodeStart);
+      writeLongs(out, layer.nodeEnd);
+      writeInts(out, layer.edgeOffset);
+      writeInts(out, layer.edgeTarget);
+
+      writeInts(out, layer.annotationNode);
+      writeInts(out, layer.annotationLabel);
+      writeInts(out, layer.annotationSet);
+      writeInts(out, layer.featureOffset);
+      writeInts(out, layer.featureKey);
+      writeInts(out, layer.featureValue);
+      writeLongs(out, layer.blockEnd);
+   }
+
+   protected StandoffLayer readLayer(ByteBuffer buffer)
+   {
+      String[] strings = new String[buffer.getInt()];
+      byte[] bytes = new byte[256];
+      for (int i = 0; i < strings.length; ++i)
+      {
+         int length = buffer.getInt();
+         if (length > bytes.length)
+         {
+            bytes = new byte[length * 2];
+         }
+         buffer.get(bytes, 0, length);
+         strings[i] = new String(bytes, 0, length, UTF8);
+      }
+      List<String> annotationSpaces = readList(buffer, strings);
+      List<String> dependsOn = readList(buffer, strings);
+      List<String> roots = readList(buffer, strings);
+
+      int[] nodeId = readInts(buffer);
+      long[] nodeStart = readLongs(buffer);
+      long[] nodeEnd = readLongs(buffer);
+      int[] edgeOffset = readInts(buffer);
+      int[] edgeTarget = readInts(buffer);
+
+      int[] annotationNode = readInts(buffer);
+      int[] annotationLabel = readInts(buffer);
+      int[] annotationSet = readInts(buffer);
+      int[] featureOffset = readInts(buffer);
+      int[] featureKey = readInts(buffer);
+      int[] featureValue = readInts(buffer);
+      long[] blockEnd = readLongs(buffer);
+
+      return new StandoffLayer(strings, nodeId, nodeStart, nodeEnd, edgeOffset, edgeTarget,
+              annotationNode, annotationLabel, annotationSet, featureOffset, featureKey, featureValue, blockEnd,
+              annotationSpaces, dependsOn, roots);
+   }
+
+   private static void writeList(DataOutputStream out, StandoffLayer layer, List<String> list)
+           throws IOException
+   {
+      out.writeInt(list.size());
+      for (String s : list)
+      {
+         out.writeInt(indexOf(layer.strings, s));
+      }
+   }
+
+   private static List<String> readList(ByteBuffer buffer, String[] strings)
+   {
+      int n = buffer.getInt();
+      List<String> list = new ArrayList<String>(n);
+      for (int i = 0; i < n; ++i)
+      {
+         int index = buffer.getInt();
+         list.add(index == StandoffLayer.NONE ? "" : strings[index]);
+      }
+      return list;
+   }
+
+   /** Header lists are short so a linear search is good enough. */
+   private static int indexOf(String[] strings, String s)
+   {
+      for (int i = 0; i < strings.length; ++i)
+      {
+         if (strings[i].equals(s))
+         {
+            return i;
+         }
+      }
+      return StandoffLayer.NONE;
+   }
+
+   private static void writeInts(DataOutputStream out, int[] values) throws IOException
+   {
+      out.writeInt(values.length);
+      for (int value : values)
+      {
+         out.writeInt(value);
+      }
+   }
+
+   private static void writeLongs(DataOutputStream out, long[] values) throws IOException
+   {
+      out.writeInt(values.length);
+      for (long value : values)
+      {
+         out.writeLong(value);
+      }
+   }
+
+   private static int[] readInts(ByteBuffer buffer)
+   {
+      int[] values = new int[buffer.getInt()];
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + values.length * 4);
+      return values;
+   }
+
+   private static long[] readLongs(ByteBuffer buffer)
+   {
+      long[] values = new long[buffer.getInt()];
+      buffer.asLongBuffer().get(values);
+      buffer.position(buffer.position() + values.length * 8);
+      return values;
+   }
+}
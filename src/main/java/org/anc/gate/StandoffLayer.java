@@ -0,0 +1,618 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.anc.gate;
+
+import gate.AnnotationSet;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.util.InvalidOffsetException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xces.graf.api.GrafException;
+import org.xces.graf.api.IAnnotation;
+import org.xces.graf.api.IAnnotationSpace;
+import org.xces.graf.api.IEdge;
+import org.xces.graf.api.IFeature;
+import org.xces.graf.api.IFeatureStructure;
+import org.xces.graf.api.IGraph;
+import org.xces.graf.api.INode;
+import org.xces.graf.api.IStandoffHeader;
+
+/**
+ * A compact, immutable form of a parsed standoff layer.
+ * <p>
+ * Only what is needed to create the GATE annotations is kept: the span and
+ * out edges of every node that covers some text, and the label, annotation
+ * space and flattened features of each annotation. Regions are folded into the
+ * node spans. All strings are stored once in a string table and referenced by
+ * index.
+ * <p>
+ * Annotations are kept sorted by the start and end offsets of their nodes. The
+ * maximum end offset of every block of {@link #BLOCK_SIZE} annotations is
+ * recorded so that adding the annotations for a window of the text can skip
+ * the blocks that end before the window and stop at the first annotation that
+ * starts after it.
+ * <p>
+ * Layers are created with a {@link Builder}, from an IGraph, by the
+ * {@link GrafStreamLoader}, or read from a {@link StandoffCache} sidecar file.
+ * Since they are immutable they can be built on one thread and added to a
+ * document on another.
+ */
+public class StandoffLayer
+{
+   /** Used for optional string references, e.g. annotations without an annotation space. */
+   public static final int NONE = -1;
+
+   /** The number of annotations covered by each entry in the offset index. */
+   public static final int BLOCK_SIZE = 64;
+
+   final String[] strings;
+
+   final int[] nodeId;
+   final long[] nodeStart;
+   final long[] nodeEnd;
+   /** The out edges of node i are edgeTarget[edgeOffset[i]] to edgeTarget[edgeOffset[i+1]-1]. */
+   final int[] edgeOffset;
+   final int[] edgeTarget;
+
+   final int[] annotationNode;
+   final int[] annotationLabel;
+   final int[] annotationSet;
+   /** The features of annotation i are featureKey/Value[featureOffset[i]] to [featureOffset[i+1]-1]. */
+   final int[] featureOffset;
+   final int[] featureKey;
+   final int[] featureValue;
+   /** The maximum end offset of annotations [b * BLOCK_SIZE, (b + 1) * BLOCK_SIZE). */
+   final long[] blockEnd;
+
+   final List<String> annotationSpaces;
+   final List<String> dependsOn;
+   final List<String> roots;
+
+   StandoffLayer(String[] strings,
+                 int[] nodeId, long[] nodeStart, long[] nodeEnd, int[] edgeOffset, int[] edgeTarget,
+                 int[] annotationNode, int[] annotationLabel, int[] annotationSet,
+                 int[] featureOffset, int[] featureKey, int[] featureValue, long[] blockEnd,
+                 List<String> annotationSpaces, List<String> dependsOn, List<String> roots)
+   {
+      this.strings = strings;
+      this.nodeId = nodeId;
+      this.nodeStart = nodeStart;
+      this.nodeEnd = nodeEnd;
+      this.edgeOffset = edgeOffset;
+      this.edgeTarget = edgeTarget;
+      this.annotationNode = annotationNode;
+      this.annotationLabel = annotationLabel;
+      this.annotationSet = annotationSet;
+      this.featureOffset = featureOffset;
+      this.featureKey = featureKey;
+      this.featureValue = featureValue;
+      this.blockEnd = blockEnd;
+      this.annotationSpaces = Collections.unmodifiableList(annotationSpaces);
+      this.dependsOn = Collections.unmodifiableList(dependsOn);
+      this.roots = Collections.unmodifiableList(roots);
+   }
+
+   /** Creates a layer from every node in the graph. */
+   public static StandoffLayer fromGraph(IGraph graph) throws GrafException
+   {
+      Builder builder = new Builder();
+      IStandoffHeader header = graph.getHeader();
+      if (header != null)
+      {
+         for (Object space : header.getAnnotationSpaces())
+         {
+            builder.annotationSpaces.add(space.toString());
+         }
+         for (Object dependency : header.getDependsOn())
+         {
+            builder.dependsOn.add(dependency.toString());
+         }
+         for (Object root : header.getRoots())
+         {
+            builder.roots.add(root.toString());
+         }
+      }
+      SpanResolver spans = new SpanResolver(graph);
+      for (INode node : graph.nodes())
+      {
+         builder.addNode(node, spans);
+      }
+      return builder.build();
+   }
+
+   /**
+    * Combines the layers into one, the same as if their files had been parsed
+    * into a single graph. A node that is in more than one of the layers is
+    * taken from the first layer it is in. The header lists are taken from the
+    * last layer.
+    */
+   public static StandoffLayer merge(List<StandoffLayer> layers)
+   {
+      Builder builder = new Builder();
+      Set<String> nodes = new HashSet<String>();
+      for (StandoffLayer layer : layers)
+      {
+         // The annotations are sorted by offset, so group them by node since
+         // the builder expects all the annotations for a node to follow it.
+         int[] first = new int[layer.nodeId.length + 1];
+         for (int a = 0; a < layer.annotationNode.length; ++a)
+         {
+            ++first[layer.annotationNode[a] + 1];
+         }
+         for (int n = 0; n < layer.nodeId.length; ++n)
+         {
+            first[n + 1] += first[n];
+         }
+         int[] byNode = new int[layer.annotationNode.length];
+         int[] fill = new int[layer.nodeId.length];
+         for (int a = 0; a < layer.annotationNode.length; ++a)
+         {
+            int n = layer.annotationNode[a];
+            byNode[first[n] + fill[n]++] = a;
+         }
+         String[] strings = layer.strings;
+         for (int n = 0; n < layer.nodeId.length; ++n)
+         {
+            if (!nodes.add(strings[layer.nodeId[n]]))
+            {
+               continue;
+            }
+            builder.addNode(strings[layer.nodeId[n]], layer.nodeStart[n], layer.nodeEnd[n]);
+            for (int e = layer.edgeOffset[n]; e < layer.edgeOffset[n + 1]; ++e)
+            {
+               builder.addEdge(strings[layer.edgeTarget[e]]);
+            }
+            for (int i = first[n]; i < first[n + 1]; ++i)
+            {
+               int a = byNode[i];
+               int set = layer.annotationSet[a];
+               builder.addAnnotation(strings[layer.annotationLabel[a]], set == NONE ? null : strings[set]);
+               for (int f = layer.featureOffset[a]; f < layer.featureOffset[a + 1]; ++f)
+               {
+                  builder.addFeature(strings[layer.featureKey[f]], strings[layer.featureValue[f]]);
+               }
+            }
+         }
+      }
+      if (!layers.isEmpty())
+      {
+         StandoffLayer last = layers.get(layers.size() - 1);
+         builder.annotationSpaces.addAll(last.annotationSpaces);
+         builder.dependsOn.addAll(last.dependsOn);
+         builder.roots.addAll(last.roots);
+      }
+      return builder.build();
+   }
+
+   /** The number of annotations in the layer. */
+   public int size()
+   {
+      return annotationNode.length;
+   }
+
+   public List<String> getAnnotationSpaces()
+   {
+      return annotationSpaces;
+   }
+
+   public List<String> getDependsOn()
+   {
+      return dependsOn;
+   }
+
+   public List<String> getRoots()
+   {
+      return roots;
+   }
+
+   /**
+    * Creates a GATE annotation for every annotation in the layer. End offsets
+    * past <code>endOfContent</code> are truncated.
+    */
+   public void addTo(AnnotationSet annotations, long endOfContent) throws InvalidOffsetException
+   {
+      addTo(annotations, endOfContent, AnnotationFilter.ALL);
+   }
+
+   /**
+    * Creates a GATE annotation for every annotation in the layer accepted by
+    * the filter. If the filter has a window only the blocks of annotations
+    * that can overlap it are visited.
+    */
+   public void addTo(AnnotationSet annotations, long endOfContent, AnnotationFilter filter)
+           throws InvalidOffsetException
+   {
+      addTo(annotations, endOfContent, filter, false);
+   }
+
+   /**
+    * As above, but if <code>edgeArrays</code> is true the graf:edge features
+    * are String[] rather than space separated strings, see {@link EdgeEncoding}.
+    */
+   public void addTo(AnnotationSet annotations, long endOfContent, AnnotationFilter filter, boolean edgeArrays)
+           throws InvalidOffsetException
+   {
+      addTo(annotations, endOfContent, filter, edgeArrays, null);
+   }
+
+   /**
+    * As above, but annotations whose {@link #getKey key} is already in
+    * <code>seen</code> are skipped, and the keys of the annotations that are
+    * added are put in it. GrafDocument uses this so an annotation that is in
+    * more than one layer, e.g. because one layer depends on the other, is
+    * only added once. <code>seen</code> may be null.
+    */
+   public void addTo(AnnotationSet annotations, long endOfContent, AnnotationFilter filter, boolean edgeArrays,
+                     Set<String> seen) throws InvalidOffsetException
+   {
+      Object[] edges = new Object[nodeId.length];
+      AnnotationBatch batch = new AnnotationBatch(annotationNode.length);
+      int first = firstCandidate(filter.getWindowStart());
+      for (int a = first; a < annotationNode.length; ++a)
+      {
+         int n = annotationNode[a];
+         if (nodeStart[n] >= filter.getWindowEnd())
+         {
+            // Annotations are sorted by start offset so none of the rest overlap.
+            break;
+         }
+         if (a % BLOCK_SIZE == 0 && blockEnd[a / BLOCK_SIZE] < filter.getWindowStart())
+         {
+            a += BLOCK_SIZE - 1;
+            continue;
+         }
+         if (!filter.overlaps(nodeStart[n], nodeEnd[n]))
+         {
+            continue;
+         }
+         String label = strings[annotationLabel[a]];
+         if (!filter.accept(label, annotationSet[a] == NONE ? null : strings[annotationSet[a]]))
+         {
+            continue;
+         }
+         if (seen != null && !seen.add(getKey(strings[nodeId[n]], label, ordinal(a))))
+         {
+            continue;
+         }
+         FeatureMap features = Factory.newFeatureMap();
+         if (annotationSet[a] != NONE)
+         {
+            features.put(Graf.GRAF_SET, strings[annotationSet[a]]);
+         }
+         if (edgeOffset[n] < edgeOffset[n + 1])
+         {
+            if (edges[n] == null)
+            {
+               String[] ids = new String[edgeOffset[n + 1] - edgeOffset[n]];
+               for (int e = edgeOffset[n]; e < edgeOffset[n + 1]; ++e)
+               {
+                  ids[e - edgeOffset[n]] = strings[edgeTarget[e]];
+               }
+               edges[n] = EdgeEncoding.encode(ids, edgeArrays);
+            }
+            features.put(Graf.GRAF_EDGE, edges[n]);
+         }
+         features.put(Graf.GRAF_ID, strings[nodeId[n]]);
+         for (int f = featureOffset[a]; f < featureOffset[a + 1]; ++f)
+         {
+            features.put(strings[featureKey[f]], strings[featureValue[f]]);
+         }
+
+         long start = nodeStart[n];
+         long end = nodeEnd[n];
+         if (end > endOfContent)
+         {
+            System.err.println("Invalid end offset for " + label + " " + end
+                    + ", end of content = " + endOfContent);
+            end = endOfContent;
+         }
+         if (start > end)
+         {
+            System.err.println("Invalid start offset for " + label + " "
+                    + start + ", end of content = " + endOfContent);
+         }
+         else
+         {
+            batch.add(start, end, label, features);
+         }
+      }
+      batch.addTo(annotations);
+   }
+
+   /**
+    * Returns a key that identifies an annotation whichever layer, and
+    * whichever way, it was read from: the id of its node, its label and the
+    * number of annotations with the same label before it on the node.
+    */
+   public static String getKey(String node, String label, int ordinal)
+   {
+      return node + ' ' + label + ' ' + ordinal;
+   }
+
+   /**
+    * Returns the number of annotations with the same label on the same node
+    * before annotation <code>a</code>. The annotations of a node are kept
+    * together and in order by the sort.
+    */
+   private int ordinal(int a)
+   {
+      int ordinal = 0;
+      for (int b = a - 1; b >= 0 && annotationNode[b] == annotationNode[a]; --b)
+      {
+         if (annotationLabel[b] == annotationLabel[a])
+         {
+            ++ordinal;
+         }
+      }
+      return ordinal;
+   }
+
+   /**
+    * Returns the index of the first annotation in the first block that may
+    * contain annotations ending at or after <code>offset</code>.
+    */
+   private int firstCandidate(long offset)
+   {
+      for (int b = 0; b < blockEnd.length; ++b)
+      {
+         if (blockEnd[b] >= offset)
+         {
+            return b * BLOCK_SIZE;
+         }
+      }
+      return annotationNode.length;
+   }
+
+   /**
+    * Collects the nodes and annotations for a new layer. Edges are added to the
+    * most recently added node, and annotations and features to the most recently
+    * added annotation.
+    */
+   public static class Builder
+   {
+      private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+      private final List<String> strings = new ArrayList<String>();
+
+      private int[] nodeId = new int[256];
+      private long[] nodeStart = new long[256];
+      private long[] nodeEnd = new long[256];
+      private int[] edgeOffset = new int[257];
+      private int[] edgeTarget = new int[256];
+      private int nodeCount = 0;
+      private int edgeCount = 0;
+
+      private int[] annotationNode = new int[256];
+      private int[] annotationLabel = new int[256];
+      private int[] annotationSet = new int[256];
+      private int[] featureOffset = new int[257];
+      private int[] featureKey = new int[256];
+      private int[] featureValue = new int[256];
+      private int annotationCount = 0;
+      private int featureCount = 0;
+
+      final List<String> annotationSpaces = new ArrayList<String>();
+      final List<String> dependsOn = new ArrayList<String>();
+      final List<String> roots = new ArrayList<String>();
+
+      public Builder()
+      {
+      }
+
+      public void addNode(String id, long start, long end)
+      {
+         if (nodeCount == nodeId.length)
+         {
+            int size = nodeCount * 2;
+            nodeId = Arrays.copyOf(nodeId, size);
+            nodeStart = Arrays.copyOf(nodeStart, size);
+            nodeEnd = Arrays.copyOf(nodeEnd, size);
+            edgeOffset = Arrays.copyOf(edgeOffset, size + 1);
+         }
+         nodeId[nodeCount] = intern(id);
+         nodeStart[nodeCount] = start;
+         nodeEnd[nodeCount] = end;
+         ++nodeCount;
+         edgeOffset[nodeCount] = edgeCount;
+      }
+
+      public void addEdge(String target)
+      {
+         if (edgeCount == edgeTarget.length)
+         {
+            edgeTarget = Arrays.copyOf(edgeTarget, edgeCount * 2);
+         }
+         edgeTarget[edgeCount++] = intern(target);
+         edgeOffset[nodeCount] = edgeCount;
+      }
+
+      /**
+       * @param label the annotation label
+       * @param set the name of the annotation space or null
+       */
+      public void addAnnotation(String label, String set)
+      {
+         if (annotationCount == annotationNode.length)
+         {
+            int size = annotationCount * 2;
+            annotationNode = Arrays.copyOf(annotationNode, size);
+            annotationLabel = Arrays.copyOf(annotationLabel, size);
+            annotationSet = Arrays.copyOf(annotationSet, size);
+            featureOffset = Arrays.copyOf(featureOffset, size + 1);
+         }
+         annotationNode[annotationCount] = nodeCount - 1;
+         annotationLabel[annotationCount] = intern(label);
+         annotationSet[annotationCount] = set == null ? NONE : intern(set);
+         ++annotationCount;
+         featureOffset[annotationCount] = featureCount;
+      }
+
+      public void addFeature(String key, String value)
+      {
+         if (featureCount == featureKey.length)
+         {
+            featureKey = Arrays.copyOf(featureKey, featureCount * 2);
+            featureValue = Arrays.copyOf(featureValue, featureCount * 2);
+         }
+         featureKey[featureCount] = intern(key);
+         featureValue[featureCount] = intern(value);
+         ++featureCount;
+         featureOffset[annotationCount] = featureCount;
+      }
+
+      /**
+       * Adds a node from an IGraph along with all of its annotations. Nodes that
+       * do not cover any text are skipped.
+       */
+      public void addNode(INode node, SpanResolver spans)
+      {
+         if (!spans.hasSpan(node))
+         {
+            return;
+         }
+         addNode(node.getId(), spans.getStart(node), spans.getEnd(node));
+         for (IEdge e : node.getOutEdges())
+         {
+            addEdge(e.getTo().getId());
+         }
+         for (IAnnotation a : node.annotations())
+         {
+            IAnnotationSpace as = a.getAnnotationSpace();
+            addAnnotation(a.getLabel(), as == null ? null : as.getName());
+            addFeatures(a.getFeatures(), null);
+         }
+      }
+
+      protected void addFeatures(IFeatureStructure fs, String base)
+      {
+         if (fs == null)
+         {
+            return;
+         }
+         for (IFeature f : fs.features())
+         {
+            String name = FeatureKeys.get(base, f.getName());
+            if (f.isAtomic())
+            {
+               if (f.getName() != null)
+               {
+                  addFeature(name, f.getStringValue());
+               }
+            }
+            else
+            {
+               addFeatures((IFeatureStructure) f.getValue(), name);
+            }
+         }
+      }
+
+      /**
+       * Sorts the annotations by the offsets of their nodes and computes the
+       * offset index. Annotations on the same node keep their order.
+       */
+      public StandoffLayer build()
+      {
+         long[] start = new long[annotationCount];
+         long[] end = new long[annotationCount];
+         for (int a = 0; a < annotationCount; ++a)
+         {
+            start[a] = nodeStart[annotationNode[a]];
+            end[a] = nodeEnd[annotationNode[a]];
+         }
+         int[] order = OffsetSort.sort(start, end, annotationCount);
+         int[] sortedNode = new int[annotationCount];
+         int[] sortedLabel = new int[annotationCount];
+         int[] sortedSet = new int[annotationCount];
+         int[] sortedOffset = new int[annotationCount + 1];
+         int[] sortedKey = new int[featureCount];
+         int[] sortedValue = new int[featureCount];
+         long[] blockEnd = new long[(annotationCount + BLOCK_SIZE - 1) / BLOCK_SIZE];
+         Arrays.fill(blockEnd, Long.MIN_VALUE);
+         int f = 0;
+         for (int i = 0; i < annotationCount; ++i)
+         {
+            int a = order[i];
+            sortedNode[i] = annotationNode[a];
+            sortedLabel[i] = annotationLabel[a];
+            sortedSet[i] = annotationSet[a];
+            sortedOffset[i] = f;
+            for (int j = featureOffset[a]; j < featureOffset[a + 1]; ++j)
+            {
+               sortedKey[f] = featureKey[j];
+               sortedValue[f] = featureValue[j];
+               ++f;
+            }
+            int b = i / BLOCK_SIZE;
+            if (end[a] > blockEnd[b])
+            {
+               blockEnd[b] = end[a];
+            }
+         }
+         sortedOffset[annotationCount] = f;
+
+         // The header lists are stored in the string table of a sidecar file.
+         for (String s : annotationSpaces)
+         {
+            intern(s);
+         }
+         for (String s : dependsOn)
+         {
+            intern(s);
+         }
+         for (String s : roots)
+         {
+            intern(s);
+         }
+         return new StandoffLayer(strings.toArray(new String[strings.size()]),
+                 Arrays.copyOf(nodeId, nodeCount),
+                 Arrays.copyOf(nodeStart, nodeCount),
+                 Arrays.copyOf(nodeEnd, nodeCount),
+                 Arrays.copyOf(edgeOffset, nodeCount + 1),
+                 Arrays.copyOf(edgeTarget, edgeCount),
+                 sortedNode, sortedLabel, sortedSet,
+                 sortedOffset, sortedKey, sortedValue, blockEnd,
+                 new ArrayList<String>(annotationSpaces),
+                 new ArrayList<String>(dependsOn),
+                 new ArrayList<String>(roots));
+      }
+
+      private int intern(String s)
+      {
+         if (s == null)
+         {
+            s = "";
+         }
+         Integer index = stringIndex.get(s);
+         if (index == null)
+         {
+            index = strings.size();
+            strings.add(s);
+            stringIndex.put(s, index);
+         }
+         return index;
+      }
+   }
+}
@@ -0,0 +1,110 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses standoff files on background threads before they are needed.
+ * <p>
+ * The pipeline thread {@link #submit(File, Callable) submits} the standoff
+ * files of the documents that come next and later {@link #remove(File)
+ * removes} the result for the document it is processing. The results are
+ * immutable {@link StandoffLayer}s, so they can be built on any thread and
+ * only adding the annotations to the document is left to the pipeline.
+ * <p>
+ * At most <code>window</code> files are pending or parsed at a time. If
+ * another file is submitted the oldest one is cancelled and forgotten, so
+ * results that are never removed (e.g. the corpus order changed) do not hold
+ * memory for long.
+ */
+public class StandoffPrefetcher
+{
+   private final ExecutorService executor;
+   private final int window;
+   /** Pending and parsed files keyed by their absolute path, oldest first. */
+   private final Map<String, Future<StandoffLayer>> pending = new LinkedHashMap<String, Future<StandoffLayer>>();
+
+   /**
+    * @param threads the number of parser threads
+    * @param window the maximum number of files pending or parsed
+    */
+   public StandoffPrefetcher(int threads, int window)
+   {
+      this.window = Math.max(1, window);
+      this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+              new DaemonThreadFactory());
+   }
+
+   public int getWindow()
+   {
+      return window;
+   }
+
+   /**
+    * Starts parsing the file unless it is already pending. The task must not
+    * touch the GATE document, since it runs while the pipeline is processing
+    * another one.
+    */
+   public synchronized void submit(File file, Callable<StandoffLayer> task)
+   {
+      String key = file.getAbsolutePath();
+      if (pending.containsKey(key))
+      {
+         return;
+      }
+      while (pending.size() >= window)
+      {
+         Iterator<Future<StandoffLayer>> it = pending.values().iterator();
+         it.next().cancel(true);
+         it.remove();
+      }
+      pending.put(key, executor.submit(task));
+   }
+
+   /**
+    * Returns the pending result for the file and forgets it, or null if the
+    * file was not submitted or has been dropped from the window.
+    */
+   public synchronized Future<StandoffLayer> remove(File file)
+   {
+      return pending.remove(file.getAbsolutePath());
+   }
+
+   /** Cancels and forgets all pending files. */
+   public synchronized void clear()
+   {
+      for (Future<StandoffLayer> future : pending.values())
+      {
+         future.cancel(true);
+      }
+      pending.clear();
+   }
+
+   public void shutdown()
+   {
+      clear();
+      executor.shutdownNow();
+   }
+}
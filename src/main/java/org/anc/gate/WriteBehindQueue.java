@@ -0,0 +1,319 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import gate.creole.ExecutionException;
+import gate.util.Out;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes files on a small pool of background threads so the pipeline thread
+ * does not wait for the disk.
+ * <p>
+ * The pipeline thread writes the complete file contents to the stream
+ * returned by {@link #open(File)}. Closing the stream queues an immutable copy
+ * of the bytes to be written. At most <code>capacity</code> files can be
+ * waiting at a time; closing another stream blocks until one of them has been
+ * written, which bounds the memory held by the queue.
+ * <p>
+ * Writes that fail are not reported to the thread that queued them. The
+ * exceptions are collected and returned by {@link #takeErrors()}. The PRs
+ * report them with {@link #update update()} at the start of the next
+ * execute() and with {@link #finish finish()} when the controller finishes.
+ * <p>
+ * The writer threads are daemons so an idle queue does not keep the JVM
+ * running, but a shutdown hook waits for the queued files to be written before
+ * the JVM exits.
+ */
+public class WriteBehindQueue
+{
+   private final ExecutorService executor;
+   private final Semaphore permits;
+   private final int capacity;
+   private final List<IOException> errors = new ArrayList<IOException>();
+   private final Thread shutdownHook;
+
+   /**
+    * @param threads the number of writer threads
+    * @param capacity the maximum number of files waiting to be written
+    */
+   public WriteBehindQueue(int threads, int capacity)
+   {
+      this.capacity = Math.max(1, capacity);
+      this.permits = new Semaphore(this.capacity);
+      this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+              new DaemonThreadFactory());
+      this.shutdownHook = new Thread("Write behind queue shutdown")
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               flush();
+            }
+            catch (InterruptedException e)
+            {
+               // The JVM is going down anyway.
+            }
+            for (IOException e : takeErrors())
+            {
+               Out.prln(e.getMessage());
+            }
+         }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+   }
+
+   /**
+    * Brings a PR's queue in line with its asynchronous parameter at the start of
+    * execute(). Files of earlier documents that could not be written are
+    * reported first, see {@link #reportErrors(boolean, boolean)}.
+    *
+    * @return the queue to write the document with: <code>queue</code>, a new
+    *         queue if asynchronous is true and <code>queue</code> is null or
+    *         was shut down, or null once the old queue is finished if
+    *         asynchronous is false
+    */
+   public static WriteBehindQueue update(WriteBehindQueue queue, boolean asynchronous, int threads, int capacity,
+                                         boolean failFast, boolean printStackTrace) throws ExecutionException
+   {
+      if (queue == null || queue.executor.isShutdown())
+      {
+         return asynchronous ? new WriteBehindQueue(threads, capacity) : null;
+      }
+      if (!asynchronous)
+      {
+         queue.finish(failFast, printStackTrace);
+         return null;
+      }
+      queue.reportErrors(failFast, printStackTrace);
+      return queue;
+   }
+
+   /**
+    * Returns a stream that buffers the contents of the file in memory. The file
+    * is queued to be written when the stream is closed.
+    */
+   public OutputStream open(final File file)
+   {
+      return new ByteArrayOutputStream(64 * 1024)
+      {
+         private boolean closed = false;
+
+         @Override
+         public void close() throws IOException
+         {
+            if (closed)
+            {
+               return;
+            }
+            closed = true;
+            try
+            {
+               submit(file, toByteArray());
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("Interrupted while queueing " + file.getPath());
+            }
+         }
+      };
+   }
+
+   /**
+    * Queues the data to be written to the file, waiting if the queue is full.
+    */
+   public void submit(final File file, final byte[] data) throws InterruptedException
+   {
+      permits.acquire();
+      try
+      {
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  write(file, data);
+               }
+               catch (IOException e)
+               {
+                  synchronized (errors)
+                  {
+                     errors.add(e);
+                  }
+               }
+               finally
+               {
+                  permits.release();
+               }
+            }
+         });
+      }
+      catch (RuntimeException e)
+      {
+         permits.release();
+         throw e;
+      }
+   }
+
+   /** Waits until every queued file has been written. */
+   public void flush() throws InterruptedException
+   {
+      permits.acquire(capacity);
+      permits.release(capacity);
+   }
+
+   /** Returns the exceptions from failed writes since the last call. */
+   public List<IOException> takeErrors()
+   {
+      synchronized (errors)
+      {
+         List<IOException> result = new ArrayList<IOException>(errors);
+         errors.clear();
+         return result;
+      }
+   }
+
+   /** Writes the remaining files and stops the writer threads. */
+   public void shutdown() throws InterruptedException
+   {
+      try
+      {
+         flush();
+      }
+      finally
+      {
+         executor.shutdown();
+         try
+         {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+         }
+         catch (IllegalStateException e)
+         {
+            // The JVM is already shutting down and the hook is running.
+         }
+      }
+   }
+
+   /**
+    * Writes the remaining files, stops the writer threads and reports the
+    * files that could not be written. Called when the controller finishes.
+    */
+   public void finish(boolean failFast, boolean printStackTrace) throws ExecutionException
+   {
+      try
+      {
+         shutdown();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new ExecutionException("Interrupted while waiting for files to be written.", e);
+      }
+      reportErrors(failFast, printStackTrace);
+   }
+
+   /**
+    * Like {@link #shutdown()}, for PR cleanup() which can not throw. Failed
+    * writes are printed.
+    */
+   public void close()
+   {
+      try
+      {
+         shutdown();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      for (IOException e : takeErrors())
+      {
+         Out.prln(e.getMessage());
+      }
+   }
+
+   /**
+    * Reports the files that could not be written since the last call. If
+    * failFast is true a single ExecutionException names all of them, caused by
+    * the first, otherwise each one is printed.
+    */
+   public void reportErrors(boolean failFast, boolean printStackTrace) throws ExecutionException
+   {
+      List<IOException> failed = takeErrors();
+      if (failed.isEmpty())
+      {
+         return;
+      }
+      if (failFast)
+      {
+         StringBuilder message = new StringBuilder();
+         message.append(failed.size() == 1 ? "1 file" : failed.size() + " files").append(" could not be written:");
+         for (IOException e : failed)
+         {
+            message.append("\n").append(e.getMessage());
+         }
+         throw new ExecutionException(message.toString(), failed.get(0));
+      }
+      for (IOException e : failed)
+      {
+         if (printStackTrace)
+         {
+            e.printStackTrace();
+         }
+         else
+         {
+            Out.prln(e.getMessage());
+         }
+      }
+   }
+
+   /** Writes one file. Called on a writer thread. */
+   protected void write(File file, byte[] data) throws IOException
+   {
+      try
+      {
+         OutputStream out = new FileOutputStream(file);
+         try
+         {
+            out.write(data);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+      catch (IOException e)
+      {
+         throw new IOException("Unable to write " + file.getPath() + ": " + e.getMessage(), e);
+      }
+   }
+}
@@ -0,0 +1,187 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CorpusContainerTest
+{
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private File directory;
+   private File packed;
+   private CorpusContainer container;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      TestFiles.write(new File(directory, "doc.hdr"), "<documentHeader/>");
+      TestFiles.write(new File(directory, "doc.txt"), "Some text.");
+      new File(directory, "sub").mkdir();
+      TestFiles.write(new File(directory, "sub/doc2-seg.xml"), "<graph/>");
+      TestFiles.write(new File(directory, "notes.dat"), "not packed");
+      OutputStream out = Compression.create(new File(directory, "doc-ptb.xml.gz"), Compression.GZIP);
+      try
+      {
+         out.write("<graph>compressed</graph>".getBytes(UTF8));
+      }
+      finally
+      {
+         out.close();
+      }
+      packed = new File(directory, "corpus" + CorpusContainer.SUFFIX);
+      assertEquals(4, new CorpusPacker(directory).pack(packed));
+      container = new CorpusContainer(packed);
+   }
+
+   @After
+   public void tearDown()
+   {
+      container.close();
+      CorpusContainer.clear();
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void entries() throws IOException
+   {
+      assertEquals(Arrays.asList("doc-ptb.xml.gz", "doc.hdr", "doc.txt", "sub/doc2-seg.xml"), container.getNames());
+      assertTrue(container.contains(new File(directory, "doc.txt")));
+      assertTrue(container.contains(new File(new File(directory, "sub"), "doc2-seg.xml")));
+      assertFalse(container.contains(new File(directory, "notes.dat")));
+      assertFalse(container.contains(packed));
+      assertEquals(10, container.length(new File(directory, "doc.txt")));
+      assertEquals(-1, container.length(new File(directory, "missing.txt")));
+      assertNull(container.getBuffer(new File(directory, "missing.txt")));
+   }
+
+   @Test
+   public void filesOutsideTheDirectory() throws IOException
+   {
+      File outside = new File(directory.getParentFile(), "doc.txt");
+      assertNull(container.getName(outside));
+      assertFalse(container.contains(outside));
+      assertEquals("sub/doc2-seg.xml", container.getName(new File(directory, "sub/doc2-seg.xml")));
+   }
+
+   @Test
+   public void contents() throws IOException
+   {
+      assertEquals("Some text.", read(container.open(new File(directory, "doc.txt"))));
+      assertEquals("<graph/>", read(container.open(new File(directory, "sub/doc2-seg.xml"))));
+      // Compressed entries are inflated as they are read.
+      assertEquals("<graph>compressed</graph>", read(container.open(new File(directory, "doc-ptb.xml.gz"))));
+   }
+
+   @Test(expected = IOException.class)
+   public void openMissingEntry() throws IOException
+   {
+      container.open(new File(directory, "missing.txt"));
+   }
+
+   @Test
+   public void extract() throws IOException
+   {
+      File copy = container.extract(new File(directory, "doc-ptb.xml.gz"));
+      try
+      {
+         assertTrue(copy.getName().endsWith("doc-ptb.xml"));
+         assertEquals("<graph>compressed</graph>", read(new FileInputStream(copy)));
+      }
+      finally
+      {
+         copy.delete();
+      }
+   }
+
+   @Test
+   public void staticHelpers() throws IOException
+   {
+      File ptb = new File(directory, "doc-ptb.xml");
+      File gz = new File(directory, "doc-ptb.xml.gz");
+      assertEquals(gz, CorpusContainer.resolve(container, ptb));
+      assertTrue(CorpusContainer.isPacked(container, gz));
+      assertFalse(CorpusContainer.isPacked(container, new File(directory, "notes.dat")));
+      assertFalse(CorpusContainer.isPacked(null, gz));
+      // Files that are not packed are read from disk.
+      File notes = new File(directory, "notes.dat");
+      assertTrue(CorpusContainer.exists(container, notes));
+      assertEquals(notes.length(), CorpusContainer.length(container, notes));
+      assertEquals("not packed", read(CorpusContainer.open(container, notes)));
+   }
+
+   @Test(expected = IOException.class)
+   public void packOutsideTheDirectory() throws IOException
+   {
+      new CorpusPacker(directory).pack(new File(new File(directory, "sub"), "corpus" + CorpusContainer.SUFFIX));
+   }
+
+   @Test
+   public void getReopensModifiedContainer() throws IOException
+   {
+      URL url = packed.toURI().toURL();
+      CorpusContainer first = CorpusContainer.get(url);
+      assertSame(first, CorpusContainer.get(url));
+
+      TestFiles.write(new File(directory, "doc-nc.xml"), "<graph/>");
+      new CorpusPacker(directory).pack(packed);
+      packed.setLastModified(packed.lastModified() + 2000);
+      CorpusContainer second = CorpusContainer.get(url);
+      assertNotSame(first, second);
+      assertTrue(second.contains(new File(directory, "doc-nc.xml")));
+   }
+
+   private static String read(InputStream stream) throws IOException
+   {
+      Reader reader = new InputStreamReader(stream, UTF8);
+      try
+      {
+         StringBuilder text = new StringBuilder();
+         char[] buffer = new char[1024];
+         for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer))
+         {
+            text.append(buffer, 0, n);
+         }
+         return text.toString();
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+}
@@ -0,0 +1,154 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CorpusManifestTest
+{
+   private File directory;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      CorpusManifest.clear();
+   }
+
+   @After
+   public void tearDown()
+   {
+      CorpusManifest.clear();
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void scan() throws IOException
+   {
+      File text = new File(directory, "doc.txt");
+      TestFiles.write(text, "Some text.");
+      text.setLastModified(1000000000000L);
+      new File(directory, "sub").mkdir();
+      TestFiles.write(new File(directory, "sub/doc2.hdr"), "<documentHeader/>");
+      CorpusManifest manifest = CorpusManifest.scan(directory);
+      assertEquals(2, manifest.size());
+      assertTrue(manifest.contains(text));
+      assertTrue(manifest.contains(new File(new File(directory, "sub"), "doc2.hdr")));
+      assertEquals(10, manifest.length(text));
+      assertEquals(1000000000000L, manifest.lastModified(text));
+      File missing = new File(directory, "missing.txt");
+      assertFalse(manifest.contains(missing));
+      assertEquals(-1, manifest.length(missing));
+      assertEquals(0, manifest.lastModified(missing));
+   }
+
+   @Test
+   public void writeAndRead() throws IOException
+   {
+      File text = new File(directory, "doc.txt");
+      TestFiles.write(text, "Some text.");
+      TestFiles.write(new File(directory, "doc-seg.xml"), "<graph/>");
+      File index = new File(directory, CorpusManifest.DEFAULT_NAME);
+      CorpusManifest scanned = CorpusManifest.scan(directory);
+      scanned.write(index);
+      CorpusManifest read = CorpusManifest.read(index);
+      assertEquals(scanned.size(), read.size());
+      assertEquals(scanned.length(text), read.length(text));
+      assertEquals(scanned.lastModified(text), read.lastModified(text));
+      assertEquals(Arrays.asList("seg"), read.getLayers(text));
+   }
+
+   @Test(expected = IOException.class)
+   public void readRejectsOtherFiles() throws IOException
+   {
+      File file = new File(directory, "other.dat");
+      TestFiles.write(file, "this is not a manifest");
+      CorpusManifest.read(file);
+   }
+
+   @Test
+   public void coversOnlyTheCorpusDirectory() throws IOException
+   {
+      CorpusManifest manifest = CorpusManifest.scan(directory);
+      assertTrue(manifest.covers(new File(directory, "missing.txt")));
+      assertFalse(manifest.covers(new File(directory.getParentFile(), "doc.txt")));
+   }
+
+   @Test
+   public void resolvePrefersThePlainFile() throws IOException
+   {
+      TestFiles.write(new File(directory, "a-seg.xml"), "<graph/>");
+      TestFiles.write(new File(directory, "a-seg.xml.gz"), "");
+      TestFiles.write(new File(directory, "b-seg.xml.gz"), "");
+      CorpusManifest manifest = CorpusManifest.scan(directory);
+      assertEquals(new File(directory, "a-seg.xml"), manifest.resolve(new File(directory, "a-seg.xml")));
+      assertEquals(new File(directory, "b-seg.xml.gz"), manifest.resolve(new File(directory, "b-seg.xml")));
+      assertNull(manifest.resolve(new File(directory, "c-seg.xml")));
+   }
+
+   /**
+    * Both the document name and the layer type may contain dashes. The longest
+    * name with a header or text file is the document.
+    */
+   @Test
+   public void layers() throws IOException
+   {
+      TestFiles.write(new File(directory, "my-doc.hdr"), "<documentHeader/>");
+      TestFiles.write(new File(directory, "my-doc-penn.xml"), "<graph/>");
+      TestFiles.write(new File(directory, "my-doc-fn-frames.xml.gz"), "");
+      TestFiles.write(new File(directory, "other-doc-seg.xml"), "<graph/>");
+      CorpusManifest manifest = CorpusManifest.scan(directory);
+      assertEquals(Arrays.asList("fn-frames", "penn"), manifest.getLayers(new File(directory, "my-doc.hdr")));
+      assertEquals(Arrays.asList("fn-frames", "penn"), manifest.getLayers(new File(directory, "my-doc.txt")));
+      // Without a header or text the name is split at the last dash.
+      assertEquals(Arrays.asList("seg"), manifest.getLayers(new File(directory, "other-doc.hdr")));
+      assertEquals(Collections.emptyList(), manifest.getLayers(new File(directory, "none.hdr")));
+   }
+
+   @Test
+   public void indexIsReadAgainWhenModified() throws IOException
+   {
+      TestFiles.write(new File(directory, "doc.hdr"), "<documentHeader/>");
+      File index = new File(directory, CorpusManifest.DEFAULT_NAME);
+      CorpusManifest.scan(directory).write(index);
+      CorpusManifest first = CorpusManifest.get(index.toURI().toURL());
+      assertSame(first, CorpusManifest.get(index.toURI().toURL()));
+      assertEquals(1, first.size());
+
+      TestFiles.write(new File(directory, "doc-seg.xml"), "<graph/>");
+      CorpusManifest.scan(directory).write(index);
+      index.setLastModified(index.lastModified() + 2000);
+      CorpusManifest second = CorpusManifest.get(index.toURI().toURL());
+      assertNotSame(first, second);
+      // The index itself was listed by the second scan.
+      assertEquals(3, second.size());
+   }
+}
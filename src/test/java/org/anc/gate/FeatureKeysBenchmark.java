@@ -0,0 +1,105 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import gate.Factory;
+import gate.FeatureMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the heap held by the feature maps of a corpus when the flattened
+ * feature keys are concatenated for every annotation, as the loaders used to
+ * do, and when they come from {@link FeatureKeys}.
+ * <p>
+ * Usage: <code>java org.anc.gate.FeatureKeysBenchmark [annotations]</code>.
+ * Each annotation has a part of speech and a nested morphology structure.
+ * The default of two million annotations stands in for the token layers of a
+ * MASC-sized corpus (about half a million words). Run it with a heap large
+ * enough for both sets of maps, e.g. -Xmx4g.
+ */
+public class FeatureKeysBenchmark
+{
+   private static final String[] TAGS = { "NN", "NNS", "VB", "VBD", "JJ", "DT", "IN", "PRP" };
+
+   public static void main(String[] args)
+   {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+      System.out.println("Feature maps for " + count + " annotations.");
+      long concatenated = measure(count, false);
+      long shared = measure(count, true);
+      System.out.println(String.format("Concatenated keys %8.1f MB", concatenated / (1024.0 * 1024.0)));
+      System.out.println(String.format("FeatureKeys       %8.1f MB", shared / (1024.0 * 1024.0)));
+   }
+
+   /** Returns the heap retained by the feature maps of <code>count</code> annotations. */
+   private static long measure(int count, boolean canonical)
+   {
+      FeatureKeys.clear();
+      long before = usedMemory();
+      List<FeatureMap> maps = new ArrayList<FeatureMap>(count);
+      for (int i = 0; i < count; ++i)
+      {
+         FeatureMap features = Factory.newFeatureMap();
+         String tag = TAGS[i % TAGS.length];
+         // The parser creates a new name string for every feature it reads.
+         String msd = new String("msd");
+         String morph = new String("morph");
+         String base = new String("base");
+         String pos = new String("pos");
+         if (canonical)
+         {
+            String parent = FeatureKeys.get(null, morph);
+            features.put(FeatureKeys.get(null, msd), tag);
+            features.put(FeatureKeys.get(parent, base), "w" + (i % 50000));
+            features.put(FeatureKeys.get(parent, pos), tag);
+         }
+         else
+         {
+            features.put(msd, tag);
+            features.put(morph + "/" + base, "w" + (i % 50000));
+            features.put(morph + "/" + pos, tag);
+         }
+         maps.add(features);
+      }
+      long used = usedMemory() - before;
+      if (maps.size() != count)
+      {
+         throw new IllegalStateException();
+      }
+      return used;
+   }
+
+   private static long usedMemory()
+   {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 4; ++i)
+      {
+         System.gc();
+         try
+         {
+            Thread.sleep(100);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
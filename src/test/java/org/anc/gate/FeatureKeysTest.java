@@ -0,0 +1,51 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FeatureKeysTest
+{
+   @After
+   public void tearDown()
+   {
+      FeatureKeys.clear();
+   }
+
+   @Test
+   public void keysAreShared()
+   {
+      String key = FeatureKeys.get("morph", new String("base"));
+      assertEquals("morph/base", key);
+      assertSame(key, FeatureKeys.get(new String("morph"), new String("base")));
+      assertSame(FeatureKeys.get("msd"), FeatureKeys.get(null, new String("msd")));
+   }
+
+   /** A feature without a name has the key of its base, whichever loader reads it. */
+   @Test
+   public void featureWithoutName()
+   {
+      assertEquals("morph", FeatureKeys.get("morph", null));
+      assertNull(FeatureKeys.get(null, null));
+      assertNull(FeatureKeys.get(null));
+   }
+}
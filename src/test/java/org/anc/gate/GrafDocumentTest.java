@@ -0,0 +1,279 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.corpora.DocumentContentImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xces.graf.io.dom.DocumentHeader;
+
+public class GrafDocumentTest
+{
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String TEXT = "Caf\u00e9 na\u00efve \u4e2d\u6587 text.\n";
+
+   private static final String RESOURCE_HEADER = "<resourceDesc xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<annotationSpaces>"
+           + "<annotationSpace as.id=\"xces\" type=\"http://www.xces.org/schema/2003\"/>"
+           + "<annotationSpace as.id=\"PTB\" type=\"http://www.cis.upenn.edu/~treebank/\"/>"
+           + "</annotationSpaces></resourceDesc>";
+
+   private static final String DOCUMENT_HEADER = "<documentHeader xmlns=\"http://www.xces.org/ns/GrAF/1.0/\" docId=\"doc\">"
+           + "<profileDesc><primaryData loc=\"doc.txt\" f.id=\"text\"/><annotations>"
+           + "<annotation loc=\"doc-seg.xml\" f.id=\"seg\"/>"
+           + "<annotation loc=\"doc-ptb.xml\" f.id=\"ptb\"/>"
+           + "<annotation loc=\"doc-ne.xml\" f.id=\"ne\"/>"
+           + "</annotations></profileDesc></documentHeader>";
+
+   private static final String SEG = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><annotationSpaces><annotationSpace as.id=\"xces\"/></annotationSpaces></graphHeader>"
+           + "<region xml:id=\"seg-r0\" anchors=\"0 5\"/>"
+           + "<region xml:id=\"seg-r1\" anchors=\"6 11\"/>"
+           + "</graph>";
+
+   private static final String PTB = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><dependencies><dependsOn f.id=\"seg\"/></dependencies>"
+           + "<annotationSpaces><annotationSpace as.id=\"PTB\"/></annotationSpaces></graphHeader>"
+           + "<node xml:id=\"ptb-n0\"><link targets=\"seg-r0\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n0\" as=\"PTB\"><fs><f name=\"msd\" value=\"UH\"/></fs></a>"
+           + "<node xml:id=\"ptb-n1\"><link targets=\"seg-r1\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n1\" as=\"PTB\"><fs><f name=\"msd\" value=\"NN\"/></fs></a>"
+           + "<node xml:id=\"ptb-n2\"/>"
+           + "<a label=\"S\" ref=\"ptb-n2\" as=\"PTB\"/>"
+           + "<edge xml:id=\"ptb-e0\" from=\"ptb-n2\" to=\"ptb-n0\"/>"
+           + "<edge xml:id=\"ptb-e1\" from=\"ptb-n2\" to=\"ptb-n1\"/>"
+           + "</graph>";
+
+   /** Depends on the ptb layer, so parsing it brings in the ptb annotations as well. */
+   private static final String NE = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><dependencies><dependsOn f.id=\"ptb\"/></dependencies>"
+           + "<annotationSpaces><annotationSpace as.id=\"xces\"/></annotationSpaces></graphHeader>"
+           + "<node xml:id=\"ne-n0\"/>"
+           + "<a label=\"person\" ref=\"ne-n0\" as=\"xces\"><fs><f name=\"gender\" value=\"male\"/></fs></a>"
+           + "<edge xml:id=\"ne-e0\" from=\"ne-n0\" to=\"ptb-n1\"/>"
+           + "</graph>";
+
+   private File directory;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void plainText() throws IOException
+   {
+      File file = new File(directory, "doc.txt");
+      write(file, Compression.NONE, "\uFEFF" + TEXT);
+      assertEquals(TEXT, GrafDocument.readContent(null, file, UTF8));
+   }
+
+   /** Compressed text is decoded as it is inflated, and the byte order mark is skipped as well. */
+   @Test
+   public void compressedText() throws IOException
+   {
+      File file = new File(directory, "doc.txt.gz");
+      write(file, Compression.GZIP, "\uFEFF" + TEXT);
+      assertEquals(TEXT, GrafDocument.readContent(null, file, UTF8));
+   }
+
+   /** Longer than the read buffer, so the text is decoded in several pieces. */
+   @Test
+   public void longCompressedText() throws IOException
+   {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 200000)
+      {
+         text.append(TEXT);
+      }
+      File file = new File(directory, "doc.txt.gz");
+      write(file, Compression.GZIP, text.toString());
+      assertEquals(text.toString(), GrafDocument.readContent(null, file, UTF8));
+   }
+
+   /**
+    * In lazy mode a layer is parsed into the annotation set named after it the
+    * first time the set is asked for, and the other layers are left alone.
+    */
+   @Test
+   public void lazyLayer() throws Exception
+   {
+      writeCorpus();
+      GrafDocument doc = createDocument();
+      doc.setLazy(true);
+      doc.registerLayers(new DocumentHeader(new File(directory, "doc.hdr")), directory);
+      assertTrue(doc.getAnnotationSetNames().contains("ptb"));
+
+      AnnotationSet ptb = doc.getAnnotations("ptb");
+      assertEquals(3, ptb.size());
+      assertEquals(2, count(ptb, "tok"));
+      for (Annotation a : ptb)
+      {
+         if ("S".equals(a.getType()))
+         {
+            assertEquals(0L, a.getStartNode().getOffset().longValue());
+            assertEquals(11L, a.getEndNode().getOffset().longValue());
+            assertEquals(Arrays.asList("ptb-n0", "ptb-n1"),
+                    Arrays.asList(EdgeEncoding.decode(a.getFeatures().get(Graf.GRAF_EDGE))));
+         }
+      }
+      assertFalse(doc.pendingLayers.containsKey("ptb"));
+      assertTrue(doc.pendingLayers.containsKey("seg"));
+   }
+
+   /**
+    * A document built from the layers parsed by prepare(), as GrafCorpusLoader
+    * does, has the same annotations as one that parses its layers itself. The
+    * ptb annotations, which are also in the graph of the ne layer, are only
+    * added once either way.
+    */
+   @Test
+   public void preparedLayers() throws Exception
+   {
+      writeCorpus();
+      File header = new File(directory, "doc.hdr");
+      GrafDocument parsed = createDocument();
+      parsed.addStandoff(new DocumentHeader(header), directory, null);
+
+      GrafDocument.Prepared work = GrafDocument.prepare(header.toURI().toURL(),
+              new File(directory, "resource-header.xml").toURI().toURL(), null, "UTF-8", null, true);
+      assertEquals(3, work.layers.size());
+      GrafDocument prepared = createDocument();
+      prepared.addStandoff(work.header, directory, work);
+
+      List<String> expected = describe(parsed.getAnnotations(parsed.getStandoffASName()));
+      assertEquals(4, expected.size());
+      assertEquals(expected, describe(prepared.getAnnotations(prepared.getStandoffASName())));
+   }
+
+   /**
+    * A compressed layer, which is read with a GrafStreamLoader, has the same
+    * annotations as the plain file parsed into a graph, including those from
+    * the layers it depends on.
+    */
+   @Test
+   public void compressedLayer() throws Exception
+   {
+      writeCorpus();
+      GrafDocument plain = createDocument();
+      plain.setLazy(true);
+      plain.registerLayers(new DocumentHeader(new File(directory, "doc.hdr")), directory);
+      List<String> expected = describe(plain.getAnnotations("ne"));
+      assertEquals(4, expected.size());
+
+      write(new File(directory, "doc-ne.xml.gz"), Compression.GZIP, NE);
+      assertTrue(new File(directory, "doc-ne.xml").delete());
+      TestFiles.write(new File(directory, "doc.hdr"), DOCUMENT_HEADER.replace("doc-ne.xml", "doc-ne.xml.gz"));
+      GrafDocument compressed = createDocument();
+      compressed.setLazy(true);
+      compressed.registerLayers(new DocumentHeader(new File(directory, "doc.hdr")), directory);
+      assertEquals(expected, describe(compressed.getAnnotations("ne")));
+   }
+
+   /** Writes a document with a segmentation layer and two layers that depend on it. */
+   private void writeCorpus() throws IOException
+   {
+      TestFiles.write(new File(directory, "resource-header.xml"), RESOURCE_HEADER);
+      TestFiles.write(new File(directory, "doc.hdr"), DOCUMENT_HEADER);
+      TestFiles.write(new File(directory, "doc.txt"), "Hello world");
+      TestFiles.write(new File(directory, "doc-seg.xml"), SEG);
+      TestFiles.write(new File(directory, "doc-ptb.xml"), PTB);
+      TestFiles.write(new File(directory, "doc-ne.xml"), NE);
+   }
+
+   /** Creates a document for the text of the corpus without going through init(). */
+   private GrafDocument createDocument() throws IOException
+   {
+      GrafDocument doc = new GrafDocument();
+      doc.setResourceHeader(new File(directory, "resource-header.xml").toURI().toURL());
+      doc.setContent(new DocumentContentImpl("Hello world"));
+      doc.endOfContent = 11;
+      return doc;
+   }
+
+   /** Returns the type, offsets and features of every annotation, sorted. */
+   static List<String> describe(AnnotationSet set)
+   {
+      List<String> result = new ArrayList<String>();
+      for (Annotation a : set)
+      {
+         Map<Object, Object> features = new TreeMap<Object, Object>();
+         for (Map.Entry<Object, Object> e : a.getFeatures().entrySet())
+         {
+            Object value = e.getValue();
+            features.put(e.getKey(), Graf.GRAF_EDGE.equals(e.getKey())
+                    ? Arrays.asList(EdgeEncoding.decode(value)) : value);
+         }
+         result.add(a.getType() + " " + a.getStartNode().getOffset() + " " + a.getEndNode().getOffset()
+                 + " " + features);
+      }
+      Collections.sort(result);
+      return result;
+   }
+
+   private static int count(AnnotationSet set, String type)
+   {
+      int n = 0;
+      for (Annotation a : set)
+      {
+         if (type.equals(a.getType()))
+         {
+            ++n;
+         }
+      }
+      return n;
+   }
+
+   private static void write(File file, String compression, String text) throws IOException
+   {
+      OutputStream out = Compression.create(file, compression);
+      try
+      {
+         out.write(text.getBytes(UTF8));
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+}
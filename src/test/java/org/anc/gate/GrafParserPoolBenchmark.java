@@ -0,0 +1,133 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.xces.graf.api.IGraph;
+import org.xces.graf.io.GrafParser;
+import org.xces.graf.io.dom.ResourceHeader;
+
+/**
+ * Compares the time taken to parse a corpus of small standoff files with a
+ * new GrafParser for every file, as the loaders did before, against taking
+ * the parser from a {@link GrafParserPool}.
+ * <p>
+ * Usage: <code>java org.anc.gate.GrafParserPoolBenchmark [files [runs]]</code>,
+ * by default five hundred files of fifty annotations and five timed runs
+ * after one warm up. The files are written to a temporary directory that is
+ * deleted afterwards.
+ */
+public class GrafParserPoolBenchmark
+{
+   private static final int NODES = 50;
+
+   public static void main(String[] args) throws Exception
+   {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+      int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      File directory = TestFiles.createTempDirectory();
+      try
+      {
+         File[] files = createCorpus(directory, count);
+         ResourceHeader header = new ResourceHeader(new File(directory, "resource-header.xml"));
+         System.out.println("Parsing " + count + " files, best of " + runs + " runs.");
+
+         long newBest = Long.MAX_VALUE;
+         long pooledBest = Long.MAX_VALUE;
+         for (int run = 0; run <= runs; ++run)
+         {
+            long start = System.nanoTime();
+            int newNodes = 0;
+            for (File file : files)
+            {
+               GrafParser parser = new GrafParser(header);
+               newNodes += parser.parse(file).nodeCount();
+            }
+            long newTime = System.nanoTime() - start;
+
+            GrafParserPool pool = new GrafParserPool(header, 1);
+            start = System.nanoTime();
+            int pooledNodes = 0;
+            for (File file : files)
+            {
+               GrafParser parser = pool.acquire();
+               try
+               {
+                  IGraph graph = parser.parse(file);
+                  pooledNodes += graph.nodeCount();
+               }
+               finally
+               {
+                  pool.release(parser);
+               }
+            }
+            long pooledTime = System.nanoTime() - start;
+
+            if (newNodes != pooledNodes || newNodes != count * NODES)
+            {
+               throw new IllegalStateException("The parsers disagree.");
+            }
+            // The first run only warms up the JIT.
+            if (run > 0)
+            {
+               newBest = Math.min(newBest, newTime);
+               pooledBest = Math.min(pooledBest, pooledTime);
+            }
+         }
+         System.out.println(String.format("New parser        %8.1f ms", newBest / 1.0e6));
+         System.out.println(String.format("GrafParserPool    %8.1f ms", pooledBest / 1.0e6));
+      }
+      finally
+      {
+         TestFiles.delete(directory);
+      }
+   }
+
+   /** Writes the resource header and <code>count</code> standoff files with NODES annotated regions each. */
+   private static File[] createCorpus(File directory, int count) throws IOException
+   {
+      TestFiles.write(new File(directory, "resource-header.xml"),
+              "<resourceDesc xmlns=\"http://www.xces.org/ns/GrAF/1.0/\"><annotationSpaces>"
+                      + "<annotationSpace as.id=\"PTB\" type=\"http://www.cis.upenn.edu/~treebank/\"/>"
+                      + "</annotationSpaces></resourceDesc>");
+      File[] files = new File[count];
+      for (int i = 0; i < count; ++i)
+      {
+         StringBuilder xml = new StringBuilder();
+         xml.append("<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">");
+         xml.append("<graphHeader><annotationSpaces><annotationSpace as.id=\"PTB\"/></annotationSpaces></graphHeader>");
+         for (int n = 0; n < NODES; ++n)
+         {
+            xml.append("<region xml:id=\"ptb-r").append(n).append("\" anchors=\"").append(n * 6).append(' ')
+                    .append(n * 6 + 5).append("\"/>");
+         }
+         for (int n = 0; n < NODES; ++n)
+         {
+            xml.append("<node xml:id=\"ptb-n").append(n).append("\"><link targets=\"ptb-r").append(n)
+                    .append("\"/></node>");
+            xml.append("<a label=\"tok\" ref=\"ptb-n").append(n).append("\" as=\"PTB\">");
+            xml.append("<fs><f name=\"msd\" value=\"NN\"/></fs></a>");
+         }
+         xml.append("</graph>");
+         files[i] = new File(directory, "doc" + i + "-ptb.xml");
+         TestFiles.write(files[i], xml.toString());
+      }
+      return files;
+   }
+}
@@ -0,0 +1,152 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xces.graf.api.IAnnotationSpace;
+import org.xces.graf.api.IGraph;
+import org.xces.graf.api.INode;
+import org.xces.graf.io.GrafParser;
+import org.xces.graf.io.dom.ResourceHeader;
+
+public class GrafParserPoolTest
+{
+   private static final String RESOURCE_HEADER = "<resourceDesc xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<annotationSpaces>"
+           + "<annotationSpace as.id=\"xces\" type=\"http://www.xces.org/schema/2003\"/>"
+           + "<annotationSpace as.id=\"PTB\" type=\"http://www.cis.upenn.edu/~treebank/\"/>"
+           + "</annotationSpaces></resourceDesc>";
+
+   private static final String SEG = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><annotationSpaces><annotationSpace as.id=\"xces\"/></annotationSpaces></graphHeader>"
+           + "<region xml:id=\"seg-r0\" anchors=\"0 5\"/>"
+           + "<region xml:id=\"seg-r1\" anchors=\"6 11\"/>"
+           + "</graph>";
+
+   private static final String PTB = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><dependencies><dependsOn f.id=\"seg\"/></dependencies>"
+           + "<annotationSpaces><annotationSpace as.id=\"PTB\"/></annotationSpaces>"
+           + "<roots><root>ptb-n2</root></roots></graphHeader>"
+           + "<node xml:id=\"ptb-n0\"><link targets=\"seg-r0\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n0\" as=\"PTB\"/>"
+           + "<node xml:id=\"ptb-n1\"><link targets=\"seg-r1\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n1\" as=\"PTB\"/>"
+           + "<node xml:id=\"ptb-n2\"/>"
+           + "<a label=\"S\" ref=\"ptb-n2\" as=\"PTB\"/>"
+           + "<edge xml:id=\"ptb-e0\" from=\"ptb-n2\" to=\"ptb-n0\"/>"
+           + "<edge xml:id=\"ptb-e1\" from=\"ptb-n2\" to=\"ptb-n1\"/>"
+           + "</graph>";
+
+   /** A second document with no dependencies or roots and a different annotation space. */
+   private static final String LOGICAL = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><annotationSpaces><annotationSpace as.id=\"xces\"/></annotationSpaces></graphHeader>"
+           + "<region xml:id=\"logical-r0\" anchors=\"0 11\"/>"
+           + "<node xml:id=\"logical-n0\"><link targets=\"logical-r0\"/></node>"
+           + "<a label=\"p\" ref=\"logical-n0\" as=\"xces\"/>"
+           + "</graph>";
+
+   private File directory;
+   private GrafParserPool pool;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      File header = new File(directory, "resource-header.xml");
+      TestFiles.write(header, RESOURCE_HEADER);
+      TestFiles.write(new File(directory, "doc-seg.xml"), SEG);
+      TestFiles.write(new File(directory, "doc-ptb.xml"), PTB);
+      TestFiles.write(new File(directory, "other-logical.xml"), LOGICAL);
+      pool = new GrafParserPool(new ResourceHeader(header), 1);
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void parserIsReused() throws Exception
+   {
+      GrafParser parser = pool.acquire();
+      pool.release(parser);
+      assertSame(parser, pool.acquire());
+   }
+
+   /**
+    * A parser returned to the pool after reading one document gives the next
+    * document a graph with only its own nodes and header.
+    */
+   @Test
+   public void reusedParserStartsClean() throws Exception
+   {
+      GrafParser parser = pool.acquire();
+      IGraph first = parser.parse(new File(directory, "doc-ptb.xml"));
+      pool.release(parser);
+
+      GrafParser reused = pool.acquire();
+      assertSame(parser, reused);
+      IGraph second = reused.parse(new File(directory, "other-logical.xml"));
+      pool.release(reused);
+
+      assertEquals(Arrays.asList("logical-n0"), getNodeIds(second));
+      assertTrue(second.getHeader().getDependsOn().isEmpty());
+      assertTrue(second.getHeader().getRoots().isEmpty());
+      assertEquals(Arrays.asList("xces"), getSpaceNames(second));
+
+      // The first graph is not changed by the second parse either.
+      assertEquals(Arrays.asList("ptb-n0", "ptb-n1", "ptb-n2"), getNodeIds(first));
+      assertEquals(Arrays.asList("seg"), first.getHeader().getDependsOn());
+      assertEquals(Arrays.asList("ptb-n2"), first.getHeader().getRoots());
+      assertEquals(Arrays.asList("PTB"), getSpaceNames(first));
+   }
+
+   private static List<String> getNodeIds(IGraph graph)
+   {
+      List<String> ids = new ArrayList<String>();
+      for (INode node : graph.nodes())
+      {
+         ids.add(node.getId());
+      }
+      Collections.sort(ids);
+      return ids;
+   }
+
+   private static List<String> getSpaceNames(IGraph graph)
+   {
+      List<String> names = new ArrayList<String>();
+      for (IAnnotationSpace space : graph.getHeader().getAnnotationSpaces())
+      {
+         names.add(space.getName());
+      }
+      return names;
+   }
+}
@@ -0,0 +1,91 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrafStreamLoaderTest
+{
+   private File directory;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      directory = TestFiles.createTempDirectory();
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void nestedFeatures() throws Exception
+   {
+      File file = standoff("<f name=\"msd\" value=\"NN\"/>"
+              + "<f name=\"morph\"><fs><f name=\"base\" value=\"dog\"/><f name=\"pos\"><fs><f name=\"tag\">N</f></fs></f></fs></f>");
+      Map<String, String> features = features(new GrafStreamLoader().loadLayer(file));
+      assertEquals("NN", features.get("msd"));
+      assertEquals("dog", features.get("morph/base"));
+      assertEquals("N", features.get("morph/pos/tag"));
+      assertEquals(3, features.size());
+   }
+
+   /** The features of a nested structure in a feature without a name go to the enclosing structure. */
+   @Test
+   public void nestedFeatureWithoutName() throws Exception
+   {
+      File file = standoff("<f name=\"morph\"><fs><f><fs><f name=\"base\" value=\"dog\"/></fs></f></fs></f>"
+              + "<f value=\"ignored\"/>");
+      Map<String, String> features = features(new GrafStreamLoader().loadLayer(file));
+      assertEquals("dog", features.get("morph/base"));
+      assertEquals(1, features.size());
+   }
+
+   /** Returns the features of the first annotation other than graf:set and graf:id. */
+   private static Map<String, String> features(StandoffLayer layer)
+   {
+      Map<String, String> features = new HashMap<String, String>();
+      for (int f = layer.featureOffset[0]; f < layer.featureOffset[1]; ++f)
+      {
+         features.put(layer.strings[layer.featureKey[f]], layer.strings[layer.featureValue[f]]);
+      }
+      features.remove(Graf.GRAF_SET);
+      features.remove(Graf.GRAF_ID);
+      return features;
+   }
+
+   /** Writes a standoff file with one annotation that has the given features. */
+   private File standoff(String features) throws Exception
+   {
+      File file = new File(directory, "doc-test.xml");
+      TestFiles.write(file, "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\"><graphHeader/>"
+              + "<region xml:id=\"r1\" anchors=\"0 3\"/>"
+              + "<node xml:id=\"n1\"><link targets=\"r1\"/></node>"
+              + "<a label=\"tok\" ref=\"n1\" as=\"xces\"><fs>" + features + "</fs></a></graph>");
+      return file;
+   }
+}
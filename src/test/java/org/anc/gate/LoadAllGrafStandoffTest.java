@@ -0,0 +1,215 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Loads a layer and the layer it depends on the way loadByDependencies does,
+ * with the sidecar cache enabled, and checks that each file is read once.
+ */
+public class LoadAllGrafStandoffTest
+{
+   private static final String SEG = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><annotationSpaces><annotationSpace as.id=\"xces\" default=\"true\"/></annotationSpaces></graphHeader>"
+           + "<region xml:id=\"seg-r0\" anchors=\"0 5\"/>"
+           + "<region xml:id=\"seg-r1\" anchors=\"6 11\"/>"
+           + "</graph>";
+
+   private static final String PTB = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><dependencies><dependsOn f.id=\"seg\"/></dependencies>"
+           + "<annotationSpaces><annotationSpace as.id=\"PTB\" default=\"true\"/></annotationSpaces></graphHeader>"
+           + "<node xml:id=\"ptb-n0\"><link targets=\"seg-r0\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n0\"/>"
+           + "<node xml:id=\"ptb-n1\"><link targets=\"seg-r1\"/></node>"
+           + "<a label=\"tok\" ref=\"ptb-n1\"/>"
+           + "<node xml:id=\"ptb-n2\"/>"
+           + "<a label=\"S\" ref=\"ptb-n2\"/>"
+           + "<edge xml:id=\"e0\" from=\"ptb-n2\" to=\"ptb-n0\"/>"
+           + "<edge xml:id=\"e1\" from=\"ptb-n2\" to=\"ptb-n1\"/>"
+           + "</graph>";
+
+   private static final String NE = "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\">"
+           + "<graphHeader><dependencies><dependsOn f.id=\"ptb\"/></dependencies>"
+           + "<annotationSpaces><annotationSpace as.id=\"xces\" default=\"true\"/></annotationSpaces></graphHeader>"
+           + "<node xml:id=\"ne-n0\"/>"
+           + "<a label=\"person\" ref=\"ne-n0\"/>"
+           + "<edge xml:id=\"ne-e0\" from=\"ne-n0\" to=\"ptb-n1\"/>"
+           + "</graph>";
+
+   private File directory;
+   private File seg;
+   private File ptb;
+   private CountingLoader loader;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      seg = new File(directory, "doc-seg.xml");
+      ptb = new File(directory, "doc-ptb.xml");
+      TestFiles.write(seg, SEG);
+      TestFiles.write(ptb, PTB);
+      loader = new CountingLoader();
+      loader.cacheDirectory = new File(directory, "cache").toURI().toURL();
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void dependencyIsParsedOnce() throws Exception
+   {
+      Map<String, LoadAllGrafStandoff.DependencyTask> tasks = load("seg", "ptb");
+      assertEquals(Arrays.asList("doc-seg.xml", "doc-ptb.xml"), loader.reads);
+      assertSpans(tasks.get("ptb").layer);
+   }
+
+   @Test
+   public void cachedLayersAreNotParsed() throws Exception
+   {
+      load("seg", "ptb");
+      loader.reads.clear();
+      Map<String, LoadAllGrafStandoff.DependencyTask> tasks = load("seg", "ptb");
+      assertTrue(loader.reads.isEmpty());
+      assertSpans(tasks.get("ptb").layer);
+   }
+
+   /**
+    * The dependent has to be parsed, so its dependency must be parsed and
+    * published too even though it has a sidecar.
+    */
+   @Test
+   public void dependencyIsParsedWhenDependentIsNotCached() throws Exception
+   {
+      load("seg", "ptb");
+      assertTrue(new StandoffCache(new File(directory, "cache")).getSidecar(ptb).delete());
+      loader.reads.clear();
+      Map<String, LoadAllGrafStandoff.DependencyTask> tasks = load("seg", "ptb");
+      assertEquals(Arrays.asList("doc-seg.xml", "doc-ptb.xml"), loader.reads);
+      assertSpans(tasks.get("ptb").layer);
+   }
+
+   /**
+    * The ne layer is parsed with the ptb layer resolved through the registry,
+    * but still has the ptb annotations, the same as when it is parsed into a
+    * graph.
+    */
+   @Test
+   public void dependencyAnnotationsAreIncluded() throws Exception
+   {
+      TestFiles.write(new File(directory, "doc-ne.xml"), NE);
+      Map<String, LoadAllGrafStandoff.DependencyTask> tasks = load("seg", "ptb", "ne");
+      assertEquals(Arrays.asList("doc-seg.xml", "doc-ptb.xml", "doc-ne.xml"), loader.reads);
+      StandoffLayer layer = tasks.get("ne").layer;
+      assertEquals(4, layer.size());
+      assertEquals(Arrays.asList("ptb"), layer.getDependsOn());
+      assertEquals(3, tasks.get("ptb").layer.size());
+   }
+
+   /** Runs the tasks on this thread in dependency order, as loadByDependencies does. */
+   private Map<String, LoadAllGrafStandoff.DependencyTask> load(String... types)
+   {
+      Map<String, LoadAllGrafStandoff.DependencyTask> tasks = new LinkedHashMap<String, LoadAllGrafStandoff.DependencyTask>();
+      for (String type : types)
+      {
+         tasks.put(type, loader.new DependencyTask(type, new File(directory, "doc-" + type + ".xml")));
+      }
+      loader.linkDependencies(tasks);
+      loader.readSidecars(tasks);
+      NodeRegistry registry = new NodeRegistry();
+      for (LoadAllGrafStandoff.DependencyTask task : tasks.values())
+      {
+         task.registry = registry;
+         task.call();
+         assertNull(task.error);
+         assertNotNull(task.layer);
+      }
+      return tasks;
+   }
+
+   /** The sentence node covers both tokens, which only holds if seg was resolved. */
+   private static void assertSpans(StandoffLayer layer)
+   {
+      assertEquals(3, layer.nodeId.length);
+      for (int i = 0; i < layer.nodeId.length; ++i)
+      {
+         String id = layer.strings[layer.nodeId[i]];
+         long start = layer.nodeStart[i];
+         long end = layer.nodeEnd[i];
+         if ("ptb-n0".equals(id))
+         {
+            assertEquals(0, start);
+            assertEquals(5, end);
+         }
+         else if ("ptb-n1".equals(id))
+         {
+            assertEquals(6, start);
+            assertEquals(11, end);
+         }
+         else
+         {
+            assertEquals(0, start);
+            assertEquals(11, end);
+         }
+      }
+   }
+
+   private static class CountingLoader extends LoadAllGrafStandoff
+   {
+      private static final long serialVersionUID = 1L;
+
+      final List<String> reads = new ArrayList<String>();
+
+      @Override
+      protected GrafStreamLoader createStreamLoader()
+      {
+         return new GrafStreamLoader()
+         {
+            @Override
+            protected void read(File file, boolean primary) throws IOException, XMLStreamException
+            {
+               synchronized (reads)
+               {
+                  reads.add(file.getName());
+               }
+               super.read(file, primary);
+            }
+         };
+      }
+   }
+}
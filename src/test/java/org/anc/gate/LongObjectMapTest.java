@@ -0,0 +1,153 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LongObjectMapTest
+{
+   @Test
+   public void putAndGet()
+   {
+      LongObjectMap<String> map = new LongObjectMap<String>();
+      map.put(1, "one");
+      map.put(-1, "minus one");
+      map.put(0, "zero");
+      map.put(Long.MIN_VALUE, "min");
+      map.put(Long.MAX_VALUE, "max");
+      assertEquals(5, map.size());
+      assertEquals("one", map.get(1));
+      assertEquals("minus one", map.get(-1));
+      assertEquals("zero", map.get(0));
+      assertEquals("min", map.get(Long.MIN_VALUE));
+      assertEquals("max", map.get(Long.MAX_VALUE));
+      assertNull(map.get(2));
+   }
+
+   @Test
+   public void putReplaces()
+   {
+      LongObjectMap<String> map = new LongObjectMap<String>();
+      map.put(7, "a");
+      map.put(7, "b");
+      assertEquals(1, map.size());
+      assertEquals("b", map.get(7));
+   }
+
+   @Test(expected = NullPointerException.class)
+   public void nullValuesAreRejected()
+   {
+      new LongObjectMap<String>().put(1, null);
+   }
+
+   @Test
+   public void clear()
+   {
+      LongObjectMap<String> map = new LongObjectMap<String>();
+      map.put(1, "one");
+      map.clear();
+      assertEquals(0, map.size());
+      assertNull(map.get(1));
+      map.put(1, "again");
+      assertEquals("again", map.get(1));
+   }
+
+   /** Grows from the smallest table many times over. */
+   @Test
+   public void resize()
+   {
+      LongObjectMap<Long> map = new LongObjectMap<Long>(1);
+      int count = 100000;
+      for (int i = 0; i < count; ++i)
+      {
+         long key = LongObjectMap.pack(i, i + 3);
+         map.put(key, Long.valueOf(key));
+      }
+      assertEquals(count, map.size());
+      for (int i = 0; i < count; ++i)
+      {
+         long key = LongObjectMap.pack(i, i + 3);
+         assertEquals(Long.valueOf(key), map.get(key));
+      }
+      assertNull(map.get(LongObjectMap.pack(count, count + 3)));
+   }
+
+   /**
+    * Keys that land in the same slot of the initial 16 slot table have to be
+    * found by probing, also after one of them replaced its value.
+    */
+   @Test
+   public void collidingKeys()
+   {
+      List<Long> keys = new ArrayList<Long>();
+      int slot = LongObjectMap.hash(0) & 15;
+      for (long key = 0; keys.size() < 6; ++key)
+      {
+         if ((LongObjectMap.hash(key) & 15) == slot)
+         {
+            keys.add(key);
+         }
+      }
+      LongObjectMap<String> map = new LongObjectMap<String>(8);
+      for (long key : keys)
+      {
+         map.put(key, "v" + key);
+      }
+      map.put(keys.get(2), "replaced");
+      assertEquals(keys.size(), map.size());
+      for (int i = 0; i < keys.size(); ++i)
+      {
+         long key = keys.get(i);
+         assertEquals(i == 2 ? "replaced" : "v" + key, map.get(key));
+      }
+      // A key that hashes to the same slot but was never added ends the probe at an empty slot.
+      long missing = keys.get(keys.size() - 1) + 1;
+      while ((LongObjectMap.hash(missing) & 15) != slot)
+      {
+         ++missing;
+      }
+      assertNull(map.get(missing));
+   }
+
+   @Test
+   public void pack()
+   {
+      assertEquals(0L, LongObjectMap.pack(0, 0));
+      assertEquals((1L << 32) | 2, LongObjectMap.pack(1, 2));
+      assertTrue(LongObjectMap.pack(1, 2) != LongObjectMap.pack(2, 1));
+      long max = Integer.MAX_VALUE;
+      assertEquals((max << 32) | max, LongObjectMap.pack(max, max));
+      assertTrue(LongObjectMap.pack(max, max) > 0);
+   }
+
+   @Test
+   public void packOutOfRange()
+   {
+      long max = Integer.MAX_VALUE;
+      assertEquals(-1L, LongObjectMap.pack(-1, 0));
+      assertEquals(-1L, LongObjectMap.pack(0, -1));
+      assertEquals(-1L, LongObjectMap.pack(max + 1, 0));
+      assertEquals(-1L, LongObjectMap.pack(0, max + 1));
+   }
+}
@@ -0,0 +1,122 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+import gate.util.InvalidOffsetException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.anc.gate.core.AnnotationComparer;
+import org.junit.Test;
+
+public class OffsetSortTest
+{
+   /**
+    * Many annotations over a short text, so lots of them share a start offset
+    * and many share both offsets.
+    */
+   @Test
+   public void sameOrderAsStartComparator() throws InvalidOffsetException
+   {
+      Document document = createDocument(20000, 500, 42);
+      List<Annotation> annotations = new ArrayList<Annotation>(document.getAnnotations());
+      List<Annotation> expected = new ArrayList<Annotation>(annotations);
+      Collections.sort(expected, AnnotationComparer.createStartComparator());
+      List<Annotation> actual = OffsetSort.sort(annotations);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); ++i)
+      {
+         assertSame(expected.get(i), actual.get(i));
+      }
+   }
+
+   @Test
+   public void tiesKeepTheirOrder()
+   {
+      long[] start = { 5, 5, 5, 1, 5 };
+      long[] end = { 6, 6, 7, 2, 6 };
+      assertArrayEquals(new int[] { 3, 0, 1, 4, 2 }, OffsetSort.sort(start, end, 5));
+   }
+
+   @Test
+   public void sortedInputIsUnchanged()
+   {
+      long[] start = { 0, 0, 1, 1, 4 };
+      long[] end = { 3, 3, 1, 2, 4 };
+      assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, OffsetSort.sort(start, end, 5));
+   }
+
+   @Test
+   public void onlyTheFirstSizeEntriesAreSorted()
+   {
+      long[] start = { 9, 1, 0, 0 };
+      long[] end = { 9, 1, 0, 0 };
+      assertArrayEquals(new int[] { 1, 0 }, OffsetSort.sort(start, end, 2));
+      assertArrayEquals(new int[0], OffsetSort.sort(start, end, 0));
+   }
+
+   /** Larger than the insertion sort cutoff, in reverse order. */
+   @Test
+   public void reversed()
+   {
+      int size = 1000;
+      long[] start = new long[size];
+      long[] end = new long[size];
+      int[] expected = new int[size];
+      for (int i = 0; i < size; ++i)
+      {
+         start[i] = size - i;
+         end[i] = start[i] + 1;
+         expected[i] = size - 1 - i;
+      }
+      assertArrayEquals(expected, OffsetSort.sort(start, end, size));
+   }
+
+   /**
+    * Creates a document with random annotations. Starts are spread over the
+    * text and each annotation is up to four characters long.
+    */
+   static Document createDocument(int annotations, int length, long seed) throws InvalidOffsetException
+   {
+      char[] text = new char[length + 4];
+      Arrays.fill(text, 'x');
+      Document document = new DocumentImpl();
+      document.setContent(new DocumentContentImpl(new String(text)));
+      AnnotationSet set = document.getAnnotations();
+      Random random = new Random(seed);
+      for (int i = 0; i < annotations; ++i)
+      {
+         long start = random.nextInt(length);
+         set.add(start, start + random.nextInt(5), "tok", Factory.newFeatureMap());
+      }
+      return document;
+   }
+}
@@ -0,0 +1,256 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+import gate.creole.ExecutionException;
+import gate.util.InvalidOffsetException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xces.graf.api.IGraph;
+import org.xces.graf.impl.StandoffHeader;
+import org.xces.graf.io.GrafRenderer;
+import org.xces.graf.io.dom.DocumentHeader;
+
+public class SaveGrafStandoffTest
+{
+   private File directory;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   /**
+    * The streaming writer produces the same file as rendering the graph built
+    * by createGraph(), element for element.
+    */
+   @Test
+   public void streamingMatchesRenderer() throws Exception
+   {
+      Document document = createDocument();
+      SaveGrafStandoff save = createSaver(document);
+      assertEquals(render(save), writeStreaming(save));
+   }
+
+   /** The same with the graph header copied from the document's graf:header feature. */
+   @Test
+   public void streamingMatchesRendererWithHeader() throws Exception
+   {
+      Document document = createDocument();
+      StandoffHeader header = new StandoffHeader();
+      header.dependsOn.add("seg");
+      header.spaces.add(org.xces.graf.impl.Factory.newAnnotationSpace("PTB", "http://www.cis.upenn.edu/~treebank/"));
+      header.roots.add("ptb-n2");
+      document.getFeatures().put(Graf.GRAF_HEADER, header);
+      SaveGrafStandoff save = createSaver(document);
+      assertEquals(render(save), writeStreaming(save));
+   }
+
+   /**
+    * Annotations go to the layer given by the layerMapping for their type,
+    * then by their graf:set, then to the filenameSuffix layer, and the
+    * document header lists every layer file.
+    */
+   @Test
+   public void layersAreSplit() throws Exception
+   {
+      SaveGrafStandoff save = createSaver(createDocument());
+      save.setLayerMapping(Arrays.asList("mention=topic"));
+      save.writeLayers(directory);
+
+      DocumentHeader header = new DocumentHeader(new File(directory, "doc.hdr"));
+      assertEquals("doc.txt", header.getContentLocation());
+      List<String> layers = new ArrayList<String>(header.getAnnotationTypes());
+      Collections.sort(layers);
+      assertEquals(Arrays.asList("PTB", "ne", "standoff", "topic"), layers);
+      for (String layer : layers)
+      {
+         assertEquals("doc-" + layer + ".xml", header.getAnnotationLocation(layer));
+      }
+
+      assertLabels("PTB", "S", "tok", "cc");
+      assertLabels("ne", "person");
+      assertLabels("topic", "mention");
+      assertLabels("standoff", "lemma");
+   }
+
+   @Test
+   public void existingHeaderIsKept() throws Exception
+   {
+      File header = new File(directory, "doc.hdr");
+      TestFiles.write(header, "old");
+      SaveGrafStandoff save = createSaver(createDocument());
+      try
+      {
+         save.writeLayers(directory);
+         fail("The header was overwritten.");
+      }
+      catch (ExecutionException e)
+      {
+         // expected
+      }
+      assertEquals("old", TestFiles.read(header));
+      assertFalse(new File(directory, "doc-PTB.xml").exists());
+
+      save.setOverwriteHeader(Boolean.TRUE);
+      save.writeLayers(directory);
+      assertEquals(3, new DocumentHeader(header).getAnnotationTypes().size());
+   }
+
+   /** A graf:set with a path separator does not write anything outside the directory. */
+   @Test
+   public void layerWithPathSeparatorIsRejected() throws Exception
+   {
+      File target = new File(directory, "target");
+      assertTrue(target.mkdir());
+      Document document = createDocument();
+      document.getAnnotations().add(0L, 4L, "evil", features(null, "../escaped", null, null, null));
+      try
+      {
+         createSaver(document).writeLayers(target);
+         fail("The layer was written.");
+      }
+      catch (ExecutionException e)
+      {
+         // expected
+      }
+      assertFalse(new File(directory, "escaped.xml").exists());
+      assertEquals(0, target.list().length);
+   }
+
+   @Test(expected = ExecutionException.class)
+   public void mappedLayerWithPathSeparatorIsRejected() throws Exception
+   {
+      SaveGrafStandoff save = createSaver(createDocument());
+      save.setLayerMapping(Arrays.asList("person=..\\ne"));
+      save.writeLayers(directory);
+   }
+
+   /** Checks that the layer file has annotations with exactly the given labels. */
+   private void assertLabels(String layer, String... labels) throws IOException
+   {
+      String xml = TestFiles.read(new File(directory, "doc-" + layer + ".xml"));
+      for (String label : new String[] { "S", "tok", "cc", "person", "mention", "lemma" })
+      {
+         boolean expected = Arrays.asList(labels).contains(label);
+         assertEquals(layer + " " + label, expected, xml.contains("label=\"" + label + "\""));
+      }
+   }
+
+   /** Renders the graph from createGraph() the way execute() does. */
+   private static String render(SaveGrafStandoff save) throws Exception
+   {
+      IGraph graph = save.createGraph();
+      Object header = save.getDocument().getFeatures().get(Graf.GRAF_HEADER);
+      if (header instanceof StandoffHeader)
+      {
+         graph.setHeader((StandoffHeader) header);
+      }
+      StringWriter writer = new StringWriter();
+      new GrafRenderer(writer).render(graph);
+      return writer.toString();
+   }
+
+   private String writeStreaming(SaveGrafStandoff save) throws IOException
+   {
+      File file = new File(directory, "doc-standoff.xml");
+      save.writeStreaming(file);
+      return TestFiles.read(file);
+   }
+
+   static SaveGrafStandoff createSaver(Document document)
+   {
+      SaveGrafStandoff save = new SaveGrafStandoff();
+      save.setDocument(document);
+      save.setEncoding("UTF-8");
+      save.setGrafASName("xces");
+      save.setGrafASType("http://www.xces.org/schema/2003");
+      save.setGrafDefaultASType("http://www.anc.org/ns/masc/1.0");
+      return save;
+   }
+
+   /**
+    * Creates a document with annotations sharing spans, in an order that is
+    * not sorted, with edges, graf:ids, graf:sets and values that have to be
+    * escaped.
+    */
+   static Document createDocument() throws InvalidOffsetException
+   {
+      Document document = new DocumentImpl();
+      document.setName("doc");
+      document.setContent(new DocumentContentImpl("Fish & chips <here>."));
+      AnnotationSet set = document.getAnnotations();
+      set.add(0L, 19L, "S", features("ptb-n2", "PTB", "ptb-n0 ptb-n1 ", "type", "decl"));
+      set.add(7L, 12L, "tok", features("ptb-n1", "PTB", null, "msd", "NNS"));
+      set.add(0L, 4L, "tok", features("ptb-n0", "PTB", null, "msd", "N&N"));
+      set.add(0L, 4L, "person", features(null, "ne", null, "note", "\"fish\" <a>"));
+      set.add(0L, 4L, "lemma", features(null, null, null, null, null));
+      set.add(5L, 6L, "cc", features(null, "PTB", "ptb-n0", null, null));
+      set.add(0L, 19L, "mention", features(null, "ne", "ptb-n1", "kind", "topic"));
+      return document;
+   }
+
+   private static FeatureMap features(String id, String set, String edges, String name, String value)
+   {
+      FeatureMap features = Factory.newFeatureMap();
+      if (id != null)
+      {
+         features.put(Graf.GRAF_ID, id);
+      }
+      if (set != null)
+      {
+         features.put(Graf.GRAF_SET, set);
+      }
+      if (edges != null)
+      {
+         features.put(Graf.GRAF_EDGE, edges);
+      }
+      if (name != null)
+      {
+         features.put(name, value);
+      }
+      return features;
+   }
+}
@@ -0,0 +1,76 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import gate.Annotation;
+import gate.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.anc.gate.core.AnnotationComparer;
+
+/**
+ * Compares the time SaveGrafStandoff takes to sort the annotations of a large
+ * document with {@link OffsetSort} against the Collections.sort with
+ * AnnotationComparer.createStartComparator() it used before.
+ * <p>
+ * Usage: <code>java org.anc.gate.SortBenchmark [annotations [runs]]</code>,
+ * by default one million annotations and five timed runs after one warm up.
+ * The annotations are in the order the document's annotation set returns them.
+ */
+public class SortBenchmark
+{
+   public static void main(String[] args) throws Exception
+   {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      Document document = OffsetSortTest.createDocument(count, count * 5, 42);
+      List<Annotation> annotations = new ArrayList<Annotation>(document.getAnnotations());
+      System.out.println("Sorting " + annotations.size() + " annotations, best of " + runs + " runs.");
+
+      Comparator<Annotation> comparator = AnnotationComparer.createStartComparator();
+      long comparatorBest = Long.MAX_VALUE;
+      long offsetSortBest = Long.MAX_VALUE;
+      for (int run = 0; run <= runs; ++run)
+      {
+         long start = System.nanoTime();
+         List<Annotation> list = new ArrayList<Annotation>(annotations);
+         Collections.sort(list, comparator);
+         long comparatorTime = System.nanoTime() - start;
+
+         start = System.nanoTime();
+         List<Annotation> sorted = OffsetSort.sort(annotations);
+         long offsetSortTime = System.nanoTime() - start;
+
+         if (!list.equals(sorted))
+         {
+            throw new IllegalStateException("The two sorts disagree.");
+         }
+         // The first run only warms up the JIT.
+         if (run > 0)
+         {
+            comparatorBest = Math.min(comparatorBest, comparatorTime);
+            offsetSortBest = Math.min(offsetSortBest, offsetSortTime);
+         }
+      }
+      System.out.println(String.format("Collections.sort  %8.1f ms", comparatorBest / 1.0e6));
+      System.out.println(String.format("OffsetSort        %8.1f ms", offsetSortBest / 1.0e6));
+   }
+}
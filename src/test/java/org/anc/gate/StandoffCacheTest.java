@@ -0,0 +1,229 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandoffCacheTest
+{
+   private File directory;
+   private File cacheDirectory;
+   private StandoffCache cache;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      cacheDirectory = new File(directory, "cache");
+      cache = new StandoffCache(cacheDirectory);
+   }
+
+   @After
+   public void tearDown()
+   {
+      TestFiles.delete(directory);
+   }
+
+   @Test
+   public void roundTrip() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      StandoffLayer layer = layer();
+      cache.write(source, layer);
+      StandoffLayer cached = cache.read(source);
+      assertNotNull(cached);
+      assertArrayEquals(layer.strings, cached.strings);
+      assertArrayEquals(layer.nodeId, cached.nodeId);
+      assertArrayEquals(layer.nodeStart, cached.nodeStart);
+      assertArrayEquals(layer.nodeEnd, cached.nodeEnd);
+      assertArrayEquals(layer.edgeOffset, cached.edgeOffset);
+      assertArrayEquals(layer.edgeTarget, cached.edgeTarget);
+      assertArrayEquals(layer.annotationNode, cached.annotationNode);
+      assertArrayEquals(layer.annotationLabel, cached.annotationLabel);
+      assertArrayEquals(layer.annotationSet, cached.annotationSet);
+      assertArrayEquals(layer.featureOffset, cached.featureOffset);
+      assertArrayEquals(layer.featureKey, cached.featureKey);
+      assertArrayEquals(layer.featureValue, cached.featureValue);
+      assertArrayEquals(layer.blockEnd, cached.blockEnd);
+      assertEquals(layer.getAnnotationSpaces(), cached.getAnnotationSpaces());
+      assertEquals(layer.getDependsOn(), cached.getDependsOn());
+      assertEquals(layer.getRoots(), cached.getRoots());
+   }
+
+   @Test
+   public void missingSidecar() throws IOException
+   {
+      assertNull(cache.read(standoff("doc-s.xml", null)));
+   }
+
+   @Test
+   public void changedSource() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      cache.write(source, layer());
+      TestFiles.write(source, "<graph>changed</graph>");
+      assertNull(cache.read(source));
+   }
+
+   @Test
+   public void touchedSourceWithSameContent() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      cache.write(source, layer());
+      source.setLastModified(source.lastModified() - 10000);
+      assertNotNull(cache.read(source));
+   }
+
+   /**
+    * Once the checksum has matched, the new modification time is recorded, so
+    * the next read trusts the time again without reading the file: a change
+    * that keeps the size and time is no longer noticed.
+    */
+   @Test
+   public void touchedSourceIsRecorded() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      cache.write(source, layer());
+      long touched = source.lastModified() - 10000;
+      source.setLastModified(touched);
+      assertNotNull(cache.read(source));
+
+      StringBuilder same = new StringBuilder();
+      for (int i = 0; i < source.length(); ++i)
+      {
+         same.append(' ');
+      }
+      TestFiles.write(source, same.toString());
+      source.setLastModified(touched);
+      assertNotNull(cache.read(source));
+   }
+
+   /** nc depends on penn, which depends on seg. A change to seg must invalidate nc. */
+   @Test
+   public void changedIndirectDependency() throws IOException
+   {
+      File seg = standoff("doc-seg.xml", null);
+      standoff("doc-penn.xml", "seg");
+      File nc = standoff("doc-nc.xml", "penn");
+      StandoffLayer.Builder builder = new StandoffLayer.Builder();
+      builder.dependsOn.add("penn");
+      builder.addNode("nc-n1", 0, 4);
+      builder.addAnnotation("nc", "xces");
+      cache.write(nc, builder.build());
+      assertNotNull(cache.read(nc));
+
+      TestFiles.write(seg, "<graph><region xml:id=\"seg-r1\" anchors=\"0 5\"/></graph>");
+      assertNull(cache.read(nc));
+   }
+
+   /** Files with the same name in different directories get different sidecars. */
+   @Test
+   public void sameNameInDifferentDirectories() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      File other = new File(new File(directory, "other"), "doc-s.xml");
+      other.getParentFile().mkdir();
+      TestFiles.write(other, "<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\"><graphHeader/></graph>");
+      assertFalse(cache.getSidecar(source).equals(cache.getSidecar(other)));
+
+      StandoffLayer.Builder builder = new StandoffLayer.Builder();
+      builder.addNode("o-n1", 2, 3);
+      builder.addAnnotation("other", "xces");
+      cache.write(source, layer());
+      cache.write(other, builder.build());
+      StandoffLayer cached = cache.read(source);
+      assertEquals("s-n1", cached.strings[cached.nodeId[0]]);
+      cached = cache.read(other);
+      assertEquals("o-n1", cached.strings[cached.nodeId[0]]);
+   }
+
+   /**
+    * A manifest is a snapshot, so a file changed after it was built must
+    * still invalidate the sidecar.
+    */
+   @Test
+   public void staleManifestIsNotUsedForValidation() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      cache.setManifest(CorpusManifest.scan(directory));
+      cache.write(source, layer());
+      assertNotNull(cache.read(source));
+
+      TestFiles.write(source, "<graph>changed after the manifest was built</graph>");
+      assertNull(cache.read(source));
+   }
+
+   @Test
+   public void truncatedSidecarIsDeleted() throws IOException
+   {
+      File source = standoff("doc-s.xml", null);
+      cache.write(source, layer());
+      File sidecar = cache.getSidecar(source);
+      RandomAccessFile file = new RandomAccessFile(sidecar, "rw");
+      try
+      {
+         file.setLength(file.length() / 2);
+      }
+      finally
+      {
+         file.close();
+      }
+      assertNull(cache.read(source));
+      assertFalse(sidecar.exists());
+   }
+
+   private StandoffLayer layer()
+   {
+      StandoffLayer.Builder builder = new StandoffLayer.Builder();
+      builder.annotationSpaces.add("xces");
+      builder.roots.add("s-n1");
+      builder.addNode("s-n1", 0, 10);
+      builder.addEdge("s-n2");
+      builder.addAnnotation("s", "xces");
+      builder.addFeature("type", "declarative");
+      builder.addNode("s-n2", 0, 4);
+      builder.addAnnotation("tok", "xces");
+      builder.addFeature("msd", "NN");
+      return builder.build();
+   }
+
+   /** Writes a minimal standoff file with an optional dependsOn header. */
+   private File standoff(String name, String dependsOn) throws IOException
+   {
+      File file = new File(directory, name);
+      StringBuilder xml = new StringBuilder("<graph xmlns=\"http://www.xces.org/ns/GrAF/1.0/\"><graphHeader>");
+      if (dependsOn != null)
+      {
+         xml.append("<dependencies><dependsOn f.id=\"").append(dependsOn).append("\"/></dependencies>");
+      }
+      xml.append("</graphHeader></graph>");
+      TestFiles.write(file, xml.toString());
+      return file;
+   }
+}
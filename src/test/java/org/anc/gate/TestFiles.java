@@ -0,0 +1,91 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/** Temporary files for the tests. */
+public class TestFiles
+{
+   private TestFiles()
+   {
+   }
+
+   public static File createTempDirectory() throws IOException
+   {
+      File directory = File.createTempFile("graf-test", "");
+      if (!directory.delete() || !directory.mkdir())
+      {
+         throw new IOException("Unable to create " + directory.getPath());
+      }
+      return directory;
+   }
+
+   public static void write(File file, String content) throws IOException
+   {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try
+      {
+         writer.write(content);
+      }
+      finally
+      {
+         writer.close();
+      }
+   }
+
+   public static String read(File file) throws IOException
+   {
+      StringBuilder content = new StringBuilder();
+      Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      try
+      {
+         char[] buffer = new char[4096];
+         int n = reader.read(buffer);
+         while (n >= 0)
+         {
+            content.append(buffer, 0, n);
+            n = reader.read(buffer);
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+      return content.toString();
+   }
+
+   public static void delete(File file)
+   {
+      File[] children = file.listFiles();
+      if (children != null)
+      {
+         for (File child : children)
+         {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,183 @@
+/*-
+ * Copyright (c) 2009 American National Corpus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.anc.gate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gate.creole.ExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindQueueTest
+{
+   private File directory;
+   private GatedQueue queue;
+
+   @Before
+   public void setUp() throws IOException
+   {
+      directory = TestFiles.createTempDirectory();
+      queue = new GatedQueue(1, 4);
+   }
+
+   @After
+   public void tearDown()
+   {
+      queue.gate.countDown();
+      queue.close();
+      TestFiles.delete(directory);
+   }
+
+   /** With one writer thread the files are written in the order they were closed. */
+   @Test
+   public void filesAreWrittenInOrder() throws Exception
+   {
+      queue.gate.countDown();
+      for (String name : new String[] { "c", "a", "b" })
+      {
+         write(queue, name, name);
+      }
+      write(queue, "a", "again");
+      queue.flush();
+      assertEquals(Arrays.asList("c", "a", "b", "a"), queue.written);
+      assertEquals("again", TestFiles.read(new File(directory, "a")));
+      assertEquals("b", TestFiles.read(new File(directory, "b")));
+   }
+
+   /** flush() does not return until every queued file is on disk. */
+   @Test
+   public void flushWaitsForWrites() throws Exception
+   {
+      write(queue, "a", "a");
+      write(queue, "b", "b");
+      final List<Exception> errors = new ArrayList<Exception>();
+      Thread flusher = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               queue.flush();
+            }
+            catch (Exception e)
+            {
+               errors.add(e);
+            }
+         }
+      };
+      flusher.start();
+      flusher.join(200);
+      assertTrue(flusher.isAlive());
+      assertFalse(new File(directory, "b").exists());
+
+      queue.gate.countDown();
+      flusher.join(10000);
+      assertFalse(flusher.isAlive());
+      assertTrue(errors.isEmpty());
+      assertEquals("a", TestFiles.read(new File(directory, "a")));
+      assertEquals("b", TestFiles.read(new File(directory, "b")));
+   }
+
+   /**
+    * A file that can not be written is reported by update() at the start of
+    * the next execute(), and only once.
+    */
+   @Test
+   public void failedWriteIsReportedNext() throws Exception
+   {
+      queue.gate.countDown();
+      File missing = new File(new File(directory, "missing"), "doc.xml");
+      OutputStream stream = queue.open(missing);
+      stream.write(1);
+      stream.close();
+      queue.flush();
+      try
+      {
+         WriteBehindQueue.update(queue, true, 1, 4, true, false);
+         fail("The failed write was not reported.");
+      }
+      catch (ExecutionException e)
+      {
+         assertTrue(e.getMessage().contains(missing.getPath()));
+      }
+      assertSame(queue, WriteBehindQueue.update(queue, true, 1, 4, true, false));
+   }
+
+   /** The queue is finished, and its failures reported, when asynchronous is turned off. */
+   @Test
+   public void queueIsFinishedWhenNotAsynchronous() throws Exception
+   {
+      queue.gate.countDown();
+      write(queue, "a", "a");
+      assertNull(WriteBehindQueue.update(queue, false, 1, 4, true, false));
+      assertEquals("a", TestFiles.read(new File(directory, "a")));
+   }
+
+   private void write(WriteBehindQueue queue, String name, String content) throws IOException
+   {
+      OutputStream stream = queue.open(new File(directory, name));
+      stream.write(content.getBytes("UTF-8"));
+      stream.close();
+   }
+
+   /** Holds every write until the gate is opened and records the files written. */
+   private static class GatedQueue extends WriteBehindQueue
+   {
+      final CountDownLatch gate = new CountDownLatch(1);
+      final List<String> written = new ArrayList<String>();
+
+      GatedQueue(int threads, int capacity)
+      {
+         super(threads, capacity);
+      }
+
+      @Override
+      protected void write(File file, byte[] data) throws IOException
+      {
+         try
+         {
+            gate.await();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+         }
+         super.write(file, data);
+         synchronized (written)
+         {
+            written.add(file.getName());
+         }
+      }
+   }
+}